@@ -1,6 +1,7 @@
 package com.lyc.downloader;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
@@ -20,7 +21,9 @@ import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author liuyuchuan
@@ -55,7 +58,7 @@ public class DBTest {
     public void testDB() {
         DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
 
-        DownloadInfo downloadInfo = new DownloadInfo(null, "http", "file", "name", true, 0, 0, 0, null, new Date(), null, null);
+        DownloadInfo downloadInfo = new DownloadInfo(null, "http", "file", "name", true, 0, 0, 0, null, new Date(), null, null, 0, 0, 1, 0, 0);
         long id = downloadInfoDao.insert(downloadInfo);
         Assert.assertEquals(new Long(id), downloadInfo.getId());
         Assert.assertEquals(1, downloadInfoDao.loadAll().size());
@@ -90,4 +93,140 @@ public class DBTest {
         Assert.assertEquals(downloadInfoDao.loadAll().size(), 0);
         Assert.assertEquals(downloadThreadInfoDao.loadAll().size(), 0);
     }
+
+    /**
+     * submitAll relies on ids set by insertInTx
+     */
+    @Test
+    public void testInsertInTx() {
+        final int count = 5000;
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(count);
+        Date createdTime = new Date();
+        for (int i = 0; i < count; i++) {
+            downloadInfoList.add(new DownloadInfo(null, "http://" + i, "file", null, true, 0, 0, 0, null, createdTime, null, null, 0, 0, 1, 0, 0));
+        }
+        long start = System.nanoTime();
+        downloadInfoDao.insertInTx(downloadInfoList);
+        long batchNanos = System.nanoTime() - start;
+        Long lastId = null;
+        for (DownloadInfo downloadInfo : downloadInfoList) {
+            Assert.assertNotNull(downloadInfo.getId());
+            if (lastId != null) {
+                Assert.assertTrue(downloadInfo.getId() > lastId);
+            }
+            lastId = downloadInfo.getId();
+        }
+        Assert.assertEquals(count, downloadInfoDao.count());
+
+        clear();
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            downloadInfoDao.insert(new DownloadInfo(null, "http://" + i, "file", null, true, 0, 0, 0, null, createdTime, null, null, 0, 0, 1, 0, 0));
+        }
+        long singleNanos = System.nanoTime() - start;
+        Assert.assertTrue("insert " + count + " tasks: one transaction " + batchNanos / 1000000 + "ms, one by one "
+                + singleNanos / 1000000 + "ms", batchNanos < singleNanos);
+    }
+
+    /**
+     * active tasks are recovered newest first; a restarted task is newer than tasks with larger ids
+     */
+    @Test
+    public void testActiveOrder() {
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        long now = System.currentTimeMillis();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int state = i == 4 ? DownloadTask.FINISH : DownloadTask.PAUSED;
+            downloadInfoList.add(new DownloadInfo(null, "http://" + i, "file", null, true, state, 0, 0, null, new Date(now + i), null, null, 0, 0, 1, 0, 0));
+        }
+        // restarted
+        downloadInfoList.get(0).getCreatedTime().setTime(now + 10);
+        // same created time, larger id first
+        downloadInfoList.get(3).getCreatedTime().setTime(now + 2);
+        downloadInfoDao.insertInTx(downloadInfoList);
+
+        List<DownloadInfo> active = DownloadManager.loadActiveDownloadInfoList(daoSession);
+        Assert.assertEquals(4, active.size());
+        int[] expected = {0, 3, 2, 1};
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(downloadInfoList.get(expected[i]).getId(), active.get(i).getId());
+        }
+    }
+
+    /**
+     * pages of tasks by state are keyed by id and read by the index of state
+     */
+    @Test
+    public void testPagesByState() {
+        final int count = 1000;
+        final int pageSize = 100;
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(count);
+        int[] states = {DownloadTask.FINISH, DownloadTask.PAUSED, DownloadTask.ERROR};
+        for (int i = 0; i < count; i++) {
+            downloadInfoList.add(new DownloadInfo(null, "http://" + i, "file", "name" + i, true, states[i % 3], 0, 0, null, new Date(), null, null, 0, 0, 1, 0, 0));
+        }
+        downloadInfoDao.insertInTx(downloadInfoList);
+        // a task in memory has made progress since it was persisted
+        DownloadInfo running = downloadInfoList.get(count - 1);
+        DownloadInfo inMemory = new DownloadInfo(running.getId(), running.getUrl(), running.getPath(), running.getFilename(), true,
+                running.getDownloadItemState(), 42, 100, null, running.getCreatedTime(), null, null, 0, 0, 1, 0, 0);
+        Map<Long, DownloadInfo> infoTable = new HashMap<>();
+        infoTable.put(inMemory.getId(), inMemory);
+
+        int stateMask = TaskSummary.stateMask(DownloadTask.FINISH, DownloadTask.ERROR);
+        int found = 0;
+        long afterId = 0;
+        while (true) {
+            List<TaskSummary> page = DownloadManager.queryTaskSummaries(daoSession, infoTable, stateMask, afterId,
+                    pageSize, TaskSummary.FIELD_URL);
+            for (TaskSummary taskSummary : page) {
+                Assert.assertTrue(taskSummary.getState() == DownloadTask.FINISH || taskSummary.getState() == DownloadTask.ERROR);
+                if (afterId > 0) {
+                    Assert.assertTrue(taskSummary.getId() < afterId);
+                }
+                Assert.assertNotNull(taskSummary.getUrl());
+                Assert.assertNull(taskSummary.getPath());
+                Assert.assertNull(taskSummary.getFilename());
+                if (taskSummary.getId() == inMemory.getId()) {
+                    Assert.assertEquals(42, taskSummary.getDownloadedSize());
+                    Assert.assertEquals(100, taskSummary.getTotalSize());
+                }
+                afterId = taskSummary.getId();
+            }
+            found += page.size();
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        Assert.assertEquals(count - count / 3, found);
+
+        // page size is clamped
+        Assert.assertEquals(1, DownloadManager.queryTaskSummaries(daoSession, infoTable, TaskSummary.ALL_STATES, 0,
+                0, 0).size());
+        List<TaskSummary> all = DownloadManager.queryTaskSummaries(daoSession, infoTable, TaskSummary.ALL_STATES, 0,
+                Integer.MAX_VALUE, TaskSummary.FIELD_ALL);
+        Assert.assertEquals(TaskSummary.MAX_PAGE_SIZE, all.size());
+        Assert.assertEquals(running.getUrl(), all.get(0).getUrl());
+        Assert.assertEquals(running.getPath(), all.get(0).getPath());
+        Assert.assertEquals(running.getFilename(), all.get(0).getFilename());
+        Assert.assertTrue(DownloadManager.queryTaskSummaries(daoSession, infoTable,
+                TaskSummary.stateMask(DownloadTask.CANCELED), 0, pageSize, 0).isEmpty());
+        Assert.assertTrue(DownloadManager.queryTaskSummaries(daoSession, infoTable, 0, 0, pageSize, 0).isEmpty());
+
+        // same shape as the query built for a mask of two states
+        StringBuilder plan = new StringBuilder();
+        try (Cursor cursor = daoSession.getDatabase().rawQuery("EXPLAIN QUERY PLAN SELECT * FROM \"" + DownloadInfoDao.TABLENAME
+                + "\" WHERE \"" + DownloadInfoDao.Properties.DownloadItemState.columnName + "\" IN (?,?) AND \""
+                + DownloadInfoDao.Properties.Id.columnName + "\" < ? ORDER BY \""
+                + DownloadInfoDao.Properties.Id.columnName + "\" DESC LIMIT " + pageSize,
+                new String[]{String.valueOf(DownloadTask.FINISH), String.valueOf(DownloadTask.ERROR), "500"})) {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+        }
+        Assert.assertTrue(plan.toString(), plan.toString().contains("IDX_DOWNLOAD_INFO_STATE"));
+    }
 }
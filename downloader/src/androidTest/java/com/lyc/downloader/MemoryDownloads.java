@@ -0,0 +1,233 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import com.lyc.downloader.db.DownloadInfo;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Download manager shared by tests of real tasks, serving contents from a {@link MemoryTransport}
+ * through {@link ScriptedTransport}.
+ * Tasks of different tests don't see each other, since urls and ids are never reused.
+ */
+class MemoryDownloads {
+    static final int SEGMENT_THREAD_BUDGET = 4;
+    static final int SEGMENT_MAX_THREADS = 6;
+    static final long MIN_RANGE_SIZE = 64 * 1024;
+
+    private static MemoryDownloads instance;
+
+    final MemoryTransport transport = new MemoryTransport();
+    final ScriptedTransport scripts = new ScriptedTransport(transport);
+    final DownloadManager downloadManager;
+    final File dir;
+    private final Map<Long, Listener> listeners = new ConcurrentHashMap<>();
+    private final Random random = new Random(1);
+    private int fileCount;
+
+    private MemoryDownloads() {
+        Context context = ApplicationProvider.getApplicationContext();
+        dir = new File(context.getCacheDir(), "memory_downloads");
+        deleteDir(dir);
+        dir.mkdirs();
+        DownloadExecutors.init();
+        DownloadManager.init(context, new Configuration.Builder()
+                .setMaxRunningTask(8)
+                .setAvoidFrameDrop(false)
+                .setSharedProgressTable(true)
+                .setMaxConnectionCount(4)
+                .setMinRangeSize(MIN_RANGE_SIZE)
+                .setSegmentThreadBudget(SEGMENT_THREAD_BUDGET)
+                .setSegmentMaxThreads(SEGMENT_MAX_THREADS)
+                .setSpeculativeConnect(true)
+                .setTransport(scripts)
+                .build());
+        downloadManager = DownloadManager.instance();
+        downloadManager.setDownloadCallback(new Callback());
+    }
+
+    static synchronized MemoryDownloads get() {
+        if (instance == null) {
+            instance = new MemoryDownloads();
+        }
+        return instance;
+    }
+
+    /**
+     * Put random content of given size and return its url.
+     */
+    synchronized String put(int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        String url = "memory://file" + fileCount++ + ".bin";
+        transport.put(url, content);
+        return url;
+    }
+
+    synchronized byte[] content(String url) {
+        DownloadTransport.Call call = transport.newCall(url, Collections.emptyMap());
+        try (DownloadTransport.Response response = call.execute()) {
+            return response.source().readByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    DownloadInfo submit(String url, int connectionCount, Listener listener) throws InterruptedException {
+        return submit(url, connectionCount, 0, listener);
+    }
+
+    /**
+     * Submit a task and wait for its id; callbacks of the task go to the listener.
+     */
+    DownloadInfo submit(String url, int connectionCount, long speedLimit, Listener listener)
+            throws InterruptedException {
+        String filename = url.substring(url.lastIndexOf('/') + 1);
+        AtomicReference<DownloadInfo> result = new AtomicReference<>();
+        CountDownLatch submitted = new CountDownLatch(1);
+        downloadManager.submit(url, dir.getAbsolutePath(), filename, connectionCount, speedLimit, 1,
+                new ISubmitCallback.Stub() {
+                    @Override
+                    public void submitSuccess(DownloadInfo downloadInfo) {
+                        listeners.put(downloadInfo.getId(), listener);
+                        result.set(downloadInfo);
+                        submitted.countDown();
+                    }
+
+                    @Override
+                    public void submitFail(String reason) {
+                        submitted.countDown();
+                    }
+                });
+        Assert.assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        Assert.assertNotNull("submit " + url, result.get());
+        return result.get();
+    }
+
+    /**
+     * @return table read by other processes
+     */
+    ProgressTable openProgressTable() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        return ProgressTable.open(new File(context.getFilesDir(), Constants.PROGRESS_TABLE_FILE_NAME));
+    }
+
+    void assertContent(DownloadInfo downloadInfo) throws IOException {
+        byte[] expected = content(downloadInfo.getUrl());
+        File file = new File(downloadInfo.getPath(), downloadInfo.getFilename());
+        Assert.assertEquals(expected.length, file.length());
+        byte[] actual = new byte[expected.length];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.readFully(actual);
+        }
+        Assert.assertArrayEquals(expected, actual);
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Settled states of a task; called on the shard of the task.
+     */
+    static class Listener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final CountDownLatch settled = new CountDownLatch(1);
+        volatile int lastState = DownloadTask.PENDING;
+        // System.nanoTime() of the last PAUSED callback
+        volatile long pausedNanos;
+
+        void onState(int state) {
+            if (state == DownloadTask.PAUSED) {
+                pausedNanos = System.nanoTime();
+            }
+            lastState = state;
+            if (state == DownloadTask.FINISH) {
+                finished.countDown();
+            }
+            if (state == DownloadTask.FINISH || state == DownloadTask.CANCELED
+                    || state == DownloadTask.FATAL_ERROR) {
+                settled.countDown();
+            }
+        }
+    }
+
+    private class Callback extends IDownloadCallback.Stub {
+
+        private void onState(long id, int state) {
+            Listener listener = listeners.get(id);
+            if (listener != null) {
+                listener.onState(state);
+            }
+        }
+
+        @Override
+        public void onDownloadConnecting(long id) {
+            onState(id, DownloadTask.CONNECTING);
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(long id, long total, long cur, double bps) {
+        }
+
+        @Override
+        public void onDownloadProgressUpdateBatch(long[] ids, long[] totals, long[] curs, double[] bps) {
+        }
+
+        @Override
+        public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        }
+
+        @Override
+        public void onDownloadError(long id, int code, boolean fatal) {
+            onState(id, fatal ? DownloadTask.FATAL_ERROR : DownloadTask.ERROR);
+        }
+
+        @Override
+        public void onDownloadStart(DownloadInfo downloadInfo) {
+            onState(downloadInfo.getId(), DownloadTask.RUNNING);
+        }
+
+        @Override
+        public void onDownloadStopping(long id) {
+            onState(id, DownloadTask.STOPPING);
+        }
+
+        @Override
+        public void onDownloadPaused(long id) {
+            onState(id, DownloadTask.PAUSED);
+        }
+
+        @Override
+        public void onDownloadWaiting(long id) {
+            onState(id, DownloadTask.WAITING);
+        }
+
+        @Override
+        public void onDownloadCanceled(long id) {
+            onState(id, DownloadTask.CANCELED);
+        }
+
+        @Override
+        public void onDownloadFinished(DownloadInfo downloadInfo) {
+            onState(downloadInfo.getId(), DownloadTask.FINISH);
+        }
+    }
+}
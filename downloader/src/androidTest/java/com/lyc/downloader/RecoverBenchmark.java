@@ -0,0 +1,123 @@
+package com.lyc.downloader;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DaoMaster;
+import com.lyc.downloader.db.DaoSession;
+import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.db.DownloadInfoDao;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Cold start of download manager with a long history: 100k finished tasks and a few active ones.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecoverBenchmark {
+    private static final String DB_NAME = DownloadManager.DB_NAME + "_recover_benchmark.db";
+    private static final int HISTORY_COUNT = 100_000;
+    private static final int ACTIVE_COUNT = 100;
+    private Context context;
+    private DaoSession daoSession;
+
+    @Before
+    public void init() {
+        context = ApplicationProvider.getApplicationContext();
+        context.deleteDatabase(DB_NAME);
+        daoSession = openSession();
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(10_000);
+        for (int i = 0; i < HISTORY_COUNT + ACTIVE_COUNT; i++) {
+            int state;
+            if (i % (HISTORY_COUNT / ACTIVE_COUNT) != 0) {
+                state = DownloadTask.FINISH;
+            } else {
+                // killed while running, paused by user, or failed
+                int[] activeStates = {DownloadTask.RUNNING, DownloadTask.PAUSED, DownloadTask.ERROR};
+                state = activeStates[i % activeStates.length];
+            }
+            downloadInfoList.add(new DownloadInfo(null, "http://example.com/file/" + i, "/sdcard/Download",
+                    "file" + i, true, state, 1 << 20, 1 << 20, null, new Date(), null, null, 0, 0, 1, 0, 0));
+            if (downloadInfoList.size() == 10_000) {
+                downloadInfoDao.insertInTx(downloadInfoList);
+                downloadInfoList.clear();
+            }
+        }
+        downloadInfoDao.insertInTx(downloadInfoList);
+    }
+
+    @After
+    public void clear() {
+        context.deleteDatabase(DB_NAME);
+    }
+
+    private DaoSession openSession() {
+        SQLiteDatabase db = new DaoMaster.DevOpenHelper(context, DB_NAME).getWritableDatabase();
+        return new DaoMaster(db).newSession();
+    }
+
+    @Test
+    public void coldStart() {
+        // warm up sqlite and the class loader
+        eagerRecover(openSession());
+        lazyRecover(openSession());
+
+        long start = System.nanoTime();
+        int eagerCount = eagerRecover(openSession());
+        long eagerNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int lazyCount = lazyRecover(openSession());
+        long lazyNanos = System.nanoTime() - start;
+
+        Assert.assertTrue("recovered " + lazyCount + " of " + eagerCount + " tasks",
+                lazyCount >= ACTIVE_COUNT && lazyCount < eagerCount);
+        Assert.assertTrue("recover with " + HISTORY_COUNT + " finished tasks: loading everything "
+                + eagerNanos / 1000000 + "ms, active tasks only " + lazyNanos / 1000000 + "ms", lazyNanos < eagerNanos);
+    }
+
+    /**
+     * what recovery did before: all active and finished tasks, rewriting every active one
+     */
+    private static int eagerRecover(DaoSession daoSession) {
+        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+        List<DownloadInfo> downloadInfoList = downloadInfoDao.queryBuilder()
+                .where(DownloadInfoDao.Properties.DownloadItemState.notEq(DownloadTask.FINISH))
+                .where(DownloadInfoDao.Properties.DownloadItemState.notEq(DownloadTask.CANCELED))
+                .orderDesc(DownloadInfoDao.Properties.CreatedTime)
+                .build()
+                .list();
+        List<DownloadInfo> finishedDownloadInfoList = downloadInfoDao.queryBuilder()
+                .where(DownloadInfoDao.Properties.DownloadItemState.eq(DownloadTask.FINISH))
+                .orderDesc(DownloadInfoDao.Properties.FinishedTime)
+                .build()
+                .list();
+        for (DownloadInfo downloadInfo : downloadInfoList) {
+            int state = downloadInfo.getDownloadItemState();
+            if (state != DownloadTask.ERROR && state != DownloadTask.FATAL_ERROR) {
+                downloadInfo.setDownloadItemState(DownloadTask.PAUSED);
+            }
+        }
+        downloadInfoDao.saveInTx(downloadInfoList);
+        return downloadInfoList.size() + finishedDownloadInfoList.size();
+    }
+
+    /**
+     * what recovery does now: active tasks by the index of state, rewriting only the changed ones
+     */
+    private static int lazyRecover(DaoSession daoSession) {
+        List<DownloadInfo> changedInfoList = new ArrayList<>();
+        List<DownloadInfo> downloadInfoList = DownloadManager.recoverActiveDownloadInfoList(daoSession, changedInfoList);
+        DownloadManager.persistRecoveredDownloadInfoList(daoSession, changedInfoList);
+        return downloadInfoList.size();
+    }
+}
@@ -0,0 +1,263 @@
+package com.lyc.downloader;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MemoryTransport} whose connects and responses can be held or failed by tests.
+ * Requests are matched by url and the start of their range; 0 for requests without range.
+ */
+class ScriptedTransport implements DownloadTransport {
+    private final MemoryTransport transport;
+    private final Map<String, Gate> gates = new ConcurrentHashMap<>();
+    private final Map<String, Gate> connectGates = new ConcurrentHashMap<>();
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+
+    ScriptedTransport(MemoryTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Reads of responses starting at start block once fastBytes are read, until the gate is released.
+     * Blocked reads fail if the reader is interrupted.
+     */
+    Gate hold(String url, long start, long fastBytes) {
+        Gate gate = new Gate(fastBytes);
+        gates.put(key(url, start), gate);
+        return gate;
+    }
+
+    /**
+     * Connects of requests starting at start block until the gate is released.
+     */
+    Gate holdConnect(String url, long start) {
+        Gate gate = new Gate(0);
+        connectGates.put(key(url, start), gate);
+        return gate;
+    }
+
+    /**
+     * The next count requests starting at start are answered with code and no body.
+     */
+    Failure fail(String url, long start, int code, int count) {
+        Failure failure = new Failure(code, count);
+        failures.put(key(url, start), failure);
+        return failure;
+    }
+
+    @Override
+    public boolean isSupported(String url) {
+        return transport.isSupported(url);
+    }
+
+    @Override
+    public Call newCall(String url, Map<String, String> headers) {
+        Call call = transport.newCall(url, headers);
+        String key = key(url, start(headers));
+        Gate gate = gates.get(key);
+        Gate connectGate = connectGates.get(key);
+        Failure failure = failures.get(key);
+        if (gate == null && connectGate == null && failure == null) {
+            return call;
+        }
+        return new Call() {
+            @Override
+            public Response execute() throws IOException {
+                if (connectGate != null) {
+                    connectGate.pass(0);
+                }
+                if (failure != null && failure.left.getAndDecrement() > 0) {
+                    return new FailedResponse(failure.code, url);
+                }
+                Response response = call.execute();
+                return gate == null ? response : new HeldResponse(response, gate);
+            }
+
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+
+    private static String key(String url, long start) {
+        return url + "#" + start;
+    }
+
+    private static long start(Map<String, String> headers) {
+        String range = headers.get("Range");
+        if (range == null || !range.startsWith("bytes=")) {
+            return 0;
+        }
+        return Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    static class Gate {
+        private final long fastBytes;
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private Gate(long fastBytes) {
+            this.fastBytes = fastBytes;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        /**
+         * @return true if a read is blocked or has been blocked by the gate
+         */
+        boolean awaitBlocked(long timeout, TimeUnit unit) throws InterruptedException {
+            return blocked.await(timeout, unit);
+        }
+
+        private void pass(long readBytes) throws InterruptedIOException {
+            if (readBytes < fastBytes || released.getCount() == 0) {
+                return;
+            }
+            blocked.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    static class Failure {
+        private final int code;
+        private final AtomicInteger left;
+
+        private Failure(int code, int count) {
+            this.code = code;
+            left = new AtomicInteger(count);
+        }
+
+        /**
+         * @return true if all failures are answered
+         */
+        boolean isDone() {
+            return left.get() <= 0;
+        }
+    }
+
+    private static class HeldResponse implements Response {
+        private final Response response;
+        private final BufferedSource source;
+        private long readBytes;
+
+        HeldResponse(Response response, Gate gate) {
+            this.response = response;
+            BufferedSource source = response.source();
+            if (source == null) {
+                this.source = null;
+                return;
+            }
+            // pulled from the response no further than fastBytes until the gate is released
+            this.source = Okio.buffer(new ForwardingSource(source) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    gate.pass(readBytes);
+                    if (readBytes < gate.fastBytes) {
+                        byteCount = Math.min(byteCount, gate.fastBytes - readBytes);
+                    }
+                    long read = super.read(sink, byteCount);
+                    if (read > 0) {
+                        readBytes += read;
+                    }
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public int code() {
+            return response.code();
+        }
+
+        @Override
+        public String header(String name) {
+            return response.header(name);
+        }
+
+        @Override
+        public long contentLength() {
+            return response.contentLength();
+        }
+
+        @Override
+        public String contentType() {
+            return response.contentType();
+        }
+
+        @Override
+        public String url() {
+            return response.url();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
+
+    private static class FailedResponse implements Response {
+        private final int code;
+        private final String url;
+
+        FailedResponse(int code, String url) {
+            this.code = code;
+            this.url = url;
+        }
+
+        @Override
+        public int code() {
+            return code;
+        }
+
+        @Override
+        public String header(String name) {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public String contentType() {
+            return null;
+        }
+
+        @Override
+        public String url() {
+            return url;
+        }
+
+        @Override
+        public BufferedSource source() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * More running tasks than segment threads: tasks wait for admission and never grow the pool past max threads.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SegmentAdmissionTest {
+    private static final int TASK_COUNT = 8;
+    private static final int FILE_SIZE = 1 << 20;
+
+    @Test
+    public void tasksBeyondMaxThreadsWaitForAdmission() throws InterruptedException, IOException {
+        MemoryDownloads downloads = MemoryDownloads.get();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>();
+        List<MemoryDownloads.Listener> listeners = new ArrayList<>();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            MemoryDownloads.Listener listener = new MemoryDownloads.Listener();
+            listeners.add(listener);
+            downloadInfoList.add(downloads.submit(downloads.put(FILE_SIZE), 4, listener));
+        }
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Assert.assertTrue("task#" + downloadInfoList.get(i).getId() + " state = " + listeners.get(i).lastState,
+                    listeners.get(i).finished.await(30, TimeUnit.SECONDS));
+            downloads.assertContent(downloadInfoList.get(i));
+            // the writer waits at least for the first segments of readers
+            PipelineStats pipelineStats = downloads.downloadManager.getPipelineStats(downloadInfoList.get(i).getId());
+            Assert.assertNotNull(pipelineStats);
+            Assert.assertTrue(pipelineStats.toString(), pipelineStats.getWriterBlocks() > 0);
+        }
+        Assert.assertTrue(DownloadExecutors.segment.largestPoolSize() <= MemoryDownloads.SEGMENT_MAX_THREADS);
+        Assert.assertEquals(0, DownloadExecutors.segment.threadsInUse());
+    }
+}
@@ -0,0 +1,273 @@
+package com.lyc.downloader;
+
+import android.os.Debug;
+import androidx.test.runner.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writing interleaved segments of 4 ranges.
+ * Before: one RandomAccessFile (fd) per range, seek + write per segment.
+ * After: one FileChannel per task, positional / gather writes per drained batch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SegmentWriterBenchmark {
+    private static final int RANGE_COUNT = 4;
+    private static final int SEGMENT_SIZE = 8 << 10;
+    private static final int SEGMENTS_PER_RANGE = 1024;
+    private static final int BATCH = 16;
+    private static final int CPU_ROUNDS = 9;
+    // NIO copies heap segments to a temporary direct buffer before writing, which costs more cpu than before
+    private static final double MAX_HEAP_CPU_RATIO = 1.5;
+
+    @Test
+    public void sameContentWithFewerFds() throws IOException {
+        List<Segment> arrivals = arrivals();
+        File before = File.createTempFile("before", ".tmp");
+        File after = File.createTempFile("after", ".tmp");
+        try {
+            int beforeFds = writeByRandomAccessFiles(before, arrivals);
+            int afterFds = writeBySegmentWriter(after, arrivals);
+            Assert.assertTrue("fds " + beforeFds, beforeFds >= RANGE_COUNT);
+            Assert.assertTrue("fds " + afterFds + " against " + beforeFds, afterFds < beforeFds);
+            assertSameContent(before, after);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            before.delete();
+            //noinspection ResultOfMethodCallIgnored
+            after.delete();
+        }
+    }
+
+    @Test
+    public void writerCpu() throws IOException {
+        List<Segment> arrivals = arrivals();
+        List<Segment> directArrivals = direct(arrivals);
+        File before = File.createTempFile("before", ".tmp");
+        File after = File.createTempFile("after", ".tmp");
+        try {
+            // warm up
+            for (int i = 0; i < CPU_ROUNDS; i++) {
+                writeByRandomAccessFiles(before, arrivals);
+                writeBySegmentWriter(after, arrivals);
+                writeBySegmentWriter(after, directArrivals);
+            }
+
+            // alternate them so that all see the same page cache and cpu frequency
+            long[] beforeCpus = new long[CPU_ROUNDS];
+            long[] afterCpus = new long[CPU_ROUNDS];
+            long[] directCpus = new long[CPU_ROUNDS];
+            for (int i = 0; i < CPU_ROUNDS; i++) {
+                long start = Debug.threadCpuTimeNanos();
+                writeByRandomAccessFiles(before, arrivals);
+                beforeCpus[i] = Debug.threadCpuTimeNanos() - start;
+
+                start = Debug.threadCpuTimeNanos();
+                writeBySegmentWriter(after, directArrivals);
+                directCpus[i] = Debug.threadCpuTimeNanos() - start;
+
+                start = Debug.threadCpuTimeNanos();
+                writeBySegmentWriter(after, arrivals);
+                afterCpus[i] = Debug.threadCpuTimeNanos() - start;
+            }
+            long beforeCpu = median(beforeCpus);
+            long afterCpu = median(afterCpus);
+            long directCpu = median(directCpus);
+            Assert.assertTrue("heap segments " + afterCpu + "ns against " + beforeCpu + "ns",
+                    afterCpu < beforeCpu * MAX_HEAP_CPU_RATIO);
+            Assert.assertTrue("direct segments " + directCpu + "ns against " + beforeCpu + "ns",
+                    directCpu < beforeCpu);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            before.delete();
+            //noinspection ResultOfMethodCallIgnored
+            after.delete();
+        }
+    }
+
+    /**
+     * Read from a channel (okio BufferedSource in production) into direct segments costs less than into heap ones.
+     */
+    @Test
+    public void heapVsDirect() throws IOException {
+        byte[] data = new byte[16 << 20];
+        new Random(7).nextBytes(data);
+        File heap = File.createTempFile("heap", ".tmp");
+        File direct = File.createTempFile("direct", ".tmp");
+        try {
+            // warm up
+            copy(data, heap, false);
+            copy(data, direct, true);
+
+            long[] heapCpus = new long[CPU_ROUNDS];
+            long[] directCpus = new long[CPU_ROUNDS];
+            for (int i = 0; i < CPU_ROUNDS; i++) {
+                long start = Debug.threadCpuTimeNanos();
+                copy(data, heap, false);
+                heapCpus[i] = Debug.threadCpuTimeNanos() - start;
+                start = Debug.threadCpuTimeNanos();
+                copy(data, direct, true);
+                directCpus[i] = Debug.threadCpuTimeNanos() - start;
+            }
+            long heapCpu = median(heapCpus);
+            long directCpu = median(directCpus);
+            Assert.assertTrue("direct " + directCpu + "ns against heap " + heapCpu + "ns",
+                    directCpu < heapCpu);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            heap.delete();
+            //noinspection ResultOfMethodCallIgnored
+            direct.delete();
+        }
+    }
+
+    private static List<Segment> arrivals() {
+        long rangeSize = (long) SEGMENT_SIZE * SEGMENTS_PER_RANGE;
+        List<Segment> arrivals = new ArrayList<>();
+        Random random = new Random(42);
+        int[] next = new int[RANGE_COUNT];
+        for (int left = RANGE_COUNT * SEGMENTS_PER_RANGE; left > 0; left--) {
+            int range;
+            do {
+                range = random.nextInt(RANGE_COUNT);
+            } while (next[range] == SEGMENTS_PER_RANGE);
+            Segment segment = new Segment(SEGMENT_SIZE);
+            Arrays.fill(segment.buffer, (byte) range);
+            segment.startPos = range * rangeSize + (long) next[range]++ * SEGMENT_SIZE;
+            segment.readSize = SEGMENT_SIZE;
+            segment.tid = range;
+            arrivals.add(segment);
+        }
+        return arrivals;
+    }
+
+    private static List<Segment> direct(List<Segment> arrivals) {
+        List<Segment> directArrivals = new ArrayList<>(arrivals.size());
+        for (Segment segment : arrivals) {
+            Segment direct = new Segment(SEGMENT_SIZE, true);
+            direct.byteBuffer.put(segment.buffer, 0, segment.readSize);
+            direct.startPos = segment.startPos;
+            direct.readSize = segment.readSize;
+            direct.tid = segment.tid;
+            directArrivals.add(direct);
+        }
+        return directArrivals;
+    }
+
+    private static void copy(byte[] data, File file, boolean direct) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+        List<Segment> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new Segment(SEGMENT_SIZE, direct));
+        }
+        List<Segment> filled = new ArrayList<>(BATCH);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            SegmentWriter writer = new SegmentWriter(raf.getChannel(), BATCH);
+            long position = 0;
+            int readSize;
+            do {
+                for (Segment segment : batch) {
+                    segment.byteBuffer.clear();
+                    readSize = source.read(segment.byteBuffer);
+                    if (readSize <= 0) {
+                        break;
+                    }
+                    segment.startPos = position;
+                    segment.readSize = readSize;
+                    position += readSize;
+                    filled.add(segment);
+                }
+                readSize = filled.size();
+                writer.write(filled);
+                filled.clear();
+            } while (readSize > 0);
+        }
+    }
+
+    /**
+     * @return fds opened for writing
+     */
+    private static int writeByRandomAccessFiles(File file, List<Segment> arrivals) throws IOException {
+        RandomAccessFile[] files = new RandomAccessFile[RANGE_COUNT];
+        long[] filePointers = new long[RANGE_COUNT];
+        int fds = openFds();
+        try {
+            for (int i = 0; i < RANGE_COUNT; i++) {
+                files[i] = new RandomAccessFile(file, "rw");
+                filePointers[i] = -1;
+            }
+            fds = openFds() - fds;
+            for (Segment segment : arrivals) {
+                RandomAccessFile raf = files[segment.tid];
+                if (filePointers[segment.tid] != segment.startPos) {
+                    raf.seek(segment.startPos);
+                }
+                raf.write(segment.buffer, 0, segment.readSize);
+                filePointers[segment.tid] = segment.startPos + segment.readSize;
+            }
+            return fds;
+        } finally {
+            for (RandomAccessFile raf : files) {
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return fds opened for writing
+     */
+    private static int writeBySegmentWriter(File file, List<Segment> arrivals) throws IOException {
+        int fds = openFds();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            SegmentWriter writer = new SegmentWriter(raf.getChannel(), BATCH);
+            fds = openFds() - fds;
+            List<Segment> batch = new ArrayList<>(BATCH);
+            for (int i = 0; i < arrivals.size(); i += BATCH) {
+                batch.addAll(arrivals.subList(i, Math.min(i + BATCH, arrivals.size())));
+                writer.write(batch);
+                batch.clear();
+            }
+            return fds;
+        }
+    }
+
+    private static int openFds() {
+        String[] fds = new File("/proc/self/fd").list();
+        Assert.assertNotNull(fds);
+        return fds.length;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        Assert.assertEquals(expected.length(), actual.length());
+        byte[] expectedBytes = new byte[SEGMENT_SIZE];
+        byte[] actualBytes = new byte[SEGMENT_SIZE];
+        try (RandomAccessFile expectedFile = new RandomAccessFile(expected, "r");
+             RandomAccessFile actualFile = new RandomAccessFile(actual, "r")) {
+            for (long left = expected.length(); left > 0; left -= SEGMENT_SIZE) {
+                expectedFile.readFully(expectedBytes);
+                actualFile.readFully(actualBytes);
+                Assert.assertArrayEquals(expectedBytes, actualBytes);
+            }
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,58 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands of many tasks, each busy for a while like a binder call,
+ * on one shard (the old message thread) against the default shard count.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShardedExecutorBenchmark {
+    private static final int TASK_COUNT = 1000;
+    private static final int COMMANDS_PER_TASK = 20;
+    private static final long WORK_NANOS = 20_000;
+
+    /**
+     * Shards run on their own threads, so with n cores they should get at least
+     * half of the n-fold throughput of one shard, where n is capped by the shard count.
+     */
+    @Test
+    public void throughputScalesWithCores() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Assume.assumeTrue(cores >= 2);
+        int shardCount = Configuration.DEFAULT_TASK_SHARD_COUNT;
+        // warm up
+        measure(new ShardedExecutor("warm-up", shardCount));
+        double single = measure(new ShardedExecutor("bench-1", 1));
+        double sharded = measure(new ShardedExecutor("bench-" + shardCount, shardCount));
+        double expected = single * Math.min(cores, shardCount) / 2;
+        Assert.assertTrue(String.format("cores = %d, 1 shard: %.0f commands/s, %d shards: %.0f commands/s",
+                cores, single, shardCount, sharded), sharded >= expected);
+    }
+
+    private static double measure(ShardedExecutor executor) throws InterruptedException {
+        int total = TASK_COUNT * COMMANDS_PER_TASK;
+        CountDownLatch done = new CountDownLatch(total);
+        long start = System.nanoTime();
+        for (int c = 0; c < COMMANDS_PER_TASK; c++) {
+            for (long id = 1; id <= TASK_COUNT; id++) {
+                executor.execute(id, () -> {
+                    long end = System.nanoTime() + WORK_NANOS;
+                    //noinspection StatementWithEmptyBody
+                    while (System.nanoTime() < end) {
+                    }
+                    done.countDown();
+                });
+            }
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        return total / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,43 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With speculative connect, the pivot body is read while other ranges connect in their readers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SpeculativeConnectTest {
+    private static final int RANGE = 1 << 20;
+
+    @Test
+    public void readPivotWhileRangesConnect() throws InterruptedException, IOException {
+        MemoryDownloads downloads = MemoryDownloads.get();
+        String url = downloads.put(4 * RANGE);
+        ScriptedTransport.Gate pivot = downloads.scripts.hold(url, 0, RANGE / 2);
+        ScriptedTransport.Gate second = downloads.scripts.holdConnect(url, RANGE);
+        ScriptedTransport.Gate third = downloads.scripts.holdConnect(url, 2 * RANGE);
+        // the first connect of the last range fails, its reader retries
+        ScriptedTransport.Failure failure = downloads.scripts.fail(url, 3 * RANGE, 503, 1);
+        MemoryDownloads.Listener listener = new MemoryDownloads.Listener();
+        DownloadInfo downloadInfo = downloads.submit(url, 4, listener);
+
+        Assert.assertTrue(second.awaitBlocked(10, TimeUnit.SECONDS));
+        Assert.assertTrue(third.awaitBlocked(10, TimeUnit.SECONDS));
+        // half of the pivot body is read before the held ranges are connected
+        Assert.assertTrue(pivot.awaitBlocked(10, TimeUnit.SECONDS));
+
+        pivot.release();
+        second.release();
+        third.release();
+        Assert.assertTrue("state = " + listener.lastState, listener.finished.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(failure.isDone());
+        downloads.assertContent(downloadInfo);
+    }
+}
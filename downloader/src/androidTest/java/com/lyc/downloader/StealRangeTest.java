@@ -0,0 +1,103 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import com.lyc.downloader.db.DownloadThreadInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection which has finished its range steals the second half of the largest remaining range,
+ * until halves get smaller than max(min range size, max buffer); min range size is never below
+ * max buffer, so both are {@link MemoryDownloads#MIN_RANGE_SIZE} here.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StealRangeTest {
+    private static final int RANGE = 1 << 20;
+    private static final int MIN = (int) MemoryDownloads.MIN_RANGE_SIZE;
+
+    @Test
+    public void splitLargestRemainingRange() throws InterruptedException, IOException {
+        MemoryDownloads downloads = MemoryDownloads.get();
+        DownloadManager downloadManager = downloads.downloadManager;
+        String url = downloads.put(3 * RANGE);
+        // range 0 reads nothing, range 1 stops at its half, range 2 waits for them before its end
+        ScriptedTransport.Gate first = downloads.scripts.hold(url, 0, 0);
+        ScriptedTransport.Gate second = downloads.scripts.hold(url, RANGE, RANGE / 2);
+        ScriptedTransport.Gate third = downloads.scripts.hold(url, 2 * RANGE, RANGE - MIN);
+        MemoryDownloads.Listener listener = new MemoryDownloads.Listener();
+        DownloadInfo downloadInfo = downloads.submit(url, 3, listener);
+        long id = downloadInfo.getId();
+        Assert.assertTrue(second.awaitBlocked(10, TimeUnit.SECONDS));
+        Assert.assertTrue(third.awaitBlocked(10, TimeUnit.SECONDS));
+        third.release();
+
+        // each steal is persisted as a new row
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ranges(downloadManager, id).size() < 10) {
+            Assert.assertTrue("ranges = " + ranges(downloadManager, id), System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+        downloadManager.pause(id);
+        while (listener.lastState != DownloadTask.PAUSED) {
+            Assert.assertTrue("state = " + listener.lastState, System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+
+        List<DownloadThreadInfo> ranges = ranges(downloadManager, id);
+        // 1MB left in range 0 against 512KB in range 1
+        DownloadThreadInfo firstStolen = null;
+        for (DownloadThreadInfo range : ranges) {
+            if (range.getTid() == 3) {
+                firstStolen = range;
+            }
+        }
+        Assert.assertNotNull(firstStolen);
+        Assert.assertEquals(RANGE / 2, firstStolen.getStartPosition());
+        Assert.assertEquals(RANGE / 2, firstStolen.getTotalSize());
+
+        // halves are stolen down to the threshold; what's left in a held range is below twice of it
+        long[][] expected = {
+                {0, MIN, 0},
+                {MIN, MIN, MIN},
+                {2 * MIN, 2 * MIN, 2 * MIN},
+                {4 * MIN, 4 * MIN, 4 * MIN},
+                {RANGE / 2, RANGE / 2, RANGE / 2},
+                {RANGE, RANGE / 2 + MIN, RANGE / 2},
+                {RANGE + RANGE / 2 + MIN, MIN, MIN},
+                {RANGE + RANGE / 2 + 2 * MIN, 2 * MIN, 2 * MIN},
+                {RANGE + RANGE / 2 + 4 * MIN, 4 * MIN, 4 * MIN},
+                {2 * RANGE, RANGE, RANGE},
+        };
+        Assert.assertEquals(ranges.toString(), expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            DownloadThreadInfo range = ranges.get(i);
+            Assert.assertEquals("start of range " + i, expected[i][0], range.getStartPosition());
+            Assert.assertEquals("size of range " + i, expected[i][1], range.getTotalSize());
+            Assert.assertEquals("downloaded of range " + i, expected[i][2], range.getDownloadedSize());
+        }
+
+        first.release();
+        second.release();
+        downloadManager.startOrResume(id, false);
+        Assert.assertTrue("state = " + listener.lastState, listener.finished.await(10, TimeUnit.SECONDS));
+        downloads.assertContent(downloadInfo);
+    }
+
+    /**
+     * @return persisted ranges of the task by start position
+     */
+    private static List<DownloadThreadInfo> ranges(DownloadManager downloadManager, long id) {
+        List<DownloadThreadInfo> ranges = new ArrayList<>(
+                downloadManager.daoSession.getDownloadThreadInfoDao()._queryDownloadInfo_DownloadThreadInfos(id));
+        Collections.sort(ranges, (o1, o2) -> Long.compare(o1.getStartPosition(), o2.getStartPosition()));
+        return ranges;
+    }
+}
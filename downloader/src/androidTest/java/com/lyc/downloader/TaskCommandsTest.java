@@ -0,0 +1,149 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.lyc.downloader.db.DownloadInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Real tasks are paused, resumed, canceled and deleted by concurrent commanders while they download.
+ * Commands must neither block nor deadlock, tasks left finish with right contents,
+ * and the progress table ends with the settled state of each task.
+ * A running task is paused within {@link #MAX_PAUSE_MS}, as the run settles without waiting for its stoppers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskCommandsTest {
+    private static final int TASK_COUNT = 8;
+    private static final int FILE_SIZE = 2 << 20;
+    // a task downloads for seconds unless it's paused
+    private static final long SPEED_LIMIT = 1 << 20;
+    private static final int COMMANDER_COUNT = 4;
+    private static final long DURATION_MS = 2000;
+    private static final long MAX_PAUSE_MS = 500;
+
+    @Test
+    public void concurrentCommands() throws InterruptedException, IOException {
+        MemoryDownloads downloads = MemoryDownloads.get();
+        DownloadManager downloadManager = downloads.downloadManager;
+        List<DownloadInfo> downloadInfoList = new ArrayList<>();
+        List<MemoryDownloads.Listener> listeners = new ArrayList<>();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            MemoryDownloads.Listener listener = new MemoryDownloads.Listener();
+            listeners.add(listener);
+            downloadInfoList.add(downloads.submit(downloads.put(FILE_SIZE), 0, SPEED_LIMIT, listener));
+        }
+
+        Set<Long> removed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        List<Thread> commanders = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+        for (int c = 0; c < COMMANDER_COUNT; c++) {
+            Random random = new Random(c);
+            commanders.add(new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    long id = downloadInfoList.get(random.nextInt(TASK_COUNT)).getId();
+                    int command = random.nextInt(100);
+                    if (command < 45) {
+                        downloadManager.pause(id);
+                    } else if (command < 97) {
+                        downloadManager.startOrResume(id, false);
+                    } else if (removed.size() < TASK_COUNT / 2) {
+                        if (removed.add(id)) {
+                            if (command < 99) {
+                                downloadManager.cancel(id);
+                            } else {
+                                downloadManager.delete(id, true);
+                            }
+                        }
+                    }
+                    sleep(random.nextInt(5));
+                }
+            }));
+        }
+        for (Thread commander : commanders) {
+            commander.start();
+        }
+        for (Thread commander : commanders) {
+            commander.join(DURATION_MS + TimeUnit.SECONDS.toMillis(5));
+            Assert.assertFalse("commands blocked", commander.isAlive());
+        }
+
+        // from pause(id) to the PAUSED callback of each running task
+        for (int i = 0; i < TASK_COUNT; i++) {
+            long id = downloadInfoList.get(i).getId();
+            if (removed.contains(id)) {
+                continue;
+            }
+            MemoryDownloads.Listener listener = listeners.get(i);
+            long runDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (listener.lastState != DownloadTask.RUNNING && listener.finished.getCount() > 0) {
+                Assert.assertTrue("task#" + id + " state = " + listener.lastState, System.nanoTime() < runDeadline);
+                downloadManager.startOrResume(id, false);
+                sleep(10);
+            }
+            if (listener.finished.getCount() == 0) {
+                continue;
+            }
+            long start = System.nanoTime();
+            downloadManager.pause(id);
+            long pauseDeadline = start + TimeUnit.SECONDS.toNanos(5);
+            while (listener.pausedNanos < start && listener.finished.getCount() > 0) {
+                Assert.assertTrue("task#" + id + " state = " + listener.lastState, System.nanoTime() < pauseDeadline);
+                sleep(1);
+            }
+            if (listener.finished.getCount() == 0) {
+                continue;
+            }
+            long pauseMs = TimeUnit.NANOSECONDS.toMillis(listener.pausedNanos - start);
+            Assert.assertTrue("task#" + id + " paused in " + pauseMs + "ms", pauseMs < MAX_PAUSE_MS);
+        }
+
+        ProgressTable progressTable = downloads.openProgressTable();
+        Assert.assertNotNull(progressTable);
+        ProgressTable.Entry entry = new ProgressTable.Entry();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            DownloadInfo downloadInfo = downloadInfoList.get(i);
+            long id = downloadInfo.getId();
+            if (removed.contains(id)) {
+                continue;
+            }
+            MemoryDownloads.Listener listener = listeners.get(i);
+            downloadManager.setTaskSpeedLimit(id, 0, 1);
+            long finishDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            // a resume is dropped while the task is still stopping
+            while (!listener.finished.await(100, TimeUnit.MILLISECONDS)) {
+                Assert.assertTrue("task#" + id + " state = " + listener.lastState, System.nanoTime() < finishDeadline);
+                downloadManager.startOrResume(id, false);
+            }
+            downloads.assertContent(downloadInfo);
+            // published before the callback, on the same shard
+            Assert.assertTrue(progressTable.read(id, entry));
+            Assert.assertEquals(DownloadTask.FINISH, entry.getState());
+        }
+        // removed tasks leave the table
+        long removeDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (long id : removed) {
+            while (progressTable.read(id, entry)) {
+                Assert.assertTrue("task#" + id + " state = " + entry.getState(), System.nanoTime() < removeDeadline);
+                sleep(10);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // do nothing
+        }
+    }
+}
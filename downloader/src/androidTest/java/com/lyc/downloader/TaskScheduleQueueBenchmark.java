@@ -0,0 +1,37 @@
+package com.lyc.downloader;
+
+import androidx.test.runner.AndroidJUnit4;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static com.lyc.downloader.Configuration.SCHEDULE_SRPT;
+
+/**
+ * Poll and offer of the scheduler stay cheap with a huge waiting queue.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskScheduleQueueBenchmark {
+    private static final long MB = 1 << 20;
+
+    @Test
+    public void logarithmicPoll() {
+        final int size = 200_000;
+        TaskScheduleQueue queue = new TaskScheduleQueue(SCHEDULE_SRPT, 16 * MB);
+        Random random = new Random(7);
+        for (int i = 0; i < size; i++) {
+            queue.offer(i, random.nextInt(3), random.nextInt(2) * random.nextInt(100_000), random.nextInt(64) * MB);
+        }
+        final int rounds = 100_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            long id = queue.poll();
+            queue.offer(id, random.nextInt(3), 0, random.nextInt(64) * MB);
+        }
+        long nanos = (System.nanoTime() - start) / rounds;
+        Assert.assertEquals(size, queue.size());
+        Assert.assertTrue("poll + offer with " + size + " queued tasks: " + nanos + "ns", nanos < 50_000);
+    }
+}
@@ -0,0 +1,175 @@
+package com.lyc.downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical speed limit: global -> task.
+ * <p>
+ * Every task reads through its own {@link Throttle}, whose {@link TokenBucket} is shared
+ * by connections of the task; connections have no bucket of their own. The global rate is split among active tasks by weight;
+ * a task limited below its share gives the rest to others, and a task which hasn't read
+ * for {@link #ACTIVE_WINDOW_NANOS} gives up its share entirely.
+ */
+class BandwidthLimiter {
+    private static final long ACTIVE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // guarded by this
+    private final List<Throttle> activeThrottles = new ArrayList<>();
+    // bytes per second; <= 0 for unlimited
+    private volatile long rate;
+    private volatile long nextRebalanceNanos;
+
+    BandwidthLimiter(long rate) {
+        this.rate = rate;
+    }
+
+    void setRate(long rate) {
+        this.rate = rate;
+        rebalance(System.nanoTime());
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    Throttle newThrottle() {
+        return new Throttle(this);
+    }
+
+    /**
+     * called after bytes are read; blocks until they are allowed
+     *
+     * @return false if interrupted
+     */
+    boolean acquire(Throttle throttle, long bytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (!throttle.active) {
+            join(throttle, now);
+        } else if (now - nextRebalanceNanos >= 0) {
+            rebalance(now);
+        }
+        long wait = throttle.bucket.reserve(bytes, now);
+        // a throttle waiting for tokens is still active
+        throttle.activeUntilNanos = now + wait + ACTIVE_WINDOW_NANOS;
+        if (wait <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized void join(Throttle throttle, long now) {
+        if (!throttle.active) {
+            throttle.active = true;
+            throttle.activeUntilNanos = now + ACTIVE_WINDOW_NANOS;
+            activeThrottles.add(throttle);
+        }
+        rebalance(now);
+    }
+
+    /**
+     * weighted water-filling of global rate among active throttles
+     */
+    private synchronized void rebalance(long now) {
+        nextRebalanceNanos = now + REBALANCE_INTERVAL_NANOS;
+        for (int i = activeThrottles.size() - 1; i >= 0; i--) {
+            Throttle throttle = activeThrottles.get(i);
+            if (now - throttle.activeUntilNanos > 0) {
+                throttle.active = false;
+                activeThrottles.remove(i);
+            }
+        }
+
+        long rate = this.rate;
+        int n = activeThrottles.size();
+        if (rate <= 0) {
+            for (int i = 0; i < n; i++) {
+                Throttle throttle = activeThrottles.get(i);
+                throttle.bucket.setRate(throttle.limit, now);
+            }
+            return;
+        }
+        long left = rate;
+        boolean[] assigned = new boolean[n];
+        boolean capped = true;
+        while (capped) {
+            capped = false;
+            long weights = 0;
+            for (int i = 0; i < n; i++) {
+                if (!assigned[i]) {
+                    weights += activeThrottles.get(i).weight;
+                }
+            }
+            if (weights == 0) {
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                Throttle throttle = activeThrottles.get(i);
+                if (!assigned[i] && throttle.limit > 0 && throttle.limit * weights <= left * throttle.weight) {
+                    assigned[i] = true;
+                    capped = true;
+                    left -= throttle.limit;
+                    throttle.bucket.setRate(throttle.limit, now);
+                }
+            }
+            if (!capped) {
+                for (int i = 0; i < n; i++) {
+                    if (!assigned[i]) {
+                        Throttle throttle = activeThrottles.get(i);
+                        throttle.bucket.setRate(Math.max(1, left * throttle.weight / weights), now);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Limiter of one task; shared by all connections of the task.
+     */
+    static class Throttle {
+        private final BandwidthLimiter limiter;
+        private final TokenBucket bucket = new TokenBucket(0, System.nanoTime());
+        // bytes per second; <= 0 for no limit of its own
+        private volatile long limit;
+        private volatile int weight = 1;
+        private volatile boolean active;
+        private volatile long activeUntilNanos;
+
+        private Throttle(BandwidthLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        void setLimit(long limit) {
+            this.limit = limit;
+            limiter.rebalance(System.nanoTime());
+        }
+
+        long getLimit() {
+            return limit;
+        }
+
+        void setWeight(int weight) {
+            this.weight = Math.max(1, weight);
+            limiter.rebalance(System.nanoTime());
+        }
+
+        int getWeight() {
+            return weight;
+        }
+
+        long getRate() {
+            return bucket.getRate();
+        }
+    }
+}
@@ -8,6 +8,8 @@ import android.os.RemoteException;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.utils.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -27,6 +29,8 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     final CountDownLatch countDownLatch = new CountDownLatch(1);
     ServiceConnection downloadServiceConnection;
     final boolean inServerProcess;
+    private final boolean sharedProgressTable;
+    private volatile ProgressTable progressTable;
     private final IDownloadTasksChangeCallback downloadTasksChangeCallback = new IDownloadTasksChangeCallback.Stub() {
         @Override
         public void onNewDownloadTaskArrive(DownloadInfo downloadInfo) {
@@ -68,6 +72,7 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
     BaseServiceManager(Context appContext, Configuration configuration) {
         this.appContext = appContext.getApplicationContext();
         inServerProcess = isInServerProcess();
+        sharedProgressTable = configuration.sharedProgressTable;
         DownloadExecutors.init();
         if (inServerProcess) {
             DownloadManager.init(appContext, configuration);
@@ -78,6 +83,28 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     abstract void connectToService();
 
+    /**
+     * @return null if shared progress table is disabled or the download process has not created it
+     */
+    ProgressTable getProgressTable() {
+        if (!sharedProgressTable) {
+            return null;
+        }
+        if (inServerProcess) {
+            return DownloadManager.instance().progressTable;
+        }
+        ProgressTable progressTable = this.progressTable;
+        if (progressTable == null) {
+            try {
+                progressTable = ProgressTable.open(new File(appContext.getFilesDir(), Constants.PROGRESS_TABLE_FILE_NAME));
+                this.progressTable = progressTable;
+            } catch (IOException e) {
+                // not created yet
+            }
+        }
+        return progressTable;
+    }
+
     abstract void initServiceConnection();
 
     private void waitingForConnection() {
@@ -171,10 +198,16 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
 
     @Override
     public void submit(String url, String path, String filename, ISubmitCallback callback) {
+        submit(url, path, filename, 0, 0, 1, callback);
+    }
+
+    @Override
+    public void submit(String url, String path, String filename, int connectionCount,
+                       long speedLimit, int weight, ISubmitCallback callback) {
         DownloadExecutors.command.execute(() -> {
             waitingForConnection();
             try {
-                downloadService.submit(url, path, filename, callback);
+                downloadService.submit(url, path, filename, connectionCount, speedLimit, weight, callback);
             } catch (RemoteException e) {
                 try {
                     callback.submitFail(e.getMessage());
@@ -185,6 +218,46 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         });
     }
 
+    @Override
+    public void submitAll(List<SubmitRequest> requests, ISubmitAllCallback callback) {
+        DownloadExecutors.command.execute(() -> {
+            waitingForConnection();
+            try {
+                downloadService.submitAll(requests, callback);
+            } catch (RemoteException e) {
+                try {
+                    callback.submitFail(e.getMessage());
+                } catch (RemoteException e1) {
+                    Logger.e("BaseServiceManager", "submitFail", e1);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setTaskSpeedLimit(long id, long speedLimit, int weight) {
+        DownloadExecutors.command.execute(() -> {
+            waitingForConnection();
+            try {
+                downloadService.setTaskSpeedLimit(id, speedLimit, weight);
+            } catch (RemoteException e) {
+                Logger.e("DownloadController", "cannot set task speed limit", e);
+            }
+        });
+    }
+
+    @Override
+    public void setTaskPriority(long id, int priority, long deadline) {
+        DownloadExecutors.command.execute(() -> {
+            waitingForConnection();
+            try {
+                downloadService.setTaskPriority(id, priority, deadline);
+            } catch (RemoteException e) {
+                Logger.e("DownloadController", "cannot set task priority", e);
+            }
+        });
+    }
+
     int getMaxSupportRunningTask() {
         return MAX_SUPPORT_TASK_COUNT;
     }
@@ -352,6 +425,21 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         return null;
     }
 
+    @Override
+    public List<TaskSummary> queryTaskSummaries(int stateMask, long afterId, int limit, int fields) {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            throw new IllegalThreadStateException("this method cannot call in main thread");
+        }
+        waitingForConnection();
+        try {
+            return downloadService.queryTaskSummaries(stateMask, afterId, limit, fields);
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "queryTaskSummaries", e);
+        }
+
+        return null;
+    }
+
     @Override
     public long getSpeedLimit() {
         if (downloadService == null) {
@@ -378,6 +466,20 @@ abstract class BaseServiceManager implements DownloadController, DownloadInfoPro
         });
     }
 
+    @Override
+    public float getSegmentPoolSaturation() {
+        if (downloadService == null) {
+            return 0;
+        }
+        try {
+            return downloadService.getSegmentPoolSaturation();
+        } catch (RemoteException e) {
+            Logger.e(getClass().getSimpleName(), "getSegmentPoolSaturation", e);
+        }
+
+        return 0;
+    }
+
     void updateByConfiguration(Configuration configuration) {
         if (configuration != null) {
             DownloadExecutors.command.execute(() -> {
@@ -0,0 +1,119 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide how many tasks may run at the same time by aggregate throughput, AIMD style.
+ * While running tasks reach the limit and others are waiting, the limit is raised by one;
+ * if the next window doesn't show noticeably more throughput, the link is saturated,
+ * so the limit before raising is cut by a factor and held for a few windows before probing again.
+ * <p>
+ * Bytes are reported by progress watchers of all tasks; windows are only run in message thread.
+ */
+class ConcurrencyController {
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // another task must add at least half of what a running task gets on average
+    private static final double MIN_SHARE = 0.5;
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final int HOLD_WINDOWS = 5;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private long windowStartNanos = -1;
+    private long windowStartBytes;
+    // window right after the limit is raised is skipped: new task is still connecting
+    private boolean skipWindow;
+    private double bpsBeforeIncrease = -1;
+    private int holdWindows;
+
+    ConcurrencyController(int limit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        setLimit(limit);
+    }
+
+    /**
+     * @param bytes downloaded by a task since its last report
+     */
+    void onBytes(long bytes) {
+        if (bytes > 0) {
+            this.bytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * @param nowNanos {@link System#nanoTime()}
+     * @param canGrow  running tasks reach the limit and others are waiting
+     * @return true if the limit is changed
+     */
+    boolean onWindow(long nowNanos, boolean canGrow) {
+        long total = bytes.get();
+        if (windowStartNanos < 0) {
+            windowStartNanos = nowNanos;
+            windowStartBytes = total;
+            return false;
+        }
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed < WINDOW_NANOS) {
+            return false;
+        }
+        double bps = (total - windowStartBytes) * 1e9 / elapsed;
+        windowStartNanos = nowNanos;
+        windowStartBytes = total;
+        if (skipWindow) {
+            skipWindow = false;
+            return false;
+        }
+        if (bpsBeforeIncrease >= 0) {
+            double before = bpsBeforeIncrease;
+            bpsBeforeIncrease = -1;
+            int limitBefore = limit - 1;
+            if (bps < before + before / limitBefore * MIN_SHARE) {
+                int decreased = Math.max(minLimit, (int) (limitBefore * DECREASE_FACTOR));
+                holdWindows = HOLD_WINDOWS;
+                if (decreased != limit) {
+                    limit = decreased;
+                    return true;
+                }
+                return false;
+            }
+        }
+        if (holdWindows > 0) {
+            holdWindows--;
+            return false;
+        }
+        if (!canGrow || limit >= maxLimit || bps <= 0) {
+            return false;
+        }
+        bpsBeforeIncrease = bps;
+        skipWindow = true;
+        limit++;
+        return true;
+    }
+
+    /**
+     * no task is running; next window starts from scratch
+     */
+    void reset() {
+        windowStartNanos = -1;
+        skipWindow = false;
+        bpsBeforeIncrease = -1;
+    }
+
+    void setLimit(int limit) {
+        this.limit = Math.min(Math.max(limit, minLimit), maxLimit);
+        reset();
+        holdWindows = 0;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+}
@@ -9,12 +9,48 @@ import java.util.concurrent.TimeUnit;
  */
 public final class Configuration {
     public static int MAX_SUPPORT_TASK_COUNT = Math.max(Runtime.getRuntime().availableProcessors(), 1) * 4;
+    /**
+     * waiting tasks start in the order they are enqueued
+     */
+    public static final int SCHEDULE_FIFO = 0;
+    /**
+     * waiting tasks with higher priority start first, then those with the earliest deadline
+     */
+    public static final int SCHEDULE_PRIORITY = 1;
+    /**
+     * like {@link #SCHEDULE_PRIORITY}, then small files with the fewest remaining bytes start first,
+     * which lowers the mean time tasks take to finish
+     */
+    public static final int SCHEDULE_SRPT = 2;
     public static int DEFAULT_MAX_RUNNING_TASK = Math.min(MAX_SUPPORT_TASK_COUNT, 4);
     public static boolean DEFAULT_ALLOW_DOWNLOAD = true;
     public static boolean DEFAULT_AVOID_FRAME_DROP = true;
     public static long DEFAULT_SEND_MESSAGE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(333);
     public static int DEFAULT_SPEED_LIMIT = 0;
     public static boolean DEFAULT_MULTI_PROCESS = true;
+    public static boolean DEFAULT_SHARED_PROGRESS_TABLE = false;
+    public static int DEFAULT_MAX_CONNECTION_COUNT = 8;
+    public static long DEFAULT_MIN_RANGE_SIZE = 1 << 19;
+    public static int DEFAULT_SEGMENT_THREAD_BUDGET = Math.max(Runtime.getRuntime().availableProcessors(), 2) * 8;
+    public static int DEFAULT_SEGMENT_MAX_THREADS = DEFAULT_SEGMENT_THREAD_BUDGET * 2;
+    public static int DEFAULT_TASK_SHARD_COUNT = Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 2), 8);
+    public static long DEFAULT_SEGMENT_POOL_SIZE = Math.min(Runtime.getRuntime().maxMemory() / 32, 16 << 20);
+    public static boolean DEFAULT_DIRECT_BUFFER = false;
+    public static int DEFAULT_MIN_PIPELINE_DEPTH = 2;
+    public static int DEFAULT_MAX_PIPELINE_DEPTH = 8;
+    public static boolean DEFAULT_PROGRESS_JOURNAL = false;
+    public static boolean DEFAULT_SPECULATIVE_CONNECT = false;
+    public static long DEFAULT_CONNECT_TIMEOUT = 10_000;
+    public static long DEFAULT_READ_TIMEOUT = 10_000;
+    public static int DEFAULT_MAX_IDLE_CONNECTIONS = DEFAULT_MAX_CONNECTION_COUNT;
+    public static long DEFAULT_KEEP_ALIVE = TimeUnit.MINUTES.toMillis(5);
+    public static int DEFAULT_SOCKET_RECEIVE_BUFFER_SIZE = 0;
+    public static boolean DEFAULT_HTTP_LOGGING = false;
+    public static int DEFAULT_SCHEDULE_POLICY = SCHEDULE_FIFO;
+    public static long DEFAULT_SMALL_FILE_SIZE = 16 << 20;
+    public static boolean DEFAULT_ADAPTIVE_RUNNING_TASK = false;
+    public static int DEFAULT_MIN_ADAPTIVE_RUNNING_TASK = 1;
+    public static int DEFAULT_MAX_ADAPTIVE_RUNNING_TASK = MAX_SUPPORT_TASK_COUNT;
 
 
     final int maxRunningTask;
@@ -23,14 +59,68 @@ public final class Configuration {
     final boolean avoidFrameDrop;
     final long sendMessageIntervalNanos;
     final boolean multiProcess;
+    final boolean sharedProgressTable;
+    final int maxConnectionCount;
+    final long minRangeSize;
+    final int segmentThreadBudget;
+    final int segmentMaxThreads;
+    final long segmentPoolSize;
+    final boolean directBuffer;
+    final int minPipelineDepth;
+    final int maxPipelineDepth;
+    final boolean progressJournal;
+    final boolean speculativeConnect;
+    final long connectTimeoutMillis;
+    final long readTimeoutMillis;
+    final int maxIdleConnections;
+    final long keepAliveMillis;
+    final int socketReceiveBufferSize;
+    final boolean httpLogging;
+    final int schedulePolicy;
+    final long smallFileSize;
+    final boolean adaptiveRunningTask;
+    final int minAdaptiveRunningTask;
+    final int maxAdaptiveRunningTask;
+    // null to use OkHttpTransport
+    final DownloadTransport transport;
 
-    private Configuration(int maxRunningTask, long speedLimit, boolean allowDownload, boolean avoidFrameDrop, long sendMessageIntervalNanos, boolean multiProcess) {
+    private Configuration(int maxRunningTask, long speedLimit, boolean allowDownload, boolean avoidFrameDrop, long sendMessageIntervalNanos, boolean multiProcess,
+                          boolean sharedProgressTable, int maxConnectionCount, long minRangeSize, int segmentThreadBudget,
+                          int segmentMaxThreads, long segmentPoolSize, boolean directBuffer, int minPipelineDepth,
+                          int maxPipelineDepth, boolean progressJournal, boolean speculativeConnect,
+                          long connectTimeoutMillis, long readTimeoutMillis, int maxIdleConnections, long keepAliveMillis,
+                          int socketReceiveBufferSize, boolean httpLogging, int schedulePolicy, long smallFileSize,
+                          boolean adaptiveRunningTask, int minAdaptiveRunningTask, int maxAdaptiveRunningTask,
+                          DownloadTransport transport) {
         this.maxRunningTask = maxRunningTask;
         this.speedLimit = speedLimit;
         this.allowDownload = allowDownload;
         this.avoidFrameDrop = avoidFrameDrop;
         this.sendMessageIntervalNanos = sendMessageIntervalNanos;
         this.multiProcess = multiProcess;
+        this.sharedProgressTable = sharedProgressTable;
+        this.maxConnectionCount = maxConnectionCount;
+        this.minRangeSize = minRangeSize;
+        this.segmentThreadBudget = segmentThreadBudget;
+        this.segmentMaxThreads = segmentMaxThreads;
+        this.segmentPoolSize = segmentPoolSize;
+        this.directBuffer = directBuffer;
+        this.minPipelineDepth = minPipelineDepth;
+        this.maxPipelineDepth = maxPipelineDepth;
+        this.progressJournal = progressJournal;
+        this.speculativeConnect = speculativeConnect;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveMillis = keepAliveMillis;
+        this.socketReceiveBufferSize = socketReceiveBufferSize;
+        this.httpLogging = httpLogging;
+        this.schedulePolicy = schedulePolicy;
+        this.smallFileSize = smallFileSize;
+        this.adaptiveRunningTask = adaptiveRunningTask;
+        this.minAdaptiveRunningTask = minAdaptiveRunningTask;
+        this.maxAdaptiveRunningTask = maxAdaptiveRunningTask;
+        this.transport = transport;
     }
 
     public static class Builder {
@@ -40,6 +130,29 @@ public final class Configuration {
         private boolean avoidFrameDrop = DEFAULT_AVOID_FRAME_DROP;
         private long sendMessageIntervalNanos = DEFAULT_SEND_MESSAGE_INTERVAL;
         private boolean multiProcess = DEFAULT_MULTI_PROCESS;
+        private boolean sharedProgressTable = DEFAULT_SHARED_PROGRESS_TABLE;
+        private int maxConnectionCount = DEFAULT_MAX_CONNECTION_COUNT;
+        private long minRangeSize = DEFAULT_MIN_RANGE_SIZE;
+        private int segmentThreadBudget = DEFAULT_SEGMENT_THREAD_BUDGET;
+        private int segmentMaxThreads = DEFAULT_SEGMENT_MAX_THREADS;
+        private long segmentPoolSize = DEFAULT_SEGMENT_POOL_SIZE;
+        private boolean directBuffer = DEFAULT_DIRECT_BUFFER;
+        private int minPipelineDepth = DEFAULT_MIN_PIPELINE_DEPTH;
+        private int maxPipelineDepth = DEFAULT_MAX_PIPELINE_DEPTH;
+        private boolean progressJournal = DEFAULT_PROGRESS_JOURNAL;
+        private boolean speculativeConnect = DEFAULT_SPECULATIVE_CONNECT;
+        private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT;
+        private long readTimeoutMillis = DEFAULT_READ_TIMEOUT;
+        private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+        private long keepAliveMillis = DEFAULT_KEEP_ALIVE;
+        private int socketReceiveBufferSize = DEFAULT_SOCKET_RECEIVE_BUFFER_SIZE;
+        private boolean httpLogging = DEFAULT_HTTP_LOGGING;
+        private int schedulePolicy = DEFAULT_SCHEDULE_POLICY;
+        private long smallFileSize = DEFAULT_SMALL_FILE_SIZE;
+        private boolean adaptiveRunningTask = DEFAULT_ADAPTIVE_RUNNING_TASK;
+        private int minAdaptiveRunningTask = DEFAULT_MIN_ADAPTIVE_RUNNING_TASK;
+        private int maxAdaptiveRunningTask = DEFAULT_MAX_ADAPTIVE_RUNNING_TASK;
+        private DownloadTransport transport;
 
         public Builder setMaxRunningTask(int maxRunningTask) {
             this.maxRunningTask = Math.max(0, maxRunningTask);
@@ -71,8 +184,188 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Publish progress of tasks in a memory mapped table which every process of the app can poll
+         * by {@link YCDownloader#getProgressTable()} without IPC, for example at frame time.
+         * {@link DownloadListener#onDownloadProgressUpdate(long, long, long, double)} is not called then
+         * for tasks in the table; listeners are only told about state changes.
+         */
+        public Builder setSharedProgressTable(boolean sharedProgressTable) {
+            this.sharedProgressTable = sharedProgressTable;
+            return this;
+        }
+
+        /**
+         * upper bound of connections a single task may open; tasks start with fewer connections
+         * and add more only while throughput keeps growing
+         */
+        public Builder setMaxConnectionCount(int maxConnectionCount) {
+            this.maxConnectionCount = Math.max(1, maxConnectionCount);
+            return this;
+        }
+
+        /**
+         * a range is never split into pieces smaller than this
+         */
+        public Builder setMinRangeSize(long minRangeSize) {
+            this.minRangeSize = Math.max(1 << 16, minRangeSize);
+            return this;
+        }
+
+        /**
+         * threads shared by segment readers and writers of all tasks;
+         * the writer and the first reader of a running task may go beyond it up to {@link #setSegmentMaxThreads(int)},
+         * other ranges and extra connections are only started while the budget is not used up
+         */
+        public Builder setSegmentThreadBudget(int segmentThreadBudget) {
+            this.segmentThreadBudget = Math.max(2, segmentThreadBudget);
+            return this;
+        }
+
+        /**
+         * hard limit of segment threads; a running task which cannot get threads for its writer and
+         * first reader waits until other tasks release theirs
+         */
+        public Builder setSegmentMaxThreads(int segmentMaxThreads) {
+            this.segmentMaxThreads = Math.max(2, segmentMaxThreads);
+            return this;
+        }
+
+        /**
+         * max bytes of download buffers of all tasks; when it's used up readers get smaller
+         * buffers or wait for buffers to be written
+         */
+        public Builder setSegmentPoolSize(long segmentPoolSize) {
+            this.segmentPoolSize = Math.max(SegmentPool.MAX_SEGMENT_SIZE, segmentPoolSize);
+            return this;
+        }
+
+        /**
+         * Use direct buffers for download buffers. Data is copied from okio to the direct buffer once
+         * and written to file without the extra copy FileChannel makes for heap buffers.
+         * Direct buffers are outside of java heap; they still count in {@link #setSegmentPoolSize(long)}.
+         */
+        public Builder setDirectBuffer(boolean directBuffer) {
+            this.directBuffer = directBuffer;
+            return this;
+        }
+
+        /**
+         * Buffers a connection may fill before it has to wait for the writer.
+         * A connection starts with minDepth buffers and gets one more each time the writer falls behind,
+         * up to maxDepth. Use the same value for both to get a fixed depth.
+         */
+        public Builder setPipelineDepth(int minDepth, int maxDepth) {
+            this.minPipelineDepth = Math.max(1, minDepth);
+            this.maxPipelineDepth = Math.max(this.minPipelineDepth, maxDepth);
+            return this;
+        }
+
+        /**
+         * Keep progress of ranges in a memory mapped journal next to the tmp file instead of
+         * checkpointing it to database while downloading. Progress is recorded on every write and
+         * reconciled with database when the task resumes; database is still written when the task stops.
+         */
+        public Builder setProgressJournal(boolean progressJournal) {
+            this.progressJournal = progressJournal;
+            return this;
+        }
+
+        /**
+         * Start reading the body of the first request as soon as it tells the length and that ranges are supported,
+         * while requests of the other ranges connect in their own readers. Otherwise the task waits until
+         * all ranges are connected before reading, which costs one more round trip before it goes parallel.
+         */
+        public Builder setSpeculativeConnect(boolean speculativeConnect) {
+            this.speculativeConnect = speculativeConnect;
+            return this;
+        }
+
+        /**
+         * timeouts of the default transport; 0 for no timeout
+         */
+        public Builder setTimeout(long connectTimeout, long readTimeout, TimeUnit unit) {
+            this.connectTimeoutMillis = Math.max(0, unit.toMillis(connectTimeout));
+            this.readTimeoutMillis = Math.max(0, unit.toMillis(readTimeout));
+            return this;
+        }
+
+        /**
+         * Idle connections the default transport keeps for reuse. Ranges of a task are usually
+         * requested from the same host, so keep at least as many as {@link #setMaxConnectionCount(int)}.
+         */
+        public Builder setConnectionPool(int maxIdleConnections, long keepAlive, TimeUnit unit) {
+            this.maxIdleConnections = Math.max(0, maxIdleConnections);
+            this.keepAliveMillis = Math.max(1, unit.toMillis(keepAlive));
+            return this;
+        }
+
+        /**
+         * SO_RCVBUF of sockets of the default transport; 0 to leave it to the system
+         */
+        public Builder setSocketReceiveBufferSize(int socketReceiveBufferSize) {
+            this.socketReceiveBufferSize = Math.max(0, socketReceiveBufferSize);
+            return this;
+        }
+
+        /**
+         * log headers of requests and responses of the default transport
+         */
+        public Builder setHttpLogging(boolean httpLogging) {
+            this.httpLogging = httpLogging;
+            return this;
+        }
+
+        /**
+         * Order in which waiting tasks start: {@link #SCHEDULE_FIFO}, {@link #SCHEDULE_PRIORITY}
+         * or {@link #SCHEDULE_SRPT}. Priorities and deadlines are set by {@link YCDownloader#setTaskPriority(long, int, long)}.
+         */
+        public Builder setSchedulePolicy(int schedulePolicy) {
+            this.schedulePolicy = schedulePolicy < SCHEDULE_FIFO || schedulePolicy > SCHEDULE_SRPT
+                    ? SCHEDULE_FIFO : schedulePolicy;
+            return this;
+        }
+
+        /**
+         * with {@link #SCHEDULE_SRPT}, tasks with at most this many bytes left go before larger
+         * or unknown ones, fewest bytes first
+         */
+        public Builder setSmallFileSize(long smallFileSize) {
+            this.smallFileSize = Math.max(0, smallFileSize);
+            return this;
+        }
+
+        /**
+         * Let downloader decide how many tasks run at the same time by aggregate throughput.
+         * Starting from {@link #setMaxRunningTask(int)}, one more task is allowed while it brings noticeably
+         * more throughput, and fewer once the link is saturated, between minCount and maxCount.
+         * Running tasks are not paused when the limit goes down; waiting ones just start later.
+         */
+        public Builder setAdaptiveRunningTask(boolean adaptive, int minCount, int maxCount) {
+            this.adaptiveRunningTask = adaptive;
+            this.minAdaptiveRunningTask = Math.max(1, minCount);
+            this.maxAdaptiveRunningTask = Math.max(this.minAdaptiveRunningTask, maxCount);
+            return this;
+        }
+
+        /**
+         * Replace the default OkHttp transport; options of the default transport are ignored then.
+         * Tasks run in the download process, so with {@link #setMultiProcess(boolean)} the transport
+         * of the configuration installed in that process is used.
+         */
+        public Builder setTransport(DownloadTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
         public Configuration build() {
-            return new Configuration(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos, multiProcess);
+            return new Configuration(maxRunningTask, speedLimit, allowDownload, avoidFrameDrop, sendMessageIntervalNanos, multiProcess,
+                    sharedProgressTable, maxConnectionCount, minRangeSize, segmentThreadBudget,
+                    Math.max(segmentThreadBudget, segmentMaxThreads), segmentPoolSize,
+                    directBuffer, minPipelineDepth, maxPipelineDepth, progressJournal, speculativeConnect,
+                    connectTimeoutMillis, readTimeoutMillis, maxIdleConnections, keepAliveMillis,
+                    socketReceiveBufferSize, httpLogging, schedulePolicy, smallFileSize,
+                    adaptiveRunningTask, minAdaptiveRunningTask, maxAdaptiveRunningTask, transport);
         }
     }
 }
@@ -0,0 +1,87 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decide when a task should open one more connection.
+ * Throughput is measured in fixed windows; a connection is added only while
+ * the last added one has improved throughput noticeably. Once adding a connection
+ * does not help (server or network is the bottleneck), the count is frozen.
+ */
+class ConnectionCountController {
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // throughput must grow by at least 10% to be worth another connection
+    private static final double MIN_GAIN = 0.1;
+
+    private final int maxCount;
+    private int count;
+    private boolean frozen;
+    // window right after a connection is added is skipped: new connection is still handshaking
+    private boolean skipWindow;
+    private long windowStartNanos = -1;
+    private long windowStartSize;
+    private double lastBps = -1;
+    private double bpsBeforeAdd = -1;
+
+    ConnectionCountController(int count, int maxCount) {
+        this.count = count;
+        this.maxCount = maxCount;
+        this.frozen = count >= maxCount;
+    }
+
+    /**
+     * @param downloadedSize total downloaded bytes of the task
+     * @param nowNanos       {@link System#nanoTime()}
+     * @return true if caller should try to add a connection now,
+     * and then report result by {@link #onConnectionAdded(boolean)}
+     */
+    boolean onProgress(long downloadedSize, long nowNanos) {
+        if (frozen) {
+            return false;
+        }
+        if (windowStartNanos < 0) {
+            windowStartNanos = nowNanos;
+            windowStartSize = downloadedSize;
+            return false;
+        }
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed < WINDOW_NANOS) {
+            return false;
+        }
+        double bps = (downloadedSize - windowStartSize) * 1e9 / elapsed;
+        windowStartNanos = nowNanos;
+        windowStartSize = downloadedSize;
+        if (skipWindow) {
+            skipWindow = false;
+            return false;
+        }
+        lastBps = bps;
+        if (bpsBeforeAdd >= 0 && bps < bpsBeforeAdd * (1 + MIN_GAIN)) {
+            frozen = true;
+            return false;
+        }
+        return true;
+    }
+
+    void onConnectionAdded(boolean added) {
+        if (!added) {
+            // no range is large enough to split any more
+            frozen = true;
+            return;
+        }
+        count++;
+        bpsBeforeAdd = lastBps;
+        skipWindow = true;
+        if (count >= maxCount) {
+            frozen = true;
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+}
@@ -9,4 +9,5 @@ public class Constants {
     static final String TMP_FILE_SUFFIX = ".ycd";
     static final String UNKNOWN_FILE_NAME = "unknown_filename";
     static final String DEBUG_TAG = "Yuchuan-Downloader";
+    static final String PROGRESS_TABLE_FILE_NAME = "yc_progress_table";
 }
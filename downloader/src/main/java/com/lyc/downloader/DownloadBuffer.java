@@ -8,33 +8,106 @@ import java.util.concurrent.TimeUnit;
  * @author liuyuchuan
  * @date 2019/4/7
  * @email kevinliu.sir@qq.com
+ * <p>
+ * Free segments of one reader. Filled segments go to a queue shared by all readers of a task,
+ * which is drained by the single writer of the task; written segments return to their owner.
+ * <p>
+ * Segments are leased from {@link SegmentPool} lazily and go back to the pool
+ * when the reader is finished, so stopped tasks hold no buffer.
+ * <p>
+ * A reader holds minDepth segments at first. Each time it would block because all its segments
+ * are waiting to be written, it leases one more, up to maxDepth; so a disk hiccup doesn't
+ * stall the network right away.
  */
 class DownloadBuffer {
     private final BlockingQueue<Segment> readBufferQueue;
     private final BlockingQueue<Segment> writeBufferQueue;
+    private final SegmentPool segmentPool;
+    private final int bufferSize;
+    private final int minDepth;
+    private final int maxDepth;
+    private final PipelineStats pipelineStats;
+    // guarded by this
+    private boolean active;
+    private int leased;
+    private int depth;
 
-    DownloadBuffer(int bufferSize) {
-        readBufferQueue = new ArrayBlockingQueue<>(2);
-        writeBufferQueue = new ArrayBlockingQueue<>(2);
-        for (int i = 0; i < 2; i++) {
-            writeBufferQueue.add(new Segment(bufferSize));
+    DownloadBuffer(int bufferSize, BlockingQueue<Segment> readBufferQueue, SegmentPool segmentPool,
+                   int minDepth, int maxDepth, PipelineStats pipelineStats) {
+        this.bufferSize = bufferSize;
+        this.readBufferQueue = readBufferQueue;
+        this.segmentPool = segmentPool;
+        this.minDepth = Math.max(minDepth, 1);
+        this.maxDepth = Math.max(maxDepth, this.minDepth);
+        this.pipelineStats = pipelineStats;
+        depth = this.minDepth;
+        writeBufferQueue = new ArrayBlockingQueue<>(this.maxDepth);
+    }
+
+    /**
+     * called before reader starts
+     */
+    synchronized void open() {
+        active = true;
+    }
+
+    /**
+     * called after reader is finished; segments not written yet go back to pool when written
+     */
+    void close() {
+        synchronized (this) {
+            active = false;
+            depth = minDepth;
+        }
+        Segment segment;
+        while ((segment = writeBufferQueue.poll()) != null) {
+            recycle(segment);
         }
     }
 
     Segment availableWriteSegment(long timeout) throws InterruptedException {
-        if (timeout <= 0) {
-            return writeBufferQueue.take();
-        } else {
-            return writeBufferQueue.poll(timeout, TimeUnit.SECONDS);
+        Segment segment = writeBufferQueue.poll();
+        if (segment != null) {
+            return segment;
+        }
+        boolean lease;
+        synchronized (this) {
+            if (active && leased == depth && depth < maxDepth) {
+                // all segments are waiting for writer
+                depth++;
+                pipelineStats.onDepthGrown();
+            }
+            lease = active && leased < depth;
+            if (lease) {
+                leased++;
+            }
+        }
+        if (lease) {
+            try {
+                segment = segmentPool.lease(bufferSize, this, timeout, TimeUnit.SECONDS);
+            } finally {
+                if (segment == null) {
+                    synchronized (this) {
+                        leased--;
+                    }
+                }
+            }
+            return segment;
+        }
+        long start = System.nanoTime();
+        try {
+            if (timeout <= 0) {
+                return writeBufferQueue.take();
+            } else {
+                return writeBufferQueue.poll(timeout, TimeUnit.SECONDS);
+            }
+        } finally {
+            pipelineStats.onReaderBlocked(System.nanoTime() - start);
         }
     }
 
-    Segment availableReadSegment(long timeout) throws InterruptedException {
-        if (timeout <= 0) {
-            return readBufferQueue.take();
-        } else {
-            return readBufferQueue.poll(timeout, TimeUnit.SECONDS);
-        }
+    synchronized int getDepth() {
+        return depth;
     }
 
     void enqueueReadSegment(Segment segment) {
@@ -42,7 +115,19 @@ class DownloadBuffer {
     }
 
     void enqueueWriteSegment(Segment segment) {
-        writeBufferQueue.offer(segment);
+        synchronized (this) {
+            if (active) {
+                writeBufferQueue.offer(segment);
+                return;
+            }
+        }
+        recycle(segment);
     }
 
+    private void recycle(Segment segment) {
+        synchronized (this) {
+            leased--;
+        }
+        segmentPool.recycle(segment);
+    }
 }
@@ -1,5 +1,7 @@
 package com.lyc.downloader;
 
+import java.util.List;
+
 /**
  * Created by Liu Yuchuan on 2019/5/18.
  */
@@ -14,8 +16,37 @@ public interface DownloadController {
 
     void cancel(long id);
 
+    /**
+     * same as {@link #submit(String, String, String, int, long, int, ISubmitCallback)}
+     * with connections decided by throughput, no speed limit of its own and weight 1
+     */
     void submit(String url, String path, String filename, ISubmitCallback callback);
 
+    /**
+     * @param connectionCount connections used by the task; 0 to let downloader decide it by throughput
+     * @param speedLimit      bytes per second of the task; 0 for no limit of its own
+     * @param weight          share of bandwidth against other running tasks; at least 1
+     */
+    void submit(String url, String path, String filename, int connectionCount,
+                long speedLimit, int weight, ISubmitCallback callback);
+
+    /**
+     * submit many tasks in one transaction; callback receives ids of all tasks in the order of requests
+     */
+    void submitAll(List<SubmitRequest> requests, ISubmitAllCallback callback);
+
+    /**
+     * change speed limit and weight of a task; takes effect while it's running
+     */
+    void setTaskSpeedLimit(long id, long speedLimit, int weight);
+
+    /**
+     * change priority and deadline of a task; takes effect when it's waiting to start
+     *
+     * @param deadline ms since epoch; 0 for none
+     */
+    void setTaskPriority(long id, int priority, long deadline);
+
     void delete(long id, boolean deleteFile);
 
     int getMaxRunningTask();
@@ -38,4 +69,9 @@ public interface DownloadController {
 
     // time unit: ms
     void setSendMessageIntervalNanos(long time);
+
+    /**
+     * @return threads used by segment readers and writers / thread budget
+     */
+    float getSegmentPoolSaturation();
 }
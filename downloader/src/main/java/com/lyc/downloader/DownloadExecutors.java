@@ -27,12 +27,27 @@ class DownloadExecutors {
 
     static final Executor io = Executors.newCachedThreadPool();
 
+    // segment readers and writers of all tasks
+    static final SegmentExecutor segment = new SegmentExecutor(Configuration.DEFAULT_SEGMENT_THREAD_BUDGET,
+            Configuration.DEFAULT_SEGMENT_MAX_THREADS);
+
+    // commands and callbacks of tasks, sharded by task id
+    static final ShardedExecutor task = new ShardedExecutor("YCDownloader-Task", Configuration.DEFAULT_TASK_SHARD_COUNT);
+
     static final Executor androidMain = command -> mainHandler.post(command);
 
     static boolean isMessageThread() {
         return Thread.currentThread() == message;
     }
 
+    static void executeDelayed(Executor executor, Runnable runnable, long delayMillis) {
+        if (executor instanceof RunOrPostExecutor) {
+            ((RunOrPostExecutor) executor).executeDelayed(runnable, delayMillis);
+        } else {
+            executor.execute(runnable);
+        }
+    }
+
     static void removeCallback(Executor executor, Runnable runnable) {
         if (executor instanceof RunOrPostExecutor) {
             ((RunOrPostExecutor) executor).handler.removeCallbacks(runnable);
@@ -61,6 +76,16 @@ class DownloadExecutors {
                 return;
             }
 
+            awaitLooperPrepared();
+            handler.post(command);
+        }
+
+        void executeDelayed(Runnable command, long delayMillis) {
+            awaitLooperPrepared();
+            handler.postDelayed(command, delayMillis);
+        }
+
+        private void awaitLooperPrepared() {
             while (countDownLatch.getCount() > 0) {
                 try {
                     countDownLatch.await();
@@ -68,8 +93,6 @@ class DownloadExecutors {
                     // do nothing
                 }
             }
-
-            handler.post(command);
         }
     }
 }
@@ -15,4 +15,13 @@ public interface DownloadInfoProvider {
     List<DownloadInfo> queryDeletedDownloadInfoList();
 
     List<DownloadInfo> queryFinishedDownloadInfoList();
+
+    /**
+     * @param stateMask states to match by {@link TaskSummary#stateMask(int...)}; {@link TaskSummary#ALL_STATES} for any
+     * @param afterId   id of the last task of previous page; 0 for the first page
+     * @param limit     most tasks of the page; at most {@link TaskSummary#MAX_PAGE_SIZE}
+     * @param fields    strings to fill, like {@link TaskSummary#FIELD_URL}
+     * @return tasks with id less than afterId, newest first; fewer than limit if it's the last page
+     */
+    List<TaskSummary> queryTaskSummaries(int stateMask, long afterId, int limit, int fields);
 }
@@ -1,12 +1,13 @@
 package com.lyc.downloader;
 
 import android.annotation.SuppressLint;
+import android.view.Choreographer;
+import androidx.collection.LongSparseArray;
 import com.lyc.downloader.db.DownloadInfo;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,11 +15,28 @@ import java.util.Set;
  * @author liuyuchuan
  * @date 2019-05-10
  * @email kevinliu.sir@qq.com
+ * <p>
+ * Listeners are read from a copy-on-write snapshot, so dispatching takes no lock on listeners.
+ * Progress is kept as the latest value of each task and dispatched once per frame of main thread,
+ * with at most one pending post; slots are reused, so steady progress updates allocate nothing.
  */
 class DownloadListenerDispatcher extends IDownloadCallback.Stub {
+    private static final DownloadListener[] EMPTY_LISTENERS = new DownloadListener[0];
     // if id == null: register for all id
     @SuppressLint("UseSparseArrays")
     private final Map<Long, Set<DownloadListener>> downloadListenerMap = new HashMap<>();
+    // rebuilt from downloadListenerMap on every change
+    private volatile Snapshot snapshot = new Snapshot(EMPTY_LISTENERS, new LongSparseArray<>());
+
+    private final Object progressLock = new Object();
+    // latest progress of tasks; guarded by progressLock
+    private final LongSparseArray<Progress> progressSlots = new LongSparseArray<>();
+    private boolean frameScheduled;
+    // copies of dirty slots; only used in main thread
+    private Progress[] dispatchingProgress = new Progress[16];
+    private final Progress singleProgress = new Progress();
+    private final Choreographer.FrameCallback dispatchProgressCallback = frameTimeNanos -> dispatchProgress();
+    private final Runnable scheduleFrame = () -> Choreographer.getInstance().postFrameCallback(dispatchProgressCallback);
 
     void registerDownloadListener(Long id, DownloadListener downloadListener) {
         synchronized (downloadListenerMap) {
@@ -28,6 +46,7 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
                 downloadListenerMap.put(id, downloadListeners);
             }
             downloadListeners.add(downloadListener);
+            updateSnapshot();
         }
     }
 
@@ -45,6 +64,7 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
                     }
                     downloadListeners.add(downloadListener);
                 }
+                updateSnapshot();
             }
         }
     }
@@ -61,6 +81,7 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
                         downloadListeners.remove(downloadListener);
                     }
                 }
+                updateSnapshot();
             }
         }
     }
@@ -74,6 +95,7 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
                 if (downloadListeners != null) {
                     downloadListeners.remove(downloadListener);
                 }
+                updateSnapshot();
             }
         }
     }
@@ -85,17 +107,18 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
                     value.remove(downloadListener);
                 }
             }
+            updateSnapshot();
         }
     }
 
     @Override
     public void onDownloadConnecting(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadConnecting(id);
             }
         });
@@ -103,25 +126,35 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadProgressUpdate(long id, long total, long cur, double bps) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
-        DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
-                downloadListener.onDownloadProgressUpdate(id, total, cur, bps);
+        synchronized (progressLock) {
+            offerProgress(id, total, cur, bps);
+        }
+    }
+
+    @Override
+    public void onDownloadProgressUpdateBatch(long[] ids, long[] totals, long[] curs, double[] bps) {
+        Snapshot snapshot = this.snapshot;
+        synchronized (progressLock) {
+            for (int i = 0; i < ids.length; i++) {
+                if (snapshot.get(ids[i]).length != 0) {
+                    offerProgress(ids[i], totals[i], curs[i], bps[i]);
+                }
             }
-        });
+        }
     }
 
     @Override
     public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
+        long id = downloadInfo.getId();
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadUpdateInfo(downloadInfo);
             }
         });
@@ -129,12 +162,12 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadError(long id, int code, boolean fatal) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadError(id, code, fatal);
             }
         });
@@ -142,12 +175,13 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadStart(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
+        long id = downloadInfo.getId();
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadStart(downloadInfo);
             }
         });
@@ -155,12 +189,12 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadStopping(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadStopping(id);
             }
         });
@@ -168,12 +202,12 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadPaused(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadPaused(id);
             }
         });
@@ -181,12 +215,12 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadWaiting(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadTaskWait(id);
             }
         });
@@ -194,12 +228,14 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadCanceled(long id) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(id);
-        if (downloadListeners.isEmpty()) {
+        if (snapshot.get(id).length == 0) {
+            removeProgressSlot(id);
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            removeProgressSlot(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadCanceled(id);
             }
         });
@@ -207,29 +243,141 @@ class DownloadListenerDispatcher extends IDownloadCallback.Stub {
 
     @Override
     public void onDownloadFinished(DownloadInfo downloadInfo) {
-        Collection<DownloadListener> downloadListeners = getDispatchListeners(downloadInfo.getId());
-        if (downloadListeners.isEmpty()) {
+        long id = downloadInfo.getId();
+        if (snapshot.get(id).length == 0) {
+            removeProgressSlot(id);
             return;
         }
         DownloadExecutors.androidMain.execute(() -> {
-            for (DownloadListener downloadListener : downloadListeners) {
+            dispatchPendingProgress(id);
+            removeProgressSlot(id);
+            for (DownloadListener downloadListener : snapshot.get(id)) {
                 downloadListener.onDownloadFinished(downloadInfo);
             }
         });
     }
 
-    private Collection<DownloadListener> getDispatchListeners(long id) {
-        synchronized (downloadListenerMap) {
-            LinkedList<DownloadListener> downloadListenerList = new LinkedList<>();
-            Set<DownloadListener> allIdDownloadListeners = downloadListenerMap.get(null);
-            if (allIdDownloadListeners != null) {
-                downloadListenerList.addAll(allIdDownloadListeners);
+    // guarded by progressLock
+    private void offerProgress(long id, long total, long cur, double bps) {
+        Progress progress = progressSlots.get(id);
+        if (progress == null) {
+            progress = new Progress();
+            progress.id = id;
+            progressSlots.put(id, progress);
+        }
+        progress.total = total;
+        progress.cur = cur;
+        progress.bps = bps;
+        progress.dirty = true;
+        if (!frameScheduled) {
+            frameScheduled = true;
+            DownloadExecutors.androidMain.execute(scheduleFrame);
+        }
+    }
+
+    private void removeProgressSlot(long id) {
+        synchronized (progressLock) {
+            progressSlots.remove(id);
+        }
+    }
+
+    /**
+     * called in main thread before other events of the task, so progress never arrives after them
+     */
+    private void dispatchPendingProgress(long id) {
+        Progress progress = singleProgress;
+        synchronized (progressLock) {
+            Progress pending = progressSlots.get(id);
+            if (pending == null || !pending.dirty) {
+                return;
             }
-            Set<DownloadListener> downloadListeners = downloadListenerMap.get(id);
-            if (downloadListeners != null) {
-                downloadListenerList.addAll(downloadListeners);
+            pending.dirty = false;
+            progress.copyFrom(pending);
+        }
+        for (DownloadListener downloadListener : snapshot.get(id)) {
+            downloadListener.onDownloadProgressUpdate(id, progress.total, progress.cur, progress.bps);
+        }
+    }
+
+    // main thread, once per frame
+    private void dispatchProgress() {
+        int count = 0;
+        synchronized (progressLock) {
+            frameScheduled = false;
+            for (int i = 0, s = progressSlots.size(); i < s; i++) {
+                Progress pending = progressSlots.valueAt(i);
+                if (!pending.dirty) {
+                    continue;
+                }
+                pending.dirty = false;
+                if (count == dispatchingProgress.length) {
+                    dispatchingProgress = Arrays.copyOf(dispatchingProgress, count * 2);
+                }
+                Progress progress = dispatchingProgress[count];
+                if (progress == null) {
+                    progress = dispatchingProgress[count] = new Progress();
+                }
+                progress.copyFrom(pending);
+                count++;
+            }
+        }
+        Snapshot snapshot = this.snapshot;
+        for (int i = 0; i < count; i++) {
+            Progress progress = dispatchingProgress[i];
+            for (DownloadListener downloadListener : snapshot.get(progress.id)) {
+                downloadListener.onDownloadProgressUpdate(progress.id, progress.total, progress.cur, progress.bps);
+            }
+        }
+    }
+
+    // guarded by downloadListenerMap
+    private void updateSnapshot() {
+        Set<DownloadListener> allIdDownloadListeners = downloadListenerMap.get(null);
+        DownloadListener[] all = allIdDownloadListeners == null ? EMPTY_LISTENERS
+                : allIdDownloadListeners.toArray(EMPTY_LISTENERS);
+        LongSparseArray<DownloadListener[]> byId = new LongSparseArray<>();
+        for (Map.Entry<Long, Set<DownloadListener>> entry : downloadListenerMap.entrySet()) {
+            Set<DownloadListener> downloadListeners = entry.getValue();
+            if (entry.getKey() == null || downloadListeners == null || downloadListeners.isEmpty()) {
+                continue;
+            }
+            // listeners of all id first
+            DownloadListener[] merged = Arrays.copyOf(all, all.length + downloadListeners.size());
+            int i = all.length;
+            for (DownloadListener downloadListener : downloadListeners) {
+                merged[i++] = downloadListener;
             }
-            return downloadListenerList;
+            byId.put(entry.getKey(), merged);
+        }
+        snapshot = new Snapshot(all, byId);
+    }
+
+    private static class Snapshot {
+        private final DownloadListener[] all;
+        private final LongSparseArray<DownloadListener[]> byId;
+
+        Snapshot(DownloadListener[] all, LongSparseArray<DownloadListener[]> byId) {
+            this.all = all;
+            this.byId = byId;
+        }
+
+        DownloadListener[] get(long id) {
+            return byId.get(id, all);
+        }
+    }
+
+    private static class Progress {
+        long id;
+        long total;
+        long cur;
+        double bps;
+        boolean dirty;
+
+        void copyFrom(Progress progress) {
+            id = progress.id;
+            total = progress.total;
+            cur = progress.cur;
+            bps = progress.bps;
         }
     }
 }
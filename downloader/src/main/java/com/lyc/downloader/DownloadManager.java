@@ -2,28 +2,33 @@ package com.lyc.downloader;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.RemoteException;
 import androidx.annotation.WorkerThread;
-import androidx.collection.LongSparseArray;
 import com.lyc.downloader.db.DaoMaster;
-import com.lyc.downloader.db.DaoMaster.DevOpenHelper;
 import com.lyc.downloader.db.DaoSession;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.db.DownloadInfoDao;
+import com.lyc.downloader.db.DownloadOpenHelper;
 import com.lyc.downloader.utils.Logger;
 import com.lyc.downloader.utils.UniqueDequeue;
-import okhttp3.OkHttpClient;
-import okhttp3.OkHttpClient.Builder;
-import okhttp3.logging.HttpLoggingInterceptor;
-import okhttp3.logging.HttpLoggingInterceptor.Level;
+import org.greenrobot.greendao.query.QueryBuilder;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,22 +42,45 @@ import static com.lyc.downloader.DownloadTask.*;
 class DownloadManager implements DownloadListener, DownloadController, DownloadInfoProvider {
 
     static final String DB_NAME = "yuchuan_downloader_db";
+    // tasks which are not finished or canceled; only they are recovered at startup
+    private static final Integer[] ACTIVE_STATES = {PENDING, CONNECTING, RUNNING, STOPPING, PAUSED, WAITING, ERROR, FATAL_ERROR};
+    // newest first; a restarted task is created again, so ids don't follow created time
+    static final Comparator<DownloadInfo> NEWEST_FIRST = (o1, o2) -> {
+        int result = o2.getCreatedTime().compareTo(o1.getCreatedTime());
+        return result != 0 ? result : o2.getId().compareTo(o1.getId());
+    };
     @SuppressLint("StaticFieldLeak")
     private volatile static DownloadManager instance;
     private static final String TAG = "DownloadManager";
     // for http
-    private final OkHttpClient client;
+    private final DownloadTransport transport;
     final DaoSession daoSession;
-    private final LongSparseArray<DownloadTask> taskTable = new LongSparseArray<>();
-    private final LongSparseArray<DownloadInfo> infoTable = new LongSparseArray<>();
-    private final LongSparseArray<Long> lastSendMessageTime = new LongSparseArray<>();
+    final SegmentPool segmentPool;
+    final BandwidthLimiter bandwidthLimiter;
+    final ProgressCheckpointer<PersistUtil.Checkpoint> progressCheckpointer;
+    // null if progress is only sent by callbacks
+    final ProgressTable progressTable;
+    final FileNameRegistry fileNameRegistry = new FileNameRegistry(Constants.TMP_FILE_SUFFIX);
+    // null if running task count is fixed
+    final ConcurrencyController concurrencyController;
+    private final Runnable adjustConcurrency = this::adjustConcurrency;
+    // only accessed in message thread
+    private boolean concurrencyWindowScheduled;
+    // accessed by shards of tasks and the scheduler
+    private final Map<Long, DownloadTask> taskTable = new ConcurrentHashMap<>();
+    private final Map<Long, DownloadInfo> infoTable = new ConcurrentHashMap<>();
+    // latest progress of tasks not sent yet
+    private final Map<Long, Progress> pendingProgress = new ConcurrentHashMap<>();
+    private final Runnable sendProgressBatch = this::sendProgressBatch;
+    private final AtomicBoolean progressBatchScheduled = new AtomicBoolean();
+    // queues of scheduler; only accessed in message thread
     private final Deque<Long> runningTasksId = new UniqueDequeue<>();
-    private final Deque<Long> waitingTasksId = new UniqueDequeue<>();
+    private final TaskScheduleQueue waitingTasks;
     private final Deque<Long> errorTasksId = new UniqueDequeue<>();
     private final Deque<Long> pausingTasksId = new UniqueDequeue<>();
     private final Lock downloadCallbackSetLock = new ReentrantLock();
     private final Lock downloadTasksChangeCallbackSetLock = new ReentrantLock();
-    private IDownloadCallback downloadCallback;
+    private volatile IDownloadCallback downloadCallback;
     private IDownloadTasksChangeCallback downloadTasksChangeCallback;
 
     private CountDownLatch recoverCountDownLatch = new CountDownLatch(1);
@@ -64,21 +92,54 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     private volatile boolean avoidFrameDrop;
     // ns
     private volatile long sendMessageIntervalNanos;
-
-    private DownloadManager(OkHttpClient client, Context appContext, Configuration configuration) {
+    private final int maxConnectionCount;
+    private final long minRangeSize;
+    private final int minPipelineDepth;
+    private final int maxPipelineDepth;
+    private final boolean progressJournal;
+    private final boolean speculativeConnect;
+
+    private DownloadManager(DownloadTransport transport, Context appContext, Configuration configuration) {
         maxRunningTask = configuration.maxRunningTask;
         speedLimit = configuration.speedLimit;
         allowDownload = configuration.allowDownload;
         avoidFrameDrop = configuration.avoidFrameDrop;
         sendMessageIntervalNanos = configuration.sendMessageIntervalNanos;
-        this.client = client;
-        SQLiteDatabase db = new DevOpenHelper(appContext, DB_NAME).getWritableDatabase();
+        maxConnectionCount = configuration.maxConnectionCount;
+        minRangeSize = configuration.minRangeSize;
+        minPipelineDepth = configuration.minPipelineDepth;
+        maxPipelineDepth = configuration.maxPipelineDepth;
+        progressJournal = configuration.progressJournal;
+        speculativeConnect = configuration.speculativeConnect;
+        waitingTasks = new TaskScheduleQueue(configuration.schedulePolicy, configuration.smallFileSize);
+        concurrencyController = configuration.adaptiveRunningTask
+                ? new ConcurrencyController(maxRunningTask, configuration.minAdaptiveRunningTask,
+                configuration.maxAdaptiveRunningTask) : null;
+        DownloadExecutors.segment.setThreadBudget(configuration.segmentThreadBudget);
+        DownloadExecutors.segment.setMaxThreads(configuration.segmentMaxThreads);
+        bandwidthLimiter = new BandwidthLimiter(speedLimit);
+        segmentPool = new SegmentPool(configuration.segmentPoolSize, configuration.directBuffer);
+        this.transport = transport;
+        progressTable = configuration.sharedProgressTable ? createProgressTable(appContext) : null;
+        SQLiteDatabase db = new DownloadOpenHelper(appContext, DB_NAME).getWritableDatabase();
         daoSession = new DaoMaster(db).newSession();
+        progressCheckpointer = new ProgressCheckpointer<>(
+                checkpoints -> PersistUtil.persistCheckpoints(daoSession, checkpoints));
         Logger.d("DownloadManager", "DownloadManager: maxRunningTask = " + maxRunningTask);
         recoverDownloadTasks();
     }
 
 
+    private static ProgressTable createProgressTable(Context appContext) {
+        try {
+            return ProgressTable.create(new File(appContext.getFilesDir(), Constants.PROGRESS_TABLE_FILE_NAME),
+                    ProgressTable.DEFAULT_SLOT_COUNT);
+        } catch (IOException e) {
+            Logger.e(TAG, "cannot create progress table; send progress by callbacks instead", e);
+            return null;
+        }
+    }
+
     static void init(Context context, Configuration configuration) {
         if (instance == null) {
             synchronized (DownloadManager.class) {
@@ -86,10 +147,11 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                     if (context == null) {
                         throw new NullPointerException("Context cannot be null!");
                     }
-                    HttpLoggingInterceptor httpLoggingInterceptor = new HttpLoggingInterceptor();
-                    httpLoggingInterceptor.setLevel(Level.HEADERS);
-                    OkHttpClient client = new Builder().addInterceptor(httpLoggingInterceptor).build();
-                    instance = new DownloadManager(client, context, configuration);
+                    DownloadTransport transport = configuration.transport;
+                    if (transport == null) {
+                        transport = OkHttpTransport.create(configuration);
+                    }
+                    instance = new DownloadManager(transport, context, configuration);
                 }
             }
         }
@@ -103,13 +165,32 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
 
-    long singleTaskSpeedLimit() {
-        if (speedLimit < 0) return -1;
-        return speedLimit / Math.max(runningTasksId.size(), 1);
+    int maxConnectionCount() {
+        return maxConnectionCount;
+    }
+
+    long minRangeSize() {
+        return minRangeSize;
+    }
+
+    int minPipelineDepth() {
+        return minPipelineDepth;
+    }
+
+    int maxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    boolean progressJournal() {
+        return progressJournal;
+    }
+
+    boolean speculativeConnect() {
+        return speculativeConnect;
     }
 
     private void pauseAllInner() {
-        for (Long aLong : waitingTasksId) {
+        for (Long aLong : waitingTasks.ids()) {
             DownloadTask downloadTask = taskTable.get(aLong);
             if (downloadTask != null) {
                 downloadTask.pause();
@@ -125,31 +206,27 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     }
 
     private void startAllInner() {
-        int size = taskTable.size();
-        List<DownloadInfo> infoList = new ArrayList<>();
-        for (int i = 0; i < size; i++) {
-            DownloadInfo downloadInfo = infoTable.valueAt(i);
+        // newest first when scheduled in enqueue order
+        List<DownloadInfo> infoList = new ArrayList<>(taskTable.size());
+        for (Long id : taskTable.keySet()) {
+            DownloadInfo downloadInfo = infoTable.get(id);
             if (downloadInfo != null) {
                 infoList.add(downloadInfo);
             }
         }
-        Collections.sort(infoList, (o1, o2) ->
-                o2.getCreatedTime().compareTo(o1.getCreatedTime()));
+        Collections.sort(infoList, NEWEST_FIRST);
         for (DownloadInfo downloadInfo : infoList) {
-            DownloadTask downloadTask = taskTable.get(downloadInfo.getId());
-            if (downloadTask != null) {
-                enqueueTask(downloadInfo.getId(), false, false);
-            }
+            enqueueTask(downloadInfo.getId(), false, false);
         }
         schedule();
     }
 
     private void recoverDownloadTasks() {
         DownloadExecutors.io.execute(() -> {
+            List<DownloadInfo> changedInfoList = new ArrayList<>();
             try {
-                List<DownloadInfo> downloadInfoList = queryActiveDownloadInfoListInner();
-                List<DownloadInfo> finishedDownloadInfoList = queryFinishedDownloadInfoListInner();
-                for (DownloadInfo downloadInfo : downloadInfoList) {
+                // finished tasks are loaded when they are asked for, see obtainTask
+                for (DownloadInfo downloadInfo : recoverActiveDownloadInfoList(daoSession, changedInfoList)) {
                     long id = downloadInfo.getId();
                     infoTable.put(id, downloadInfo);
 
@@ -157,25 +234,84 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                     if (downloadItemState == ERROR || downloadItemState == FATAL_ERROR) {
                         errorTasksId.add(id);
                     } else {
-                        downloadInfo.setDownloadItemState(PAUSED);
                         pausingTasksId.add(id);
                     }
-                    DownloadTask downloadTask = new DownloadTask(downloadInfo, client);
-                    taskTable.put(id, downloadTask);
-                    downloadInfo.setDownloadItemState(downloadTask.getState());
-                }
-
-                daoSession.getDownloadInfoDao().saveInTx(downloadInfoList);
-                for (DownloadInfo downloadInfo : finishedDownloadInfoList) {
-                    taskTable.put(downloadInfo.getId(), new DownloadTask(downloadInfo, client));
-                    infoTable.put(downloadInfo.getId(), downloadInfo);
+                    taskTable.put(id, new DownloadTask(downloadInfo, transport));
                 }
             } finally {
                 recoverCountDownLatch.countDown();
             }
+            persistRecoveredDownloadInfoList(daoSession, changedInfoList);
         });
     }
 
+    /**
+     * Active tasks at startup; tasks killed while running are paused in memory.
+     *
+     * @param changedInfoList filled with tasks whose state is changed, to be persisted by
+     *                        {@link #persistRecoveredDownloadInfoList(DaoSession, List)}
+     */
+    static List<DownloadInfo> recoverActiveDownloadInfoList(DaoSession daoSession, List<DownloadInfo> changedInfoList) {
+        List<DownloadInfo> downloadInfoList = loadActiveDownloadInfoList(daoSession);
+        for (DownloadInfo downloadInfo : downloadInfoList) {
+            int downloadItemState = downloadInfo.getDownloadItemState();
+            if (downloadItemState != ERROR && downloadItemState != FATAL_ERROR && downloadItemState != PAUSED) {
+                downloadInfo.setDownloadItemState(PAUSED);
+                changedInfoList.add(downloadInfo);
+            }
+        }
+        return downloadInfoList;
+    }
+
+    /**
+     * only tasks killed while running are written; others are already persisted as they are
+     */
+    static void persistRecoveredDownloadInfoList(DaoSession daoSession, List<DownloadInfo> changedInfoList) {
+        if (changedInfoList.isEmpty()) {
+            return;
+        }
+        try {
+            daoSession.getDownloadInfoDao().updateInTx(changedInfoList);
+        } catch (Exception e) {
+            Logger.e(TAG, "cannot persist recovered tasks", e);
+        }
+    }
+
+    /**
+     * Not finished or canceled tasks, newest first. They are looked up by the index of state,
+     * so it costs the same however long the history of finished tasks is.
+     */
+    static List<DownloadInfo> loadActiveDownloadInfoList(DaoSession daoSession) {
+        List<DownloadInfo> downloadInfoList = daoSession.getDownloadInfoDao().queryBuilder()
+                .where(DownloadInfoDao.Properties.DownloadItemState.in((Object[]) ACTIVE_STATES))
+                .build()
+                .list();
+        // sorted here: ordering in sql may let sqlite scan the whole table instead of the index
+        Collections.sort(downloadInfoList, NEWEST_FIRST);
+        return downloadInfoList;
+    }
+
+    /**
+     * Task in memory, or a finished one loaded from db; finished tasks are not recovered at startup.
+     * Only called on the shard of the task.
+     *
+     * @return null if the task is canceled or not present
+     */
+    private DownloadTask obtainTask(long id) {
+        DownloadTask downloadTask = taskTable.get(id);
+        if (downloadTask != null) {
+            return downloadTask;
+        }
+        DownloadInfo downloadInfo = daoSession.getDownloadInfoDao().load(id);
+        if (downloadInfo == null || downloadInfo.getDownloadItemState() != FINISH) {
+            return null;
+        }
+        downloadTask = new DownloadTask(downloadInfo, transport);
+        infoTable.put(id, downloadInfo);
+        taskTable.put(id, downloadTask);
+        return downloadTask;
+    }
+
     private void doOnMessageAfterRecover(Runnable runnable) {
         if (recoverCountDownLatch.getCount() == 0) {
             runnable.run();
@@ -190,6 +326,12 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     private void schedule() {
 
         int maxRunningTask = allowDownload ? this.maxRunningTask : 0;
+        int startLimit = maxRunningTask;
+        if (concurrencyController != null && allowDownload) {
+            // a lower adaptive limit only holds back waiting tasks
+            maxRunningTask = concurrencyController.getMaxLimit();
+            startLimit = concurrencyController.getLimit();
+        }
 
         while (runningTasksId.size() > maxRunningTask) {
             Long id = runningTasksId.pollFirst();
@@ -202,8 +344,8 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             enqueueTask(id, false, false);
         }
 
-        while (runningTasksId.size() < maxRunningTask && !waitingTasksId.isEmpty()) {
-            Long id = waitingTasksId.pollFirst();
+        while (runningTasksId.size() < startLimit && !waitingTasks.isEmpty()) {
+            long id = waitingTasks.poll();
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) {
                 taskTable.remove(id);
@@ -216,76 +358,141 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
                 enqueueTask(id, false, false);
             }
         }
+        scheduleConcurrencyWindow();
+    }
+
+    private void scheduleConcurrencyWindow() {
+        if (concurrencyController != null && !concurrencyWindowScheduled && !runningTasksId.isEmpty()) {
+            concurrencyWindowScheduled = true;
+            DownloadExecutors.executeDelayed(DownloadExecutors.message, adjustConcurrency,
+                    TimeUnit.NANOSECONDS.toMillis(ConcurrencyController.WINDOW_NANOS));
+        }
+    }
+
+    private void adjustConcurrency() {
+        concurrencyWindowScheduled = false;
+        if (runningTasksId.isEmpty()) {
+            concurrencyController.reset();
+            return;
+        }
+        boolean canGrow = allowDownload && runningTasksId.size() >= concurrencyController.getLimit()
+                && !waitingTasks.isEmpty();
+        if (concurrencyController.onWindow(System.nanoTime(), canGrow)) {
+            Logger.d(TAG, "running task limit = " + concurrencyController.getLimit());
+            schedule();
+        } else {
+            scheduleConcurrencyWindow();
+        }
     }
 
     @Override
     public void onDownloadConnecting(long id) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
-        if (downloadCallback != null) {
-            try {
-                downloadCallback.onDownloadConnecting(id);
-            } catch (RemoteException e) {
-                Logger.e(TAG, "onDownloadConnecting", e);
-            }
-        }
+        publishState(id, CONNECTING);
+        notifyTask(id, "onDownloadConnecting", callback -> callback.onDownloadConnecting(id));
     }
 
     @Override
     public void onDownloadProgressUpdate(long id, long total, long cur, double bps) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
-        DownloadExecutors.message.execute(() -> {
-            boolean shouldSend = false;
-            long currentTime = System.nanoTime();
-            if (avoidFrameDrop) {
-                Long lastTime = lastSendMessageTime.get(id);
-                if (lastTime == null || lastTime + sendMessageIntervalNanos <= currentTime) {
-                    shouldSend = true;
-                }
-            } else {
-                shouldSend = true;
-            }
+        if (progressTable != null && progressTable.update(id, total, cur, bps)) {
+            return;
+        }
+        if (!avoidFrameDrop) {
+            notifyTask(id, "onDownloadProgressUpdate", callback -> callback.onDownloadProgressUpdate(id, total, cur, bps));
+            return;
+        }
 
-            if (shouldSend) {
-                lastSendMessageTime.put(id, currentTime);
-                if (downloadCallback != null) {
-                    try {
-                        downloadCallback.onDownloadProgressUpdate(id, total, cur, bps);
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "onDownloadProgressUpdate", e);
-                    }
-                }
-            }
-        });
+        // progress of all tasks goes in one transaction per interval
+        pendingProgress.put(id, new Progress(total, cur, bps));
+        if (progressBatchScheduled.compareAndSet(false, true)) {
+            DownloadExecutors.executeDelayed(DownloadExecutors.message, sendProgressBatch,
+                    TimeUnit.NANOSECONDS.toMillis(sendMessageIntervalNanos));
+        }
     }
 
-    @Override
-    public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+    private void publishState(long id, @DownloadState int state) {
+        if (progressTable != null) {
+            progressTable.updateState(id, state);
+        }
+    }
+
+    /**
+     * Send the batch holding the last progress of a settled task now, in message thread,
+     * before its state callback is queued on its shard; a batch never follows the state.
+     */
+    private void flushProgress(long id) {
+        if (pendingProgress.containsKey(id)) {
+            DownloadExecutors.removeCallback(DownloadExecutors.message, sendProgressBatch);
+            sendProgressBatch();
+        }
+        // left by a batch full of tasks arrived meanwhile
+        pendingProgress.remove(id);
+        if (!pendingProgress.isEmpty() && progressBatchScheduled.compareAndSet(false, true)) {
+            DownloadExecutors.executeDelayed(DownloadExecutors.message, sendProgressBatch,
+                    TimeUnit.NANOSECONDS.toMillis(sendMessageIntervalNanos));
+        }
+    }
+
+    private void sendProgressBatch() {
+        // progress put from now on schedules next batch
+        progressBatchScheduled.set(false);
+        int size = pendingProgress.size();
+        if (size == 0) {
+            return;
+        }
+        long[] ids = new long[size];
+        long[] totals = new long[size];
+        long[] curs = new long[size];
+        double[] bps = new double[size];
+        int count = 0;
+        for (Long id : pendingProgress.keySet()) {
+            if (count == size) {
+                // tasks arrived meanwhile go in next batch
+                break;
+            }
+            Progress progress = pendingProgress.remove(id);
+            if (progress == null) {
+                continue;
+            }
+            ids[count] = id;
+            totals[count] = progress.total;
+            curs[count] = progress.cur;
+            bps[count] = progress.bps;
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        if (count < size) {
+            ids = Arrays.copyOf(ids, count);
+            totals = Arrays.copyOf(totals, count);
+            curs = Arrays.copyOf(curs, count);
+            bps = Arrays.copyOf(bps, count);
+        }
         IDownloadCallback downloadCallback = this.downloadCallback;
         if (downloadCallback != null) {
             try {
-                downloadCallback.onDownloadUpdateInfo(downloadInfo);
+                downloadCallback.onDownloadProgressUpdateBatch(ids, totals, curs, bps);
             } catch (RemoteException e) {
-                Logger.e(TAG, "onDownloadUpdateInfo", e);
+                Logger.e(TAG, "onDownloadProgressUpdateBatch", e);
             }
         }
     }
 
+    @Override
+    public void onDownloadUpdateInfo(DownloadInfo downloadInfo) {
+        notifyTask(downloadInfo.getId(), "onDownloadUpdateInfo", callback -> callback.onDownloadUpdateInfo(downloadInfo));
+    }
+
     @Override
     public void onDownloadError(long id, int code, boolean fatal) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
-            lastSendMessageTime.remove(id);
+            flushProgress(id);
+            DownloadExecutors.task.execute(id, () -> publishState(id, fatal ? FATAL_ERROR : ERROR));
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
-            if (runningTasksId.remove(id) | pausingTasksId.remove(id) | waitingTasksId.remove(id)) {
+            if (runningTasksId.remove(id) | pausingTasksId.remove(id) | waitingTasks.remove(id)) {
                 errorTasksId.add(id);
-                if (downloadCallback != null) {
-                    try {
-                        downloadCallback.onDownloadError(id, code, fatal);
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "onDownloadError", e);
-                    }
-                }
+                notifyTask(id, "onDownloadError", callback -> callback.onDownloadError(id, code, fatal));
                 schedule();
             }
         });
@@ -293,49 +500,34 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void onDownloadStart(DownloadInfo downloadInfo) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
+        long id = downloadInfo.getId();
+        publishState(id, RUNNING);
+        notifyTask(id, "onDownloadStart", callback -> callback.onDownloadStart(downloadInfo));
         DownloadExecutors.message.execute(() -> {
-            if (!runningTasksId.contains(downloadInfo.getId())) {
-                runningTasksId.offer(downloadInfo.getId());
-            }
-            if (downloadCallback != null) {
-                try {
-                    downloadCallback.onDownloadStart(downloadInfo);
-                } catch (RemoteException e) {
-                    Logger.e(TAG, "onDownloadStart", e);
-                }
+            if (!runningTasksId.contains(id)) {
+                runningTasksId.offer(id);
             }
         });
     }
 
     @Override
     public void onDownloadStopping(long id) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
-        if (downloadCallback != null) {
-            try {
-                downloadCallback.onDownloadStopping(id);
-            } catch (RemoteException e) {
-                Logger.e(TAG, "onDownloadStopping", e);
-            }
-        }
+        // stoppers run on the shard or in message thread, and settled states are published
+        // through message thread to the shard, so a stale "stopping" never follows them
+        DownloadExecutors.task.execute(id, () -> publishState(id, STOPPING));
+        notifyTask(id, "onDownloadStopping", callback -> callback.onDownloadStopping(id));
     }
 
     @Override
     public void onDownloadPaused(long id) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
         DownloadExecutors.message.execute(() -> {
+            flushProgress(id);
+            DownloadExecutors.task.execute(id, () -> publishState(id, PAUSED));
             DownloadTask downloadTask = taskTable.get(id);
-            lastSendMessageTime.remove(id);
             if (downloadTask == null) return;
-            if (runningTasksId.remove(id) | waitingTasksId.remove(id)) {
+            if (runningTasksId.remove(id) | waitingTasks.remove(id)) {
                 pausingTasksId.add(id);
-                if (downloadCallback != null) {
-                    try {
-                        downloadCallback.onDownloadPaused(id);
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "onDownloadPaused", e);
-                    }
-                }
+                notifyTask(id, "onDownloadPaused", callback -> callback.onDownloadPaused(id));
                 schedule();
             }
         });
@@ -344,22 +536,18 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void onDownloadCanceled(long id) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
+        pendingProgress.remove(id);
         DownloadExecutors.message.execute(() -> {
-            lastSendMessageTime.remove(id);
+            if (progressTable != null) {
+                DownloadExecutors.task.execute(id, () -> progressTable.remove(id));
+            }
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
             if (runningTasksId.remove(id) | pausingTasksId.remove(id) |
-                    errorTasksId.remove(id) | waitingTasksId.remove(id)) {
+                    errorTasksId.remove(id) | waitingTasks.remove(id)) {
                 taskTable.remove(id);
                 Logger.d("DownloadManager", "remove task#" + id + " running tasks = " + runningTasksId.size());
-                if (downloadCallback != null) {
-                    try {
-                        downloadCallback.onDownloadCanceled(id);
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "onDownloadCanceled", e);
-                    }
-                }
+                notifyTask(id, "onDownloadCanceled", callback -> callback.onDownloadCanceled(id));
                 schedule();
             }
         });
@@ -367,17 +555,10 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void onDownloadTaskWait(long id) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
-        try {
-            if (downloadCallback != null) {
-                downloadCallback.onDownloadWaiting(id);
-            }
-        } catch (RemoteException e) {
-            Logger.e(TAG, "onDownloadWaiting", e);
-        }
         DownloadExecutors.message.execute(() -> {
-            if (!waitingTasksId.contains(id)) {
-                waitingTasksId.offer(id);
+            DownloadExecutors.task.execute(id, () -> publishState(id, WAITING));
+            notifyTask(id, "onDownloadWaiting", callback -> callback.onDownloadWaiting(id));
+            if (offerWaiting(id)) {
                 schedule();
             }
         });
@@ -385,52 +566,66 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void onDownloadFinished(DownloadInfo downloadInfo) {
-        IDownloadCallback downloadCallback = this.downloadCallback;
+        long id = downloadInfo.getId();
         DownloadExecutors.message.execute(() -> {
-            long id = downloadInfo.getId();
+            flushProgress(id);
+            DownloadExecutors.task.execute(id, () -> publishState(id, FINISH));
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
-            if (runningTasksId.remove(id) | waitingTasksId.remove(id) | pausingTasksId.remove(id) | errorTasksId.remove(id)) {
+            if (runningTasksId.remove(id) | waitingTasks.remove(id) | pausingTasksId.remove(id) | errorTasksId.remove(id)) {
+                notifyTask(id, "onDownloadFinished", callback -> callback.onDownloadFinished(downloadInfo));
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Send a callback of the task on its shard, in order with other callbacks of the task,
+     * so that slow callbacks of a task don't hold the scheduler or other shards.
+     */
+    private void notifyTask(long id, String name, TaskCallback taskCallback) {
+        DownloadExecutors.task.execute(id, () -> {
+            IDownloadCallback downloadCallback = this.downloadCallback;
+            if (downloadCallback != null) {
                 try {
-                    if (downloadCallback != null) {
-                        downloadCallback.onDownloadFinished(downloadInfo);
-                    }
+                    taskCallback.send(downloadCallback);
                 } catch (RemoteException e) {
-                    Logger.e(TAG, "onDownloadFinished", e);
+                    Logger.e(TAG, name, e);
                 }
-                schedule();
             }
         });
     }
 
     @WorkerThread
-    private void submitInner(String url, String path, String filename, ISubmitCallback listener) {
-        DownloadInfo downloadInfo = new DownloadInfo(null, url, path,
-                filename, true, WAITING,
-                0, 0, null, new Date(), null, null);
+    private void submitInner(String url, String path, String filename, int connectionCount,
+                             long speedLimit, int weight, ISubmitCallback listener) {
+        DownloadInfo downloadInfo = newDownloadInfo(url, path, filename, connectionCount,
+                speedLimit, weight, 0, 0, new Date());
         try {
             Long insertId = PersistUtil.persistDownloadInfo(daoSession, downloadInfo, null);
-            DownloadExecutors.message.execute(() -> {
-                if (insertId != null) {
-                    infoTable.put(insertId, downloadInfo);
-                    DownloadTask downloadTask = new DownloadTask(downloadInfo, client);
-                    taskTable.put(insertId, downloadTask);
-                    waitingTasksId.add(insertId);
+            if (insertId != null) {
+                infoTable.put(insertId, downloadInfo);
+                taskTable.put(insertId, new DownloadTask(downloadInfo, transport));
+                // before any callback of the task, which is sent on the same shard
+                DownloadExecutors.task.execute(insertId, () -> {
                     try {
                         listener.submitSuccess(downloadInfo);
                     } catch (RemoteException e) {
                         Logger.e(TAG, "submitSuccess", e);
                     }
                     notifyDownloadManagerArrive(downloadInfo);
+                });
+                DownloadExecutors.message.execute(() -> {
+                    offerWaiting(insertId);
                     schedule();
-                } else {
-                    try {
-                        listener.submitFail("创建任务失败");
-                    } catch (RemoteException e) {
-                        Logger.e(TAG, "submitFail", e);
-                    }
+                });
+            } else {
+                try {
+                    listener.submitFail("创建任务失败");
+                } catch (RemoteException e) {
+                    Logger.e(TAG, "submitFail", e);
                 }
-            });
+            }
         } catch (Exception e) {
             try {
                 listener.submitFail(e.getLocalizedMessage());
@@ -440,6 +635,72 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
     }
 
+    private static DownloadInfo newDownloadInfo(String url, String path, String filename, int connectionCount,
+                                                long speedLimit, int weight, int priority, long deadline,
+                                                Date createdTime) {
+        return new DownloadInfo(null, url, path,
+                filename, true, WAITING,
+                0, 0, null, createdTime, null, null, Math.max(connectionCount, 0),
+                Math.max(speedLimit, 0), Math.max(weight, 1), priority, Math.max(deadline, 0));
+    }
+
+    /**
+     * Insert all tasks in one transaction and reply with one callback;
+     * the scheduler takes them in one message.
+     */
+    @WorkerThread
+    private void submitAllInner(List<SubmitRequest> requests, ISubmitAllCallback callback) {
+        int size = requests.size();
+        List<DownloadInfo> downloadInfoList = new ArrayList<>(size);
+        Date createdTime = new Date();
+        for (SubmitRequest request : requests) {
+            downloadInfoList.add(newDownloadInfo(request.getUrl(), request.getPath(), request.getFilename(),
+                    request.getConnectionCount(), request.getSpeedLimit(), request.getWeight(),
+                    request.getPriority(), request.getDeadline(), createdTime));
+        }
+        long[] ids = new long[size];
+        try {
+            daoSession.getDownloadInfoDao().insertInTx(downloadInfoList);
+            for (int i = 0; i < size; i++) {
+                DownloadInfo downloadInfo = downloadInfoList.get(i);
+                Long id = downloadInfo.getId();
+                if (id == null) {
+                    throw new IllegalStateException("no id of inserted task " + downloadInfo.getUrl());
+                }
+                ids[i] = id;
+            }
+        } catch (Exception e) {
+            try {
+                callback.submitFail(e.getLocalizedMessage());
+            } catch (RemoteException e1) {
+                Logger.e(TAG, "submitFail", e1);
+            }
+            return;
+        }
+        // registered only when all are inserted, so a failed submit leaves no task behind
+        for (int i = 0; i < size; i++) {
+            DownloadInfo downloadInfo = downloadInfoList.get(i);
+            infoTable.put(ids[i], downloadInfo);
+            taskTable.put(ids[i], new DownloadTask(downloadInfo, transport));
+        }
+        // the client knows the ids before any callback of them
+        try {
+            callback.submitSuccess(ids);
+        } catch (RemoteException e) {
+            Logger.e(TAG, "submitSuccess", e);
+        }
+        for (int i = 0; i < size; i++) {
+            DownloadInfo downloadInfo = downloadInfoList.get(i);
+            DownloadExecutors.task.execute(ids[i], () -> notifyDownloadManagerArrive(downloadInfo));
+        }
+        DownloadExecutors.message.execute(() -> {
+            for (long id : ids) {
+                offerWaiting(id);
+            }
+            schedule();
+        });
+    }
+
     private void enqueueTask(long id, boolean restart, boolean scheduleAfterEnqueue) {
         DownloadTask downloadTask = taskTable.get(id);
         if (downloadTask == null) {
@@ -450,22 +711,29 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             return;
         }
 
-        if (!waitingTasksId.contains(id)) {
-            waitingTasksId.offer(id);
+        if (offerWaiting(id)) {
             if (scheduleAfterEnqueue) {
                 schedule();
             }
-            IDownloadCallback downloadCallback = this.downloadCallback;
-            if (downloadCallback != null) {
-                try {
-                    downloadCallback.onDownloadWaiting(id);
-                } catch (RemoteException e) {
-                    Logger.e(TAG, "onDownloadWaiting", e);
-                }
-            }
+            notifyTask(id, "onDownloadWaiting", callback -> callback.onDownloadWaiting(id));
         }
     }
 
+    /**
+     * put the task in waiting queue, or update its place by its priority, deadline and remaining bytes
+     *
+     * @return true if the task was not waiting
+     */
+    private boolean offerWaiting(long id) {
+        DownloadInfo downloadInfo = infoTable.get(id);
+        if (downloadInfo == null) {
+            return waitingTasks.offer(id, 0, 0, -1);
+        }
+        long totalSize = downloadInfo.getTotalSize();
+        long remainingBytes = totalSize > 0 ? Math.max(totalSize - downloadInfo.getDownloadedSize(), 0) : -1;
+        return waitingTasks.offer(id, downloadInfo.getPriority(), downloadInfo.getDeadline(), remainingBytes);
+    }
+
     /************************** api **************************/
 
     @Override
@@ -481,31 +749,30 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     // include re-download
     @Override
     public void startOrResume(long id, boolean restart) {
-        DownloadExecutors.message.execute(() -> {
-            DownloadTask downloadTask = taskTable.get(id);
+        DownloadExecutors.task.execute(id, () -> {
+            DownloadTask downloadTask = obtainTask(id);
             final DownloadInfo info = infoTable.get(id);
             if ((downloadTask == null || info == null) && restart) {
-                DownloadExecutors.io.execute(() -> {
-                    DownloadInfo downloadInfo = daoSession.getDownloadInfoDao().load(id);
-                    if (downloadInfo != null) {
-                        DownloadExecutors.message.execute(() -> {
-                            DownloadTask newDownloadTask = new DownloadTask(downloadInfo, client);
-                            taskTable.put(id, newDownloadTask);
-                            infoTable.put(id, downloadInfo);
-                            notifyDownloadManagerArrive(downloadInfo);
-                            enqueueTask(id, true, true);
-                        });
+                // loaded by the shard of the task, so later commands of the task find it
+                DownloadInfo downloadInfo = daoSession.getDownloadInfoDao().load(id);
+                if (downloadInfo != null) {
+                    taskTable.put(id, new DownloadTask(downloadInfo, transport));
+                    infoTable.put(id, downloadInfo);
+                    notifyDownloadManagerArrive(downloadInfo);
+                    DownloadExecutors.message.execute(() -> enqueueTask(id, true, true));
+                }
+            } else if (downloadTask != null) {
+                DownloadExecutors.message.execute(() -> {
+                    if ((pausingTasksId.remove(id) | errorTasksId.remove(id)) || downloadTask.getState() == FINISH) {
+                        if (restart) {
+                            info.setDownloadedSize(0);
+                            info.setTotalSize(0);
+                            info.setLastModified(null);
+                            onDownloadUpdateInfo(info);
+                        }
+                        enqueueTask(id, restart, true);
                     }
                 });
-            } else if (downloadTask != null && ((pausingTasksId.remove(id) | errorTasksId.remove(id)) ||
-                    downloadTask.getState() == FINISH)) {
-                if (restart) {
-                    info.setDownloadedSize(0);
-                    info.setTotalSize(0);
-                    info.setLastModified(null);
-                    onDownloadUpdateInfo(info);
-                }
-                enqueueTask(id, restart, true);
             }
         });
     }
@@ -534,7 +801,7 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void pause(long id) {
-        DownloadExecutors.message.execute(() -> {
+        DownloadExecutors.task.execute(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
             if (downloadTask == null) return;
             downloadTask.pause();
@@ -544,8 +811,8 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     // also delete
     @Override
     public void cancel(long id) {
-        DownloadExecutors.message.execute(() -> {
-            DownloadTask downloadTask = taskTable.get(id);
+        DownloadExecutors.task.execute(id, () -> {
+            DownloadTask downloadTask = obtainTask(id);
             if (downloadTask == null) return;
             downloadTask.cancel();
             notifyDownloadInfoRemoved(id);
@@ -561,40 +828,102 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
      */
     @Override
     public void submit(String url, String path, String filename, ISubmitCallback callback) {
+        submit(url, path, filename, 0, 0, 1, callback);
+    }
+
+    /**
+     * @param url      download url; must started with http/https
+     * @param path     nonnull; parent directory of the file
+     * @param filename self-defined filename; if null, it will be parsed by url or a pivot request by downloadManager
+     * @param connectionCount fixed connection count of this task; 0 to let downloader decide it by throughput
+     * @param speedLimit bytes per second of this task; 0 for no limit of its own
+     * @param weight   share of bandwidth against other running tasks; at least 1
+     * @param callback listener to inform submit success or fail
+     */
+    @Override
+    public void submit(String url, String path, String filename, int connectionCount,
+                       long speedLimit, int weight, ISubmitCallback callback) {
         if (path == null) {
             throw new NullPointerException("path cannot be null");
         }
         DownloadExecutors.io.execute(() -> {
             waitForRecovering();
-            submitInner(url, path, filename, callback);
+            submitInner(url, path, filename, connectionCount, speedLimit, weight, callback);
         });
     }
 
+    /**
+     * @param requests tasks to submit; keep a batch under the binder transaction limit (1MB) of all parcels
+     * @param callback receives ids of all tasks at once, or a failure if none is submitted
+     */
     @Override
-    public void delete(long id, boolean deleteFile) {
-        DownloadExecutors.message.execute(() -> {
+    public void submitAll(List<SubmitRequest> requests, ISubmitAllCallback callback) {
+        if (requests == null) {
+            throw new NullPointerException("requests cannot be null");
+        }
+        DownloadExecutors.io.execute(() -> {
+            waitForRecovering();
+            submitAllInner(requests, callback);
+        });
+    }
+
+    @Override
+    public void setTaskSpeedLimit(long id, long speedLimit, int weight) {
+        DownloadExecutors.task.execute(id, () -> {
             DownloadTask downloadTask = taskTable.get(id);
+            DownloadInfo downloadInfo = infoTable.get(id);
+            if (downloadTask == null || downloadInfo == null) return;
+            downloadInfo.setSpeedLimit(Math.max(speedLimit, 0));
+            downloadInfo.setWeight(Math.max(weight, 1));
+            downloadTask.updateThrottle();
+            PersistUtil.persistDownloadInfoQuietly(daoSession, downloadInfo, null);
+        });
+    }
+
+    @Override
+    public void setTaskPriority(long id, int priority, long deadline) {
+        DownloadExecutors.task.execute(id, () -> {
+            DownloadInfo downloadInfo = infoTable.get(id);
+            if (downloadInfo == null) return;
+            downloadInfo.setPriority(priority);
+            downloadInfo.setDeadline(Math.max(deadline, 0));
+            PersistUtil.persistDownloadInfoQuietly(daoSession, downloadInfo, null);
+            DownloadExecutors.message.execute(() -> {
+                if (waitingTasks.contains(id)) {
+                    offerWaiting(id);
+                }
+            });
+        });
+    }
+
+    @Override
+    public void delete(long id, boolean deleteFile) {
+        DownloadExecutors.task.execute(id, () -> {
+            DownloadTask downloadTask = obtainTask(id);
             DownloadInfo info = infoTable.get(id);
             if (downloadTask != null && info != null) {
                 taskTable.remove(id);
                 infoTable.remove(id);
-                runningTasksId.remove(id);
-                waitingTasksId.remove(id);
-                errorTasksId.remove(id);
-                pausingTasksId.remove(id);
                 downloadTask.delete(deleteFile);
+                if (progressTable != null) {
+                    progressTable.remove(id);
+                }
                 notifyDownloadInfoRemoved(id);
-                schedule();
+                DownloadExecutors.message.execute(() -> {
+                    runningTasksId.remove(id);
+                    waitingTasks.remove(id);
+                    errorTasksId.remove(id);
+                    pausingTasksId.remove(id);
+                    schedule();
+                });
             } else {
                 Logger.w("DownloadManager", "delete a task that is not present in DownloadManager! find in db. id = " + id);
-                DownloadExecutors.io.execute(() -> {
-                    DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
-                    DownloadInfo downloadInfo = downloadInfoDao.load(id);
-                    if (downloadInfo != null) {
-                        PersistUtil.deleteDownloadInfo(daoSession, downloadInfo);
-                        PersistUtil.deleteFile(downloadInfo, deleteFile);
-                    }
-                });
+                DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
+                DownloadInfo downloadInfo = downloadInfoDao.load(id);
+                if (downloadInfo != null) {
+                    PersistUtil.deleteDownloadInfo(daoSession, downloadInfo);
+                    PersistUtil.deleteFile(downloadInfo, deleteFile);
+                }
             }
         });
     }
@@ -609,6 +938,9 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         if (maxRunningTask != count) {
             doOnMessageAfterRecover(() -> {
                 maxRunningTask = count;
+                if (concurrencyController != null) {
+                    concurrencyController.setLimit(count);
+                }
                 schedule();
             });
         }
@@ -621,7 +953,10 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
 
     @Override
     public void setSpeedLimit(long speedLimit) {
-        DownloadExecutors.message.execute(() -> this.speedLimit = speedLimit);
+        DownloadExecutors.message.execute(() -> {
+            this.speedLimit = speedLimit;
+            bandwidthLimiter.setRate(speedLimit);
+        });
     }
 
     @Override
@@ -648,7 +983,8 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             DownloadExecutors.message.execute(() -> {
                 this.avoidFrameDrop = avoidFrameDrop;
                 if (!avoidFrameDrop) {
-                    lastSendMessageTime.clear();
+                    DownloadExecutors.removeCallback(DownloadExecutors.message, sendProgressBatch);
+                    sendProgressBatch();
                 }
             });
         }
@@ -664,10 +1000,31 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
     }
 
+    @Override
+    public float getSegmentPoolSaturation() {
+        return DownloadExecutors.segment.saturation();
+    }
+
+    /**
+     * @return null if the task is not in memory, e.g. finished before the service started
+     */
+    PipelineStats getPipelineStats(long id) {
+        DownloadTask downloadTask = taskTable.get(id);
+        return downloadTask == null ? null : downloadTask.getPipelineStats();
+    }
+
     @Override
     public DownloadInfo queryDownloadInfo(long id) {
         waitForRecovering();
-        return infoTable.get(id);
+        DownloadInfo downloadInfo = infoTable.get(id);
+        if (downloadInfo == null) {
+            // finished tasks are not in memory until they are used
+            downloadInfo = daoSession.getDownloadInfoDao().load(id);
+            if (downloadInfo != null && downloadInfo.getDownloadItemState() != FINISH) {
+                return null;
+            }
+        }
+        return downloadInfo;
     }
 
     @Override
@@ -686,7 +1043,7 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
     @Override
     public List<DownloadInfo> queryActiveDownloadInfoList() {
         waitForRecovering();
-        return queryActiveDownloadInfoListInner();
+        return loadActiveDownloadInfoList(daoSession);
     }
 
     private void waitForRecovering() {
@@ -699,14 +1056,80 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
         }
     }
 
-    private List<DownloadInfo> queryActiveDownloadInfoListInner() {
-        DownloadInfoDao downloadInfoDao = daoSession.getDownloadInfoDao();
-        return downloadInfoDao.queryBuilder()
-                .where(DownloadInfoDao.Properties.DownloadItemState.notEq(FINISH))
-                .where(DownloadInfoDao.Properties.DownloadItemState.notEq(CANCELED))
-                .orderDesc(DownloadInfoDao.Properties.CreatedTime)
-                .build()
-                .list();
+    /**
+     * A page of tasks, newest first, read by a cursor without loading entities or their ranges.
+     * Pages are keyed by id, so tasks added or removed meanwhile don't shift later pages.
+     * States are filtered by what is persisted, which is updated on every state change;
+     * sizes of tasks in memory are the latest ones.
+     */
+    @Override
+    public List<TaskSummary> queryTaskSummaries(int stateMask, long afterId, int limit, int fields) {
+        waitForRecovering();
+        return queryTaskSummaries(daoSession, infoTable, stateMask, afterId, limit, fields);
+    }
+
+    /**
+     * @param infoTable tasks in memory, whose sizes are newer than the persisted ones
+     * @see #queryTaskSummaries(int, long, int, int)
+     */
+    static List<TaskSummary> queryTaskSummaries(DaoSession daoSession, Map<Long, DownloadInfo> infoTable,
+                                                int stateMask, long afterId, int limit, int fields) {
+        QueryBuilder<DownloadInfo> queryBuilder = daoSession.getDownloadInfoDao().queryBuilder();
+        if (stateMask != TaskSummary.ALL_STATES) {
+            List<Integer> states = new ArrayList<>();
+            for (int state = PENDING; state <= FATAL_ERROR; state++) {
+                if ((stateMask & (1 << state)) != 0) {
+                    states.add(state);
+                }
+            }
+            if (states.isEmpty()) {
+                return new ArrayList<>();
+            }
+            // backed by the index of state, whose entries are ordered by id within a state
+            queryBuilder.where(DownloadInfoDao.Properties.DownloadItemState.in(states));
+        }
+        if (afterId > 0) {
+            queryBuilder.where(DownloadInfoDao.Properties.Id.lt(afterId));
+        }
+        Cursor cursor = queryBuilder.orderDesc(DownloadInfoDao.Properties.Id)
+                .limit(Math.min(Math.max(limit, 1), TaskSummary.MAX_PAGE_SIZE))
+                .buildCursor()
+                .query();
+        try {
+            List<TaskSummary> page = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                page.add(readTaskSummary(cursor, infoTable, fields));
+            }
+            return page;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static TaskSummary readTaskSummary(Cursor cursor, Map<Long, DownloadInfo> infoTable, int fields) {
+        long id = cursor.getLong(DownloadInfoDao.Properties.Id.ordinal);
+        long downloadedSize = cursor.getLong(DownloadInfoDao.Properties.DownloadedSize.ordinal);
+        long totalSize = cursor.getLong(DownloadInfoDao.Properties.TotalSize.ordinal);
+        DownloadInfo downloadInfo = infoTable.get(id);
+        if (downloadInfo != null) {
+            downloadedSize = downloadInfo.getDownloadedSize();
+            totalSize = downloadInfo.getTotalSize();
+        }
+        return new TaskSummary(id,
+                cursor.getInt(DownloadInfoDao.Properties.DownloadItemState.ordinal),
+                downloadedSize, totalSize,
+                readTime(cursor, DownloadInfoDao.Properties.CreatedTime.ordinal),
+                readTime(cursor, DownloadInfoDao.Properties.FinishedTime.ordinal),
+                (fields & TaskSummary.FIELD_URL) == 0 ? null
+                        : cursor.getString(DownloadInfoDao.Properties.Url.ordinal),
+                (fields & TaskSummary.FIELD_PATH) == 0 ? null
+                        : cursor.getString(DownloadInfoDao.Properties.Path.ordinal),
+                (fields & TaskSummary.FIELD_FILENAME) == 0 ? null
+                        : cursor.getString(DownloadInfoDao.Properties.Filename.ordinal));
+    }
+
+    private static long readTime(Cursor cursor, int index) {
+        return cursor.isNull(index) ? 0 : cursor.getLong(index);
     }
 
     @Override
@@ -736,4 +1159,20 @@ class DownloadManager implements DownloadListener, DownloadController, DownloadI
             downloadTasksChangeCallbackSetLock.unlock();
         }
     }
+
+    private interface TaskCallback {
+        void send(IDownloadCallback callback) throws RemoteException;
+    }
+
+    private static class Progress {
+        final long total;
+        final long cur;
+        final double bps;
+
+        Progress(long total, long cur, double bps) {
+            this.total = total;
+            this.cur = cur;
+            this.bps = bps;
+        }
+    }
 }
@@ -8,28 +8,29 @@ import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.db.DownloadThreadInfo;
 import com.lyc.downloader.utils.DownloadStringUtil;
 import com.lyc.downloader.utils.Logger;
-import okhttp3.Call;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Request.Builder;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,7 +38,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -63,76 +63,103 @@ public class DownloadTask {
     private static final int MAX_BUFFER = 1 << 16;
     private static final int MIN_BUFFER = 4 * (1 << 10);
 
-    // TODO: 2019/4/26 design a suitable thread count choose algorithm...
-    private static final int MAX_DOWNLOAD_THREAD = 4;
+    // connections opened before throughput is measured
+    private static final int INITIAL_CONNECTION_COUNT = 2;
+    // stoppers are checked at this interval while waiting for segment threads
+    private static final long ADMIT_TIMEOUT_MS = 100;
 
-    private static Lock fileLock = new ReentrantLock();
-    // ATTENTION: SYNC OPERATE
-    private volatile int state;
-    private final Set<Thread> threads = new HashSet<>();
-    private final Lock stateLock = new ReentrantLock();
+    private static final int ACTIVE = TaskStateMachine.of(CONNECTING, RUNNING);
+
+    // transitions are compare-and-set; side effects run after, outside of any lock
+    private final TaskStateMachine stateMachine;
+    private final List<Future<?>> segmentFutures = new CopyOnWriteArrayList<>();
+    // segment jobs of the run which are not finished yet, guarded by itself
+    private final AtomicInteger runningJobs = new AtomicInteger();
+    private volatile Future<?> writerFuture;
+    // only one run of execute at a time
     private final Lock runLock = new ReentrantLock();
+    // guard readers added against the writer exiting
+    private final Object connectionLock = new Object();
+    // persisted state follows the latest transition
+    private final Object stateChangeLock = new Object();
+    // guard ranges of download runnables and downloadThreadInfos
+    private final Object rangeLock = new Object();
     private final DownloadError downloadError = DownloadError.instance();
     private File downloadFile;
-    private int downloadThreadCount = 4;
-    private final OkHttpClient client;
-    private Call pivotCall;
-    private DownloadRunnable[] downloadRunnables;
-    private WriteToDiskRunnable[] writeToDiskRunnables;
-    /**
-     * when state is set to {@link #STOPPING},
-     * this field is set one of these states:
-     * {@link #PAUSED} {@link #WAITING} {@link #CANCELED} or goto delete
-     */
-    private int targetState;
+    private int downloadThreadCount = 1;
+    private int bufferSize = MAX_BUFFER;
+    private final DownloadTransport transport;
+    private volatile DownloadTransport.Call pivotCall;
+    private List<DownloadRunnable> downloadRunnables;
+    private WriteToDiskRunnable writeToDiskRunnable;
+    private ConnectionCountController connectionCountController;
+    // initial ranges which got no thread from the budget yet; only touched by the run of the task
+    private final ArrayDeque<Integer> deferredRanges = new ArrayDeque<>();
     final DownloadInfo downloadInfo;
     private final SparseArray<DownloadThreadInfo> downloadThreadInfos = new SparseArray<>();
     private long bufferTimeout = 1;
     private AtomicLong downloadSize = new AtomicLong(0);
-    private Request baseRequest;
     private boolean resuming;
     private final AtomicInteger leftActiveThreadCount = new AtomicInteger();
+    private final PipelineStats pipelineStats = new PipelineStats();
+    // null if progress is only checkpointed to database
+    private volatile ProgressJournal journal;
+    // null if tmp file is allocated
+    private volatile Preallocator preallocator;
     private CountDownLatch startDownloadLatch;
     private Semaphore semaphore;
     private boolean restart = false;
-    static Pattern reduplicatedFilenamePattern = Pattern.compile("^(.*)\\(([1-9][0-9]*)\\)$");
+    static Pattern reduplicatedFilenamePattern = FileNameRegistry.REDUPLICATED_FILENAME_PATTERN;
     private volatile AtomicBoolean deleted = new AtomicBoolean(false);
     private static final String TAG = "DownloadTask";
     /**
      * also {@link DownloadListener}
      */
     private DownloadManager downloadManager = DownloadManager.instance();
+    private final BandwidthLimiter.Throttle throttle = downloadManager.bandwidthLimiter.newThrottle();
 
     /**
      * only used by {@link DownloadManager}
      */
-    DownloadTask(DownloadInfo downloadInfo, OkHttpClient client) {
+    DownloadTask(DownloadInfo downloadInfo, DownloadTransport transport) {
         this.downloadInfo = downloadInfo;
-        this.client = client;
+        this.transport = transport;
         // init by download manager
         // in a single thread context
-        state = downloadInfo.getDownloadItemState();
+        stateMachine = new TaskStateMachine(downloadInfo.getDownloadItemState());
         downloadSize.set(downloadInfo.getDownloadedSize());
+        updateThrottle();
+    }
+
+    /**
+     * apply speed limit and weight of download info
+     */
+    void updateThrottle() {
+        throttle.setLimit(downloadInfo.getSpeedLimit());
+        throttle.setWeight(downloadInfo.getWeight());
     }
 
     @DownloadState
     int getState() {
-        return state;
+        return stateMachine.get();
     }
 
-    private boolean buildBaseRequest() {
-        Builder builder = new Builder();
-        try {
-            builder.url(downloadInfo.getUrl());
-        } catch (Exception e) {
+    /**
+     * @return stalls of readers and the writer in the current or last run; reset when the task runs again
+     */
+    PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    private boolean checkUrl() {
+        if (!transport.isSupported(downloadInfo.getUrl())) {
             reportError(DownloadError.ERROR_ILLEGAL_URL);
             return false;
         }
-        baseRequest = builder.build();
         return true;
     }
 
-    private InputStream doPivotCall() {
+    private BufferedSource doPivotCall() {
         File parent = new File(downloadInfo.getPath());
         if ((!parent.exists() && !parent.mkdirs()) || !parent.isDirectory()) {
             Logger.e(TAG, "cannot create directory: " + parent.getAbsolutePath());
@@ -140,29 +167,30 @@ public class DownloadTask {
             return null;
         }
 
-
-        if (state != CONNECTING) {
-            return null;
-        }
-
-        Request pivotRequest = baseRequest.newBuilder().header("Range", "bytes=0-").build();
+        Map<String, String> pivotHeaders = Collections.singletonMap("Range", "bytes=0-");
         String lastModified;
         String filename;
         long totalSize;
         boolean resumable;
 
-        InputStream is;
+        BufferedSource is;
 
         try {
-            pivotCall = client.newCall(pivotRequest);
-            Response response = pivotCall.execute();
-            ResponseBody body = response.body();
-            if (body == null) {
+            DownloadTransport.Call pivotCall = transport.newCall(downloadInfo.getUrl(), pivotHeaders);
+            this.pivotCall = pivotCall;
+            // published before checking state, so a stopper either cancels the call or is seen here
+            if (stateMachine.get() != CONNECTING) {
+                return null;
+            }
+            DownloadTransport.Response response = pivotCall.execute();
+            is = response.source();
+            if (is == null) {
+                response.close();
                 reportError(DownloadError.ERROR_EMPTY_RESPONSE);
                 return null;
             }
 
-            totalSize = body.contentLength();
+            totalSize = response.contentLength();
             if (totalSize == -1) {
                 String contentRange = response.header("Content-Rang");
                 if (contentRange != null) {
@@ -186,16 +214,16 @@ public class DownloadTask {
             if (needDecideFilename) {
                 filename = DownloadStringUtil.parseFilenameFromContentDisposition(response.header("Content-Disposition"));
                 if (filename == null || filename.isEmpty())
-                    filename = DownloadStringUtil.parseFilenameFromUrl(response.request().url().toString());
+                    filename = DownloadStringUtil.parseFilenameFromUrl(response.url());
                 if (filename.isEmpty()) {
                     filename = Constants.UNKNOWN_FILE_NAME;
                 }
-                MediaType mediaType = body.contentType();
+                String contentType = response.contentType();
                 String extension;
-                if (mediaType != null) {
-                    extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mediaType.toString());
+                if (contentType != null) {
+                    extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(contentType);
                 } else {
-                    extension = MimeTypeMap.getFileExtensionFromUrl(response.request().url().toString());
+                    extension = MimeTypeMap.getFileExtensionFromUrl(response.url());
                 }
 
                 if (extension != null && !filename.endsWith(extension)) {
@@ -208,62 +236,27 @@ public class DownloadTask {
             }
 
 
-            File file = new File(parent, filename);
+            FileNameRegistry fileNameRegistry = downloadManager.fileNameRegistry;
+            String reserved = fileNameRegistry.reserve(parent, filename);
+            if (!reserved.equals(filename)) {
+                Logger.w(TAG, "Task#" + downloadInfo.getId() + ": " + "file " + filename +
+                        " exists, use " + reserved);
+                filename = reserved;
+            }
             downloadFile = new File(parent, filename + Constants.TMP_FILE_SUFFIX);
-            int maxLength = 127 - Constants.TMP_FILE_SUFFIX.length();
-
             try {
-                fileLock.lock();
-                if (file.exists() || downloadFile.exists()) {
-                    int index = filename.lastIndexOf(".");
-                    String name;
-                    String extendName;
-                    if (index != -1) {
-                        name = filename.substring(0, index);
-                        extendName = filename.substring(index);
-                    } else {
-                        name = filename;
-                        extendName = "";
-                    }
-
-                    int cnt = 1;
-                    Matcher matcher = reduplicatedFilenamePattern.matcher(filename);
-                    if (matcher.find() && matcher.groupCount() == 2) {
-                        name = matcher.group(1);
-                        cnt = Integer.parseInt(matcher.group(2));
-                    }
-
-                    StringBuilder sb = new StringBuilder();
-                    while (file.exists() || downloadFile.exists()) {
-                        sb.delete(0, sb.length());
-                        sb.append(name).append('(').append(cnt++).append(')').append(extendName);
-                        if (sb.length() > maxLength) {
-                            sb.delete(0, sb.length() - maxLength);
-                        }
-                        filename = sb.toString();
-                        Logger.w(TAG, "Task#" + downloadInfo.getId() + ": " + "file " + file.getName() +
-                                " exists, " + " try " + filename);
-                        file = new File(parent, filename);
-                        downloadFile = new File(parent, sb.append(Constants.TMP_FILE_SUFFIX).toString());
-                    }
-                }
-                if (!preAllocation()) {
+                // tmp file holds the name once it's created; it's allocated in background later
+                if (!createTmpFile()) {
+                    response.close();
                     reportError(DownloadError.ERROR_SPACE_FULL);
                     return null;
                 }
-                is = body.byteStream();
             } finally {
-                fileLock.unlock();
+                fileNameRegistry.release(parent, filename);
             }
         } catch (IOException e) {
-            try {
-                stateLock.lock();
-                if (state == CONNECTING) {
-                    reportError(DownloadError.ERROR_CONNECT_FATAL);
-                }
-            } finally {
-                stateLock.unlock();
-            }
+            // no-op if the call is canceled by a stopper
+            reportError(DownloadError.ERROR_CONNECT_FATAL);
             return null;
         }
 
@@ -286,81 +279,60 @@ public class DownloadTask {
 
     // resume or start
     boolean start() {
-        try {
-            stateLock.lock();
-            if (runLock.tryLock()) {
-                try {
-                    if (restart) {
-                        if (state != RUNNING && state != STOPPING && state != CANCELED) {
-                            this.state = PENDING;
-                            stateChange();
-                            DownloadExecutors.io.execute(() -> {
-                                try {
-                                    runLock.lock();
-                                    this.execute();
-                                } finally {
-                                    runLock.unlock();
-                                }
-                            });
-                            return true;
-                        }
-                    } else if (state != RUNNING && state != STOPPING && state != CANCELED && state != FINISH) {
-                        state = PENDING;
-                        stateChange();
-                        DownloadExecutors.io.execute(() -> {
-                            try {
-                                runLock.lock();
-                                this.execute();
-                            } finally {
-                                runLock.unlock();
-                            }
-                        });
-                        return true;
-                    }
-
-                } finally {
-                    runLock.unlock();
-                }
-            }
+        int from = TaskStateMachine.of(PAUSED, WAITING, ERROR, FATAL_ERROR);
+        if (restart) {
+            from |= TaskStateMachine.of(FINISH);
+        }
+        if (stateMachine.moveTo(PENDING, from) == -1) {
             return false;
-        } finally {
-            stateLock.unlock();
         }
+        stateChange();
+        // waits for the tail of last run, e.g. a task resumed right after an error
+        DownloadExecutors.io.execute(() -> {
+            try {
+                runLock.lock();
+                this.execute();
+            } finally {
+                runLock.unlock();
+            }
+        });
+        return true;
     }
 
     @WorkerThread
     private void execute() {
         Logger.d(TAG, "execute: " + downloadInfo.getUrl());
 
-        try {
-            stateLock.lock();
-            if (state == PENDING) {
-                state = CONNECTING;
-                stateChange();
-                downloadManager.onDownloadConnecting(downloadInfo.getId());
-            } else if (state == WAITING || handleStopping()) {
-                return;
-            } else {
-                Logger.e(TAG, "try to preparing but get a wrong state, " +
-                        "state = " + state + "; task is:\n" + downloadInfo);
-            }
-        } finally {
-            stateLock.unlock();
+        if (!stateMachine.compareAndSet(PENDING, CONNECTING)) {
+            // paused, canceled or enqueued again before this run
+            return;
         }
+        stateChange();
+        downloadManager.onDownloadConnecting(downloadInfo.getId());
 
         // 如果是从暂停或者错误中恢复，不需要再重试
-        if ((!resuming || writeToDiskRunnables == null || downloadRunnables == null) && !initDownloadInfo()) {
+        if ((!resuming || writeToDiskRunnable == null || downloadRunnables == null) && !initDownloadInfo()) {
             handleStopping();
             return;
         }
         resuming = false;
 
+        if (!startPreallocation()) {
+            reportError(DownloadError.ERROR_SPACE_FULL);
+            handleStopping();
+            return;
+        }
+
         semaphore = new Semaphore(-1);
 
-        Set<Integer> needRequestId = new HashSet<>();
-        for (int i = 0; i < downloadRunnables.length; i++) {
-            DownloadRunnable downloadRunnable = downloadRunnables[i];
-            if (downloadRunnable.inputStream == null && downloadRunnable.threadDownloadedSize < downloadRunnable.contentLen) {
+        // ascending, so the pivot range comes first
+        Set<Integer> needRequestId = new TreeSet<>();
+        // the pivot has proved the server works, other ranges connect in their readers
+        // while the pivot body is being read
+        boolean speculative = downloadManager.speculativeConnect() && downloadRunnables.get(0).source != null;
+        for (int i = 0; i < downloadRunnables.size() && !speculative; i++) {
+            DownloadRunnable downloadRunnable = downloadRunnables.get(i);
+            if (downloadRunnable.source == null && downloadRunnable.threadDownloadedSize < downloadRunnable.contentLen) {
                 needRequestId.add(i);
             }
         }
@@ -369,14 +341,14 @@ public class DownloadTask {
         for (Integer integer : needRequestId) {
             DownloadExecutors.io.execute(() -> {
                 try {
-                    downloadRunnables[integer].connect();
+                    downloadRunnables.get(integer).connect();
                 } finally {
                     requestCountDownLatch.countDown();
                 }
             });
         }
 
-        while (requestCountDownLatch.getCount() > 0 && state == CONNECTING) {
+        while (requestCountDownLatch.getCount() > 0 && stateMachine.get() == CONNECTING) {
             try {
                 requestCountDownLatch.await();
             } catch (InterruptedException e) {
@@ -384,196 +356,220 @@ public class DownloadTask {
             }
         }
 
-        try {
-            stateLock.lock();
-            if (state != CONNECTING) {
-                handleStopping();
-                return;
+        if (!stateMachine.compareAndSet(CONNECTING, RUNNING)) {
+            handleStopping();
+            return;
+        }
+        stateChange();
+        downloadManager.onDownloadStart(downloadInfo);
+        needRequestId.clear();
+
+        startDownloadLatch = new CountDownLatch(1);
+        for (int i = 0; i < downloadRunnables.size(); i++) {
+            DownloadRunnable downloadRunnable = downloadRunnables.get(i);
+            if (downloadRunnable.threadDownloadedSize < downloadRunnable.contentLen || downloadRunnable.contentLen < 0) {
+                needRequestId.add(i);
             }
-            state = RUNNING;
-            stateChange();
-            downloadManager.onDownloadStart(downloadInfo);
-            needRequestId.clear();
+        }
 
-            startDownloadLatch = new CountDownLatch(1);
+        // the writer and the first reader are needed to make progress, they wait for threads together
+        // while the pool is full; other ranges get threads from the budget, or wait for them in deferredRanges
+        if (!admit(needRequestId.isEmpty() ? 1 : 2)) {
             for (DownloadRunnable downloadRunnable : downloadRunnables) {
-                if (downloadRunnable.threadDownloadedSize < downloadRunnable.contentLen || downloadRunnable.contentLen < 0) {
-                    needRequestId.add(downloadRunnable.id);
-                    Thread t = new Thread(downloadRunnable, "Task#" + downloadInfo.getId() + "-Download-" + downloadRunnable.id);
-                    threads.add(t);
-                    t.start();
-                }
+                downloadRunnable.closeSource();
             }
-
-
-            for (Integer id : needRequestId) {
-                Thread t = new Thread(writeToDiskRunnables[id], "Task#" + downloadInfo.getId() + "-Write-" + id);
-                threads.add(t);
-                t.start();
+            int state = stateMachine.get();
+            if (state != ERROR && state != FATAL_ERROR) {
+                handleStopping();
             }
-        } finally {
-            stateLock.unlock();
+            return;
+        }
+        // readers (deferred ones too) and the writer
+        leftActiveThreadCount.set(needRequestId.size() + 1);
+        writeToDiskRunnable.reset();
+        pipelineStats.reset();
+        writerFuture = submitJob(writeToDiskRunnable, "Task#" + downloadInfo.getId() + "-Write",
+                writeToDiskRunnable::finish);
+        deferredRanges.clear();
+        boolean first = true;
+        for (Integer i : needRequestId) {
+            if (first || DownloadExecutors.segment.acquire(1, false)) {
+                startConnection(i);
+            } else {
+                deferredRanges.add(i);
+            }
+            first = false;
+        }
+        downloadThreadCount = needRequestId.size();
+        connectionCountController = createConnectionCountController();
+        // a stopper which came before the jobs were submitted has missed them
+        if (stateMachine.get() != RUNNING) {
+            interruptBlocking();
         }
 
-
-        leftActiveThreadCount.set(needRequestId.size() * 2);
         startDownloadLatch.countDown();
 
         new ProgressWatcher().run();
+        // the writer drains what readers have read; the next run reuses them
+        awaitJobs();
+
+        int state = stateMachine.get();
+        if (!deleted.get() && (state == RUNNING
+                || (state == STOPPING && downloadSize.get() == downloadInfo.getTotalSize()))) {
+            // the name is held by tmp file until it's renamed
+            File targetFile = new File(downloadInfo.getPath(), downloadInfo.getFilename());
+            // pause will not work now
+            if (!downloadFile.renameTo(targetFile) && !(targetFile.delete() && downloadFile.renameTo(targetFile))) {
+                reportError(DownloadError.ERROR_WRITE_FILE);
+                Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot rename file "
+                        + downloadFile.getAbsolutePath() + " to " + targetFile.getAbsolutePath());
+                // stopped while renaming
+                handleStopping();
+                return;
+            }
+            PersistUtil.deleteJournal(downloadFile);
 
-        try {
-            stateLock.lock();
-            if (!deleted.get() && (state == RUNNING || downloadSize.get() == downloadInfo.getTotalSize())) {
-                try {
-                    fileLock.lock();
-                    File targetFile = new File(downloadInfo.getPath(), downloadInfo.getFilename());
-                    // pause will not work now
-                    if (!downloadFile.renameTo(targetFile) && !(targetFile.delete() && downloadFile.renameTo(targetFile))) {
-                        reportError(DownloadError.ERROR_WRITE_FILE);
-                        Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot rename file "
-                                + downloadFile.getAbsolutePath() + " to " + targetFile.getAbsolutePath());
-                        return;
-                    }
-                } finally {
-                    fileLock.unlock();
-                }
+            if (downloadInfo.getTotalSize() <= 0) {
+                downloadInfo.setTotalSize(downloadSize.get());
+            }
+            downloadInfo.setFinishedTime(new Date());
+            if (stateMachine.moveTo(FINISH, TaskStateMachine.of(RUNNING, STOPPING)) == -1) {
+                Logger.e(TAG, "Task#" + downloadInfo.getId() + " is finished in a wrong state: "
+                        + stateMachine.get());
+                return;
+            }
+            stateChange();
+            downloadManager.onDownloadFinished(downloadInfo);
+        } else if (state != ERROR && state != FATAL_ERROR && !handleStopping() && !deleted.get()) {
+            Logger.e(TAG, "Task#" + downloadInfo.getId() + " has a wrong state: " + state +
+                    "; task is\n" + downloadInfo);
+        }
+    }
 
-                if (downloadInfo.getTotalSize() <= 0) {
-                    downloadInfo.setTotalSize(downloadSize.get());
+    /**
+     * wait for threads of the writer and the first reader in {@link DownloadExecutors#segment}
+     *
+     * @return false if the task is stopped before they are admitted
+     */
+    private boolean admit(int threads) {
+        while (stateMachine.get() == RUNNING && !deleted.get()) {
+            try {
+                if (DownloadExecutors.segment.acquire(threads, ADMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
                 }
-                state = FINISH;
-                downloadInfo.setFinishedTime(new Date());
-                stateChange();
-                downloadManager.onDownloadFinished(downloadInfo);
-            } else if (state != ERROR && !handleStopping() && !deleted.get()) {
-                Logger.e(TAG, "Task#" + downloadInfo.getId() + " has a wrong state: " + state +
-                        "; task is\n" + downloadInfo);
+            } catch (InterruptedException e) {
+                // check state again
             }
-        } finally {
-            stateLock.unlock();
         }
+        return false;
     }
 
     private boolean handleStopping() {
         if (deleted.get()) {
             return true;
         }
-        try {
-            stateLock.lock();
-            if (state != STOPPING) {
-                return false;
-            }
-            switch (targetState) {
-                case PAUSED:
-                    state = PAUSED;
-                    stateChange();
-                    downloadManager.onDownloadPaused(downloadInfo.getId());
-                    preparedForResuming();
-                    return true;
-                case WAITING:
-                    state = WAITING;
-                    stateChange();
-                    downloadManager.onDownloadTaskWait(downloadInfo.getId());
-                    preparedForResuming();
-                    return true;
-                case CANCELED:
-                    state = CANCELED;
-                    stateChange();
-                    downloadManager.onDownloadCanceled(downloadInfo.getId());
-                    try {
-                        fileLock.lock();
-                        if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
-                            Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot deleted download tmp file "
-                                    + downloadFile.getAbsolutePath() + " when canceled.");
-                        }
-                    } finally {
-                        fileLock.unlock();
-                    }
-                    return true;
-            }
-            return state == PAUSED || state == WAITING;
-        } finally {
-            stateLock.unlock();
+        // waits for stoppers to report stopping first
+        switch (stateMachine.settle()) {
+            case PAUSED:
+                stateChange();
+                downloadManager.onDownloadPaused(downloadInfo.getId());
+                preparedForResuming(PAUSED);
+                return true;
+            case WAITING:
+                stateChange();
+                downloadManager.onDownloadTaskWait(downloadInfo.getId());
+                preparedForResuming(WAITING);
+                return true;
+            case CANCELED:
+                onCanceled();
+                return true;
+        }
+        int state = stateMachine.get();
+        return state == PAUSED || state == WAITING;
+    }
+
+    private void onCanceled() {
+        stateChange();
+        downloadManager.onDownloadCanceled(downloadInfo.getId());
+        if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
+            Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot deleted download tmp file "
+                    + downloadFile.getAbsolutePath() + " when canceled.");
         }
     }
 
-    private void preparedForResuming() {
+    private void preparedForResuming(@DownloadState int state) {
+        // readers resume where they have read, so nothing they read may be lost by the writer
         resuming = (state == PAUSED || state == ERROR) && downloadInfo.getResumable()
                 && downloadThreadInfos.size() > 0
-                && writeToDiskRunnables != null && downloadRunnables != null;
+                && writeToDiskRunnable != null && !writeToDiskRunnable.failed && downloadRunnables != null;
         if (!resuming) {
-            writeToDiskRunnables = null;
+            if (writeToDiskRunnable != null) {
+                writeToDiskRunnable.discard();
+            }
+            writeToDiskRunnable = null;
             downloadRunnables = null;
         }
     }
 
     @WorkerThread
     private void stateChange() {
-        if (downloadInfo != null && downloadInfo.getDownloadItemState() != state) {
-            downloadInfo.setDownloadItemState(state);
-            if (!deleted.get()) {
-                PersistUtil.persistDownloadInfoQuietly(
-                        downloadManager.daoSession,
-                        downloadInfo,
-                        null
-                );
+        synchronized (stateChangeLock) {
+            // a later transition may be made already; persist the latest one
+            int state = stateMachine.get();
+            if (downloadInfo != null && downloadInfo.getDownloadItemState() != state) {
+                downloadInfo.setDownloadItemState(state);
+                if (!deleted.get()) {
+                    PersistUtil.persistDownloadInfoQuietly(
+                            downloadManager.daoSession,
+                            downloadInfo,
+                            null
+                    );
+                }
             }
         }
     }
 
     // return if state is waiting
     boolean toWait(boolean restart) {
-        try {
-            stateLock.lock();
-            if (state == WAITING) {
-                return true;
-            }
-            if (runLock.tryLock()) {
-                try {
-                    if (state == PENDING || state == PAUSED || state == ERROR
-                            || state == FATAL_ERROR || (state == FINISH && restart)) {
-                        state = WAITING;
-                        this.restart = restart;
-                        if (restart) {
-                            resuming = false;
-                            // restart time
-                            downloadInfo.getCreatedTime().setTime(System.currentTimeMillis());
-                            downloadInfo.setDownloadedSize(0);
-                            DownloadExecutors.io.execute(() -> {
-                                PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>(0));
-                                PersistUtil.deleteFile(downloadInfo, true);
-                                stateChange();
-                            });
-                        } else {
-                            stateChange();
-                        }
-                    }
-                } finally {
-                    runLock.unlock();
-                }
-
-                return true;
-            } else if (state == RUNNING || state == CONNECTING) {
-                this.restart = false;
-                state = STOPPING;
-                targetState = WAITING;
-                interruptBlocking();
+        if (stateMachine.get() == WAITING) {
+            return true;
+        }
+        int from = TaskStateMachine.of(PENDING, PAUSED, ERROR, FATAL_ERROR);
+        if (restart) {
+            from |= TaskStateMachine.of(FINISH);
+        }
+        if (stateMachine.moveTo(WAITING, from) != -1) {
+            this.restart = restart;
+            if (restart) {
+                resuming = false;
+                // restart time
+                downloadInfo.getCreatedTime().setTime(System.currentTimeMillis());
+                downloadInfo.setDownloadedSize(0);
+                DownloadExecutors.io.execute(() -> {
+                    PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>(0));
+                    PersistUtil.deleteFile(downloadInfo, true);
+                    stateChange();
+                });
+            } else {
                 stateChange();
-                downloadManager.onDownloadStopping(downloadInfo.getId());
-                return false;
             }
-        } finally {
-            stateLock.unlock();
+            return true;
+        }
+        if (stateMachine.stop(WAITING, ACTIVE) != -1) {
+            this.restart = false;
+            interruptBlocking();
+            stateChange();
+            downloadManager.onDownloadStopping(downloadInfo.getId());
         }
-
         return false;
     }
 
     private boolean initDownloadInfo() {
-        if (!buildBaseRequest()) {
+        if (!checkUrl()) {
             return false;
         }
-        int bufferSize = MAX_BUFFER;
+        bufferSize = MAX_BUFFER;
+        journal = null;
         // try to recover from last download
         try {
             if (!restart) {
@@ -582,6 +578,8 @@ public class DownloadTask {
                     for (DownloadThreadInfo downloadThreadInfo : downloadThreadInfoList) {
                         downloadThreadInfos.put(downloadThreadInfo.getTid(), downloadThreadInfo);
                     }
+                    openJournal();
+                    reconcileJournal();
                     long tmp = 0;
                     for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
                         DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.valueAt(i);
@@ -621,8 +619,10 @@ public class DownloadTask {
             }
         }
 
-        InputStream is = null;
+        BufferedSource is = null;
+        boolean freshRanges = false;
         if (downloadThreadInfos.size() == 0 || downloadInfo.getFilename() == null) {
+            freshRanges = true;
             downloadSize.set(0);
             // fetch last download info if possible
             is = doPivotCall();
@@ -640,6 +640,7 @@ public class DownloadTask {
                         0, -1, downloadInfo.getId()
                 ));
             } else {
+                downloadThreadCount = initialConnectionCount(totalSize);
                 long downloadLen = totalSize / downloadThreadCount;
                 long lenSum = 0, last;
                 for (int i = 0; i < downloadThreadCount; i++) {
@@ -656,30 +657,232 @@ public class DownloadTask {
             }
         }
 
-        writeToDiskRunnables = new WriteToDiskRunnable[downloadThreadCount];
-        downloadRunnables = new DownloadRunnable[downloadThreadCount];
+        if (writeToDiskRunnable != null) {
+            writeToDiskRunnable.discard();
+        }
+        writeToDiskRunnable = new WriteToDiskRunnable();
+        downloadRunnables = new CopyOnWriteArrayList<>();
         for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
-            DownloadBuffer downloadBuffer = new DownloadBuffer(bufferSize);
-            DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(i);
-            downloadRunnables[i] = new DownloadRunnable(
+            DownloadBuffer downloadBuffer = newDownloadBuffer();
+            DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.valueAt(i);
+            downloadRunnables.add(new DownloadRunnable(
                     downloadThreadInfo.getStartPosition(),
                     downloadThreadInfo.getDownloadedSize(),
                     downloadThreadInfo.getTotalSize(),
-                    downloadBuffer, downloadThreadInfos.get(i).getTid()
-            );
-            writeToDiskRunnables[i] = new WriteToDiskRunnable(
-                    downloadThreadInfo.getStartPosition(),
-                    downloadThreadInfo.getTotalSize(),
-                    downloadThreadInfo.getTid(),
-                    downloadBuffer);
+                    downloadBuffer, downloadThreadInfo.getTid()
+            ));
+        }
+        downloadRunnables.get(0).source = is;
+        openJournal();
+        ProgressJournal journal = this.journal;
+        if (journal != null) {
+            if (freshRanges) {
+                journal.reset(downloadInfo.getId(), downloadInfo.getTotalSize());
+            }
+            for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
+                recordJournal(downloadThreadInfos.valueAt(i));
+            }
         }
-        downloadRunnables[0].inputStream = is;
         if (!deleted.get()) {
             PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, downloadThreadInfos);
         }
         return true;
     }
 
+    private void openJournal() {
+        if (journal != null || !downloadManager.progressJournal() || !downloadInfo.getResumable()
+                || downloadInfo.getTotalSize() <= 0 || downloadInfo.getFilename() == null) {
+            return;
+        }
+        File tmpFile = new File(downloadInfo.getPath(), downloadInfo.getFilename() + Constants.TMP_FILE_SUFFIX);
+        try {
+            journal = ProgressJournal.open(ProgressJournal.fileOf(tmpFile),
+                    downloadInfo.getId(), downloadInfo.getTotalSize());
+        } catch (IOException e) {
+            Logger.e(TAG, "Task#" + downloadInfo.getId() + " cannot open progress journal; " +
+                    "checkpoint to database instead", e);
+        }
+    }
+
+    /**
+     * Journal is written after every write while database only has the last checkpoint,
+     * so ranges in journal win; ranges split after the checkpoint only exist in journal.
+     */
+    private void reconcileJournal() {
+        ProgressJournal journal = this.journal;
+        if (journal == null || !journal.isRecovered()) {
+            return;
+        }
+        for (ProgressJournal.Range range : journal.ranges()) {
+            if (range.downloaded < 0 || range.downloaded > range.total) {
+                continue;
+            }
+            DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(range.tid);
+            if (downloadThreadInfo == null) {
+                downloadThreadInfos.put(range.tid, new DownloadThreadInfo(
+                        null, range.tid, range.start,
+                        range.downloaded, range.total, downloadInfo.getId()));
+            } else if (downloadThreadInfo.getStartPosition() == range.start) {
+                downloadThreadInfo.setTotalSize(range.total);
+                downloadThreadInfo.setDownloadedSize(range.downloaded);
+            }
+        }
+    }
+
+    private void recordJournal(DownloadThreadInfo downloadThreadInfo) {
+        ProgressJournal journal = this.journal;
+        if (journal != null && !journal.record(downloadThreadInfo.getTid(), downloadThreadInfo.getStartPosition(),
+                downloadThreadInfo.getTotalSize(), downloadThreadInfo.getDownloadedSize())) {
+            Logger.w(TAG, "Task#" + downloadInfo.getId() + " has too many ranges for progress journal; " +
+                    "checkpoint to database instead");
+            this.journal = null;
+        }
+    }
+
+    private DownloadBuffer newDownloadBuffer() {
+        return new DownloadBuffer(bufferSize, writeToDiskRunnable.filledSegments, downloadManager.segmentPool,
+                downloadManager.minPipelineDepth(), downloadManager.maxPipelineDepth(), pipelineStats);
+    }
+
+    private int maxConnectionCount() {
+        int connectionCount = downloadInfo.getConnectionCount();
+        return connectionCount > 0 ? connectionCount : downloadManager.maxConnectionCount();
+    }
+
+    /**
+     * A fixed connection count set when submitting is used as it is.
+     * Otherwise start with a few connections and let {@link ConnectionCountController} add more.
+     * Small files which cannot be split into ranges of {@link DownloadManager#minRangeSize()} use one connection.
+     */
+    private int initialConnectionCount(long totalSize) {
+        int count = downloadInfo.getConnectionCount() > 0 ? downloadInfo.getConnectionCount() : INITIAL_CONNECTION_COUNT;
+        count = Math.min(count, maxConnectionCount());
+        long maxCountBySize = totalSize / downloadManager.minRangeSize();
+        if (maxCountBySize < count) {
+            count = (int) maxCountBySize;
+        }
+        return Math.max(count, 1);
+    }
+
+    private ConnectionCountController createConnectionCountController() {
+        if (downloadInfo.getConnectionCount() > 0 || !downloadInfo.getResumable() || downloadInfo.getTotalSize() <= 0) {
+            return null;
+        }
+        return new ConnectionCountController(downloadThreadCount, maxConnectionCount());
+    }
+
+    /**
+     * Run reader of a connection in {@link DownloadExecutors#segment}.
+     * Thread of the reader must be acquired first.
+     */
+    private void startConnection(int index) {
+        DownloadRunnable downloadRunnable = downloadRunnables.get(index);
+        WriteToDiskRunnable writer = writeToDiskRunnable;
+        downloadRunnable.downloadBuffer.open();
+        submitJob(downloadRunnable, "Task#" + downloadInfo.getId() + "-Download-" + index, () -> {
+                    downloadRunnable.closeSource();
+                    downloadRunnable.downloadBuffer.close();
+                    leftActiveThreadCount.decrementAndGet();
+                    if (writer.discarded || deleted.get()) {
+                        writer.discard();
+                    }
+                    DownloadExecutors.segment.release(1);
+                });
+    }
+
+    private Future<?> submitJob(Runnable job, String name, Runnable onFinish) {
+        runningJobs.incrementAndGet();
+        Future<?> future = DownloadExecutors.segment.submit(job, name, () -> {
+            try {
+                onFinish.run();
+            } finally {
+                synchronized (runningJobs) {
+                    if (runningJobs.decrementAndGet() == 0) {
+                        runningJobs.notifyAll();
+                    }
+                }
+            }
+        });
+        segmentFutures.add(future);
+        return future;
+    }
+
+    /**
+     * wait for segment jobs of the run; stopped jobs return soon, since stoppers cancel their io
+     */
+    private void awaitJobs() {
+        synchronized (runningJobs) {
+            while (runningJobs.get() > 0) {
+                try {
+                    runningJobs.wait();
+                } catch (InterruptedException e) {
+                    // wait again
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a range which got no thread from the budget when the task started.
+     * Only called by {@link ProgressWatcher} when task is running;
+     * if no reader of the task is running, a thread is admitted beyond the budget up to max threads,
+     * so the task doesn't starve while other tasks use up the budget.
+     */
+    private void startDeferredRanges() {
+        Integer index;
+        while ((index = deferredRanges.peek()) != null) {
+            // writer doesn't exit while ranges are deferred
+            int runningReaders = leftActiveThreadCount.get() - 1 - deferredRanges.size();
+            if (!DownloadExecutors.segment.acquire(1, runningReaders <= 0)) {
+                return;
+            }
+            synchronized (connectionLock) {
+                if (stateMachine.get() != RUNNING || deleted.get()) {
+                    DownloadExecutors.segment.release(1);
+                    return;
+                }
+                deferredRanges.poll();
+                startConnection(index);
+            }
+        }
+    }
+
+    /**
+     * Open one more connection which takes half of the largest remaining range.
+     * Only called by {@link ProgressWatcher} when task is running;
+     * threads of the new connection must be acquired from {@link DownloadExecutors#segment} first.
+     *
+     * @return true if a new connection is started; otherwise caller should release the acquired threads
+     */
+    private boolean addConnection() {
+        synchronized (connectionLock) {
+            if (stateMachine.get() != RUNNING || deleted.get()) {
+                return false;
+            }
+            // writer only exits under connectionLock when all readers are finished
+            if (leftActiveThreadCount.get() <= 1) {
+                return false;
+            }
+            leftActiveThreadCount.incrementAndGet();
+
+            DownloadBuffer downloadBuffer = newDownloadBuffer();
+            DownloadRunnable downloadRunnable = new DownloadRunnable(0, 0, 0, downloadBuffer, -1);
+            int index;
+            synchronized (rangeLock) {
+                if (!stealRange(downloadRunnable)) {
+                    leftActiveThreadCount.decrementAndGet();
+                    return false;
+                }
+                index = downloadRunnables.size();
+                downloadRunnables.add(downloadRunnable);
+            }
+            downloadThreadCount++;
+            startConnection(index);
+            Logger.d(TAG, "Task#" + downloadInfo.getId() + ": add connection, count = " + downloadThreadCount);
+            return true;
+        }
+    }
+
     private int chooseBufferSize(long totalLen) {
         if (totalLen == -1) {
             return MAX_BUFFER;
@@ -699,73 +902,53 @@ public class DownloadTask {
     }
 
     private void interruptBlocking() {
-        try {
-            stateLock.lock();
-            if (pivotCall != null) {
-                pivotCall.cancel();
-            }
+        DownloadTransport.Call pivotCall = this.pivotCall;
+        if (pivotCall != null) {
+            pivotCall.cancel();
+        }
 
-            if (downloadRunnables != null) {
-                for (DownloadRunnable downloadRunnable : downloadRunnables) {
-                    downloadRunnable.cancelRequest();
-                }
-            }
+        Preallocator preallocator = this.preallocator;
+        if (preallocator != null) {
+            preallocator.cancel();
+        }
 
-            Iterator<Thread> iterator = threads.iterator();
-            while (iterator.hasNext()) {
-                Thread t = iterator.next();
-                if (!t.isInterrupted()) {
-                    t.interrupt();
-                }
-                iterator.remove();
+        List<DownloadRunnable> downloadRunnables = this.downloadRunnables;
+        if (downloadRunnables != null) {
+            for (DownloadRunnable downloadRunnable : downloadRunnables) {
+                downloadRunnable.cancelRequest();
             }
-            threads.clear();
-        } finally {
-            stateLock.unlock();
+        }
+
+        // interrupts running readers; jobs not started yet are skipped.
+        // the writer isn't interrupted, which would close its channel: it stops by state and drains
+        Future<?> writerFuture = this.writerFuture;
+        for (Future<?> future : segmentFutures) {
+            future.cancel(future != writerFuture);
+            // jobs submitted meanwhile are kept for the next stopper
+            segmentFutures.remove(future);
         }
     }
 
     void pause() {
-        try {
-            stateLock.lock();
-            if (runLock.tryLock()) {
-                try {
-                    if (state == PAUSED || state == CANCELED) {
-                        return;
-                    }
-                    state = PAUSED;
-                    stateChange();
-                    downloadManager.onDownloadPaused(downloadInfo.getId());
-                } finally {
-                    runLock.unlock();
-                }
-            } else {
-                if (state != RUNNING && state != CONNECTING) {
-                    return;
-                }
-                state = STOPPING;
-                targetState = PAUSED;
-                stateChange();
-                interruptBlocking();
-                downloadManager.onDownloadStopping(downloadInfo.getId());
-            }
-        } finally {
-            stateLock.unlock();
+        if (stateMachine.stop(PAUSED, ACTIVE) != -1) {
+            interruptBlocking();
+            stateChange();
+            downloadManager.onDownloadStopping(downloadInfo.getId());
+        } else if (stateMachine.moveTo(PAUSED, TaskStateMachine.of(PENDING, WAITING, ERROR, FATAL_ERROR)) != -1) {
+            stateChange();
+            downloadManager.onDownloadPaused(downloadInfo.getId());
         }
     }
 
     void cancel() {
-        try {
-            stateLock.lock();
-            if (state != CANCELED) {
-                targetState = CANCELED;
-                state = STOPPING;
-                interruptBlocking();
-                stateChange();
-                downloadManager.onDownloadStopping(downloadInfo.getId());
-            }
-        } finally {
-            stateLock.unlock();
+        if (stateMachine.stop(CANCELED, TaskStateMachine.of(CONNECTING, RUNNING, STOPPING)) != -1) {
+            interruptBlocking();
+            stateChange();
+            downloadManager.onDownloadStopping(downloadInfo.getId());
+        } else if (stateMachine.moveTo(CANCELED,
+                TaskStateMachine.of(PENDING, PAUSED, WAITING, ERROR, FATAL_ERROR, FINISH)) != -1) {
+            // nothing is running to settle it
+            onCanceled();
         }
     }
 
@@ -776,9 +959,15 @@ public class DownloadTask {
         }
         try {
             interruptBlocking();
+            WriteToDiskRunnable writeToDiskRunnable = this.writeToDiskRunnable;
+            if (writeToDiskRunnable != null) {
+                writeToDiskRunnable.discard();
+            }
         } catch (Exception e) {
             Logger.e("DownloadTask", "error when stop task#" + downloadInfo.getId(), e);
         } finally {
+            // a watcher still running may hand in a checkpoint after this
+            downloadManager.progressCheckpointer.discard(downloadInfo.getId());
             PersistUtil.deleteFile(downloadInfo, deleteFile);
             PersistUtil.deleteDownloadInfo(downloadManager.daoSession, downloadInfo);
         }
@@ -788,69 +977,58 @@ public class DownloadTask {
         if (deleted.get()) {
             return;
         }
-        try {
-            stateLock.lock();
-            if (state != CONNECTING && state != RUNNING) {
-                return;
-            }
-            interruptBlocking();
-            boolean fatal = downloadError.isFatal(code);
-            Logger.e(TAG, "error: " + downloadError.translate(code) + "; isFatal: " + fatal +
-                    "; task is\n" + downloadInfo);
-            downloadInfo.setErrorCode(code);
-            if (fatal) {
-                state = FATAL_ERROR;
-                if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
-                    Logger.e(TAG, "cannot deleted " + downloadFile.getAbsolutePath() + " when fatal error");
-                }
-                PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>());
-            } else {
-                state = ERROR;
-                preparedForResuming();
+        boolean fatal = downloadError.isFatal(code);
+        if (stateMachine.moveTo(fatal ? FATAL_ERROR : ERROR, ACTIVE) == -1) {
+            return;
+        }
+        interruptBlocking();
+        Logger.e(TAG, "error: " + downloadError.translate(code) + "; isFatal: " + fatal +
+                "; task is\n" + downloadInfo);
+        downloadInfo.setErrorCode(code);
+        if (fatal) {
+            if (downloadFile != null && downloadFile.exists() && !downloadFile.delete()) {
+                Logger.e(TAG, "cannot deleted " + downloadFile.getAbsolutePath() + " when fatal error");
             }
+            PersistUtil.persistDownloadInfoQuietly(downloadManager.daoSession, downloadInfo, new SparseArray<>());
+        } else {
+            preparedForResuming(ERROR);
+        }
 
-            stateChange();
-            downloadManager.onDownloadError(downloadInfo.getId(), code, fatal);
+        stateChange();
+        downloadManager.onDownloadError(downloadInfo.getId(), code, fatal);
+    }
 
-        } finally {
-            stateLock.unlock();
+    private boolean createTmpFile() {
+        try {
+            return downloadFile.exists() || downloadFile.createNewFile();
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    private boolean preAllocation() {
-        String filename = downloadInfo.getFilename();
+    /**
+     * allocate rest of tmp file in background; writers wait for their regions
+     *
+     * @return false if there's not enough space
+     */
+    private boolean startPreallocation() {
+        preallocator = null;
         long totalSize = downloadInfo.getTotalSize();
-        if (downloadFile == null) {
-            downloadFile = new File(downloadInfo.getPath(), filename + Constants.TMP_FILE_SUFFIX);
+        if (deleted.get() || totalSize <= 0 || downloadFile.length() >= totalSize) {
+            return true;
         }
-
-        try {
-            if (downloadFile.exists() || (totalSize == -1 && downloadFile.createNewFile())) {
-                return true;
-            }
-        } catch (IOException e) {
+        if (!Preallocator.hasSpace(downloadFile, totalSize)) {
             return false;
         }
-
-        if (!deleted.get()) {
-            try (RandomAccessFile raf = new RandomAccessFile(downloadFile, "rw")) {
-                if (!deleted.get()) {
-                    raf.setLength(totalSize);
-                }
-            } catch (FileNotFoundException e) {
-                if (BuildConfig.DEBUG) {
-                    e.printStackTrace();
-                }
-                return false;
-            } catch (IOException e) {
-                if (BuildConfig.DEBUG) {
-                    e.printStackTrace();
-                }
-                return false;
+        Preallocator preallocator = new Preallocator(downloadFile, totalSize, Preallocator.DEFAULT_CHUNK_SIZE, e -> {
+            if (BuildConfig.DEBUG) {
+                e.printStackTrace();
             }
-        }
-
-        return !deleted.get();
+            reportError(DownloadError.ERROR_SPACE_FULL);
+        });
+        this.preallocator = preallocator;
+        DownloadExecutors.io.execute(preallocator);
+        return true;
     }
 
     @IntDef({PENDING, CONNECTING, RUNNING, STOPPING, PAUSED, FINISH, WAITING, CANCELED, ERROR, FATAL_ERROR})
@@ -859,19 +1037,75 @@ public class DownloadTask {
     }
 
     private boolean checkEnd() {
-        try {
-            stateLock.lock();
-            boolean result = leftActiveThreadCount.get() <= 0 || state != RUNNING;
-            if (result && !deleted.get()) {
-                PersistUtil.persistDownloadInfoQuietly(
-                        downloadManager.daoSession,
-                        downloadInfo,
-                        downloadThreadInfos
-                );
+        boolean result = leftActiveThreadCount.get() <= 0 || stateMachine.get() != RUNNING;
+        if (result && !deleted.get()) {
+            // final state must not be overwritten by a checkpoint in flight
+            downloadManager.progressCheckpointer.remove(downloadInfo.getId());
+            PersistUtil.persistDownloadInfoQuietly(
+                    downloadManager.daoSession,
+                    downloadInfo,
+                    snapshotThreadInfos()
+            );
+        }
+        return result;
+    }
+
+    private SparseArray<DownloadThreadInfo> snapshotThreadInfos() {
+        synchronized (rangeLock) {
+            return downloadThreadInfos.clone();
+        }
+    }
+
+    /**
+     * Called by a {@link DownloadRunnable} which has finished its own range.
+     * It takes the second half of the largest unfinished range, so that the connection
+     * keeps working instead of waiting for the slowest range.
+     * The new boundary is recorded as a new {@link DownloadThreadInfo}.
+     *
+     * @return true if thief is bound to a stolen range
+     */
+    private boolean stealRange(DownloadRunnable thief) {
+        if (!downloadInfo.getResumable() || downloadInfo.getTotalSize() <= 0) {
+            return false;
+        }
+        synchronized (rangeLock) {
+            DownloadRunnable victim = null;
+            long maxLeft = 0;
+            for (DownloadRunnable downloadRunnable : downloadRunnables) {
+                if (downloadRunnable == thief || downloadRunnable.contentLen <= 0) {
+                    continue;
+                }
+                long left = downloadRunnable.contentLen - downloadRunnable.threadDownloadedSize;
+                if (left > maxLeft) {
+                    maxLeft = left;
+                    victim = downloadRunnable;
+                }
             }
-            return result;
-        } finally {
-            stateLock.unlock();
+            // victim may be reading at most one buffer with its old range,
+            // min range size is far larger than that
+            long stealLen = maxLeft / 2;
+            if (victim == null || stealLen < Math.max(downloadManager.minRangeSize(), MAX_BUFFER)) {
+                return false;
+            }
+            long victimLen = victim.contentLen - stealLen;
+            long splitPos = victim.startPos + victimLen;
+            victim.contentLen = victimLen;
+            downloadThreadInfos.get(victim.id).setTotalSize(victimLen);
+            int tid = downloadThreadInfos.keyAt(downloadThreadInfos.size() - 1) + 1;
+            DownloadThreadInfo stolen = new DownloadThreadInfo(
+                    null, tid, splitPos,
+                    0, stealLen, downloadInfo.getId());
+            downloadThreadInfos.put(tid, stolen);
+            // new range first: a crash in between leaves an overlap instead of a hole
+            recordJournal(stolen);
+            recordJournal(downloadThreadInfos.get(victim.id));
+            Logger.d(TAG, "Task#" + downloadInfo.getId() + ": range " + thief.id + " steals "
+                    + stealLen + "B at " + splitPos + " from range " + victim.id);
+            thief.startPos = splitPos;
+            thief.contentLen = stealLen;
+            thief.threadDownloadedSize = 0;
+            thief.id = tid;
+            return true;
         }
     }
 
@@ -879,14 +1113,15 @@ public class DownloadTask {
         private long startPos;
         private long contentLen;
         private long threadDownloadedSize;
-        private Call call;
+        private volatile DownloadTransport.Call call;
         private final int retryCount = 2;
         private final DownloadBuffer downloadBuffer;
         /**
          * @see DownloadThreadInfo#getTid()
+         * changes when this runnable steals a range
          */
-        private final int id;
-        private InputStream inputStream;
+        private int id;
+        private BufferedSource source;
 
         DownloadRunnable(long startPos, long threadDownloadedSize, long contentLen, DownloadBuffer downloadBuffer, int id) {
             this.startPos = startPos;
@@ -897,13 +1132,9 @@ public class DownloadTask {
         }
 
         private void cancelRequest() {
-            try {
-                stateLock.lock();
-                if (call != null) {
-                    call.cancel();
-                }
-            } finally {
-                stateLock.unlock();
+            DownloadTransport.Call call = this.call;
+            if (call != null) {
+                call.cancel();
             }
         }
 
@@ -919,19 +1150,18 @@ public class DownloadTask {
                 }
                 innerRun();
             } finally {
-                leftActiveThreadCount.decrementAndGet();
-                closeInputStream();
+                closeSource();
             }
         }
 
-        private void closeInputStream() {
-            if (inputStream != null) {
+        private void closeSource() {
+            if (source != null) {
                 try {
-                    inputStream.close();
+                    source.close();
                 } catch (IOException e) {
                     // quietly
                 } finally {
-                    inputStream = null;
+                    source = null;
                 }
             }
         }
@@ -939,94 +1169,102 @@ public class DownloadTask {
         private void connect() {
             long currentPos = startPos + threadDownloadedSize;
             if (currentPos < startPos + contentLen || contentLen == -1) {
-                Request request;
+                Map<String, String> headers = new HashMap<>();
                 boolean requestPartCheck = false;
                 boolean resumable = downloadInfo.getResumable();
-                if (contentLen > 0 && resumable) {
-                    Builder builder = baseRequest.newBuilder()
-                            .addHeader("Range", "bytes=" + currentPos + "-" + (startPos + contentLen - 1));
-                    if (downloadInfo.getLastModified() != null) {
-                        builder.addHeader("If-Range", downloadInfo.getLastModified()).build();
-                        requestPartCheck = true;
+                if (resumable) {
+                    if (contentLen > 0) {
+                        headers.put("Range", "bytes=" + currentPos + "-" + (startPos + contentLen - 1));
+                    } else {
+                        headers.put("Range", "bytes=" + currentPos + "-");
                     }
-                    request = builder.build();
-                } else if (resumable) {
-                    Builder builder = baseRequest.newBuilder()
-                            .addHeader("Range", "bytes=" + currentPos + "-");
                     if (downloadInfo.getLastModified() != null) {
-                        builder.addHeader("If-Range", downloadInfo.getLastModified()).build();
+                        headers.put("If-Range", downloadInfo.getLastModified());
                         requestPartCheck = true;
                     }
-                    request = builder.build();
                 } else {
                     startPos = 0;
                     threadDownloadedSize = 0;
                     downloadSize.set(0);
-                    request = baseRequest;
                 }
 
                 boolean success = false;
                 int retryCount = this.retryCount;
-                ResponseBody body = null;
+                BufferedSource body = null;
                 do {
                     try {
-                        try {
-                            stateLock.lock();
-                            cancelRequest();
-                            call = client.newCall(request);
-                            if ((state != CONNECTING && state != RUNNING) || deleted.get()) {
-                                closeInputStream();
-                                return;
-                            }
-                        } finally {
-                            stateLock.unlock();
+                        cancelRequest();
+                        DownloadTransport.Call call = transport.newCall(downloadInfo.getUrl(), headers);
+                        this.call = call;
+                        // published before checking state, so a stopper either cancels the call or is seen here
+                        if (!stateMachine.is(ACTIVE) || deleted.get()) {
+                            closeSource();
+                            return;
                         }
-                        Response response = call.execute();
+                        DownloadTransport.Response response = call.execute();
 
-                        if (!response.isSuccessful() || ((body = response.body()) == null))
+                        int code = response.code();
+                        if (code < 200 || code >= 300 || ((body = response.source()) == null)) {
+                            response.close();
                             continue;
-                        MediaType mediaType = body.contentType();
-                        boolean checkPart = mediaType == null;
-                        if (mediaType != null) {
-                            String type = mediaType.type();
-                            checkPart = !"text".equals(type) && !"image".equals(type);
                         }
-                        if (requestPartCheck && response.code() == 200 && checkPart) {
+                        String contentType = response.contentType();
+                        boolean checkPart = contentType == null;
+                        if (contentType != null) {
+                            int index = contentType.indexOf('/');
+                            String type = index == -1 ? contentType : contentType.substring(0, index);
+                            checkPart = !"text".equalsIgnoreCase(type) && !"image".equalsIgnoreCase(type);
+                        }
+                        if (requestPartCheck && code == 200 && checkPart) {
+                            response.close();
                             reportError(DownloadError.ERROR_CONTENT_EXPIRED);
-                            closeInputStream();
+                            closeSource();
                             return;
                         }
                         retryCount = 0;
                         success = true;
                     } catch (IOException e) {
-                        try {
-                            stateLock.lock();
-                            if (deleted.get() || (state == RUNNING || state == CONNECTING)) {
-                                return;
-                            }
-                        } finally {
-                            stateLock.unlock();
+                        if (deleted.get() || stateMachine.is(ACTIVE)) {
+                            return;
                         }
                         Logger.e("DownloadTask", "Connect error! retry=" + retryCount, e);
                     }
-                } while (retryCount-- > 0 && !deleted.get() && (state == RUNNING || state == CONNECTING));
+                } while (retryCount-- > 0 && !deleted.get() && stateMachine.is(ACTIVE));
 
                 if (!success) {
                     reportError(DownloadError.ERROR_CONNECT);
                     return;
                 }
 
-                inputStream = Objects.requireNonNull(body).byteStream();
+                source = body;
             }
 
         }
 
         private void innerRun() {
-            InputStream is = inputStream;
+            if (source == null && threadDownloadedSize < contentLen) {
+                // a connection added while running
+                connect();
+                if (source == null) {
+                    reportError(DownloadError.ERROR_CONNECT);
+                    return;
+                }
+            }
+            BufferedSource is = source;
 
             int retryCount = this.retryCount;
             Segment segment;
-            while (state == RUNNING && !deleted.get()) {
+            while (stateMachine.get() == RUNNING && !deleted.get()) {
+                if (contentLen > 0 && threadDownloadedSize >= contentLen && stealRange(this)) {
+                    closeSource();
+                    connect();
+                    is = source;
+                    if (is == null) {
+                        reportError(DownloadError.ERROR_CONNECT);
+                    }
+                    continue;
+                }
+
                 try {
                     segment = downloadBuffer.availableWriteSegment(bufferTimeout);
                 } catch (InterruptedException e) {
@@ -1045,56 +1283,46 @@ public class DownloadTask {
 
                 try {
                     if (is != null && !deleted.get()) {
-                        long left = segment.buffer.length;
+                        ByteBuffer byteBuffer = segment.byteBuffer;
+                        long left = byteBuffer.capacity();
                         if (contentLen > 0) {
-                            left = contentLen - threadDownloadedSize;
+                            synchronized (rangeLock) {
+                                left = contentLen - threadDownloadedSize;
+                            }
                         }
 
                         if (left > 0) {
-                            long start = System.nanoTime();
-                            readSize = is.read(segment.buffer, 0, Math.min(segment.buffer.length, (int) left));
-
-                            long targetBps = downloadManager.singleTaskSpeedLimit();
-                            if (targetBps > 0) {
-                                long sleepTime = (long) (readSize * 1000.0 / (targetBps / Math.max(downloadThreadCount, 1)) - (System.nanoTime() - start) / 1000_000.0);
-                                if (sleepTime > 0) {
-                                    try {
-                                        Thread.sleep(sleepTime);
-                                    } catch (InterruptedException e) {
-                                        // do nothing
-                                    }
-                                }
-                            }
+                            byteBuffer.clear();
+                            byteBuffer.limit((int) Math.min(byteBuffer.capacity(), left));
+                            // okio copies its segments straight into the buffer, which can be direct
+                            readSize = is.read(byteBuffer);
+                            downloadManager.bandwidthLimiter.acquire(throttle, readSize);
                         }
                     }
-                    segment.startPos = startPos + threadDownloadedSize;
-                    segment.tid = this.id;
-                    segment.readSize = readSize;
-                    if (readSize > 0) {
-                        threadDownloadedSize += segment.readSize;
+                    synchronized (rangeLock) {
+                        segment.startPos = startPos + threadDownloadedSize;
+                        segment.tid = this.id;
+                        segment.readSize = readSize;
+                        if (readSize > 0) {
+                            threadDownloadedSize += segment.readSize;
+                        }
                     }
                     downloadBuffer.enqueueReadSegment(segment);
                     enqueueBuffer = true;
                 } catch (IOException e) {
-                    try {
-                        stateLock.lock();
-                        if (state == RUNNING && retryCount-- <= 0) {
-                            reportError(DownloadError.ERROR_NETWORK);
-                            if (BuildConfig.DEBUG) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        } else if (state == RUNNING) {
-                            Logger.e("DownloadTask", "Error! Try to retry(" + retryCount + ")...");
-                            connect();
-                            is = inputStream;
-                            if (state == RUNNING) {
-                                Logger.d("DownloadTask", "retry(" + retryCount + ") connect successfully!");
-                            }
-                            continue;
+                    // reconnect without blocking stoppers; a stopper cancels the new call instead
+                    if (stateMachine.get() == RUNNING && retryCount-- <= 0) {
+                        reportError(DownloadError.ERROR_NETWORK);
+                        if (BuildConfig.DEBUG) {
+                            e.printStackTrace();
+                        }
+                    } else if (stateMachine.get() == RUNNING) {
+                        Logger.e("DownloadTask", "Error! Try to retry(" + retryCount + ")...");
+                        connect();
+                        is = source;
+                        if (stateMachine.get() == RUNNING) {
+                            Logger.d("DownloadTask", "retry(" + retryCount + ") connect successfully!");
                         }
-                    } finally {
-                        stateLock.unlock();
                     }
                     continue;
                 } finally {
@@ -1112,117 +1340,231 @@ public class DownloadTask {
         }
     }
 
+    /**
+     * The only writer of a task; drains filled segments of all readers and
+     * writes them through one {@link FileChannel}.
+     */
     private class WriteToDiskRunnable implements Runnable {
-        private final int id;
-        private long startPos;
-        private long contentLen;
+        // segments filled in one drain are written together
+        private static final int MAX_BATCH = 16;
+        private static final long POLL_TIMEOUT_MS = 100;
         private final int retryCount = 2;
-        private final DownloadBuffer downloadBuffer;
-
-        WriteToDiskRunnable(long startPos, long contentLen, int id, DownloadBuffer downloadBuffer) {
-            this.startPos = startPos;
-            this.contentLen = contentLen;
-            this.id = id;
-            this.downloadBuffer = downloadBuffer;
+        // all segments of a reader are in this queue at most; no need to bound it
+        private final BlockingQueue<Segment> filledSegments = new LinkedBlockingQueue<>();
+        private final List<Segment> batch = new ArrayList<>(MAX_BATCH);
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean discarded;
+        // segments were dropped without being written
+        private volatile boolean failed;
+        // segments of a range come in order, cache thread info of last segment
+        private DownloadThreadInfo downloadThreadInfo;
+
+        void reset() {
+            finished.set(false);
         }
 
         @Override
         public void run() {
-            try {
-                while (startDownloadLatch.getCount() > 0) {
-                    try {
-                        startDownloadLatch.await();
-                    } catch (InterruptedException e) {
-                        return;
-                    }
+            while (startDownloadLatch.getCount() > 0) {
+                try {
+                    startDownloadLatch.await();
+                } catch (InterruptedException e) {
+                    return;
                 }
-                innerRun();
-            } finally {
+            }
+            innerRun();
+        }
+
+        /**
+         * called when job is finished or cancelled
+         */
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
                 leftActiveThreadCount.decrementAndGet();
             }
+            Logger.d(TAG, "Task#" + downloadInfo.getId() + " pipeline: " + pipelineStats);
+            if (discarded || deleted.get()) {
+                discard();
+            }
+            DownloadExecutors.segment.release(1);
         }
 
         private void innerRun() {
-            DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.get(id);
-            if (contentLen != -1 && downloadThreadInfo.getDownloadedSize() >= contentLen) {
-                return;
-            }
             int retryCount = this.retryCount;
             RandomAccessFile raf = null;
 
             while (!deleted.get()) {
                 try {
                     raf = new RandomAccessFile(downloadFile, "rw");
-                    raf.seek(startPos + downloadThreadInfo.getDownloadedSize());
                     break;
                 } catch (IOException e) {
+                    if (retryCount > 0 && stateMachine.get() == RUNNING) {
+                        retryCount--;
+                        continue;
+                    }
+                    if (BuildConfig.DEBUG) {
+                        e.printStackTrace();
+                    }
+                    reportError(DownloadError.ERROR_WRITE_FILE);
+                    return;
+                }
+            }
+
+            try {
+                if (raf != null) {
+                    writeSegments(new SegmentWriter(raf.getChannel(), MAX_BATCH));
+                }
+            } finally {
+                if (raf != null) {
                     try {
-                        stateLock.lock();
-                        if (retryCount > 0 && (state == RUNNING)) {
-                            retryCount--;
-                            continue;
-                        }
-                        if (BuildConfig.DEBUG) {
-                            e.printStackTrace();
-                        }
-                        reportError(DownloadError.ERROR_WRITE_FILE);
-                        return;
-                    } finally {
-                        stateLock.unlock();
+                        raf.close();
+                    } catch (IOException e) {
+                        // quietly
                     }
                 }
             }
+        }
 
+        private void writeSegments(SegmentWriter segmentWriter) {
             Segment segment;
-            while ((state == RUNNING) && !deleted.get() && raf != null) {
-                try {
-                    segment = downloadBuffer.availableReadSegment(bufferTimeout);
-                } catch (InterruptedException e) {
-                    continue;
+            while ((stateMachine.get() == RUNNING) && !deleted.get()) {
+                segment = filledSegments.poll();
+                if (segment == null) {
+                    long start = System.nanoTime();
+                    try {
+                        segment = filledSegments.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        continue;
+                    } finally {
+                        pipelineStats.onWriterBlocked(System.nanoTime() - start);
+                    }
                 }
 
-                // timeout
                 if (segment == null) {
+                    if (tryExit()) {
+                        break;
+                    }
                     continue;
                 }
 
-                //-----------------------segment must return to buffer!--------------------------//
+                batch.add(segment);
+                filledSegments.drainTo(batch, MAX_BATCH - 1);
+                if (!writeBatch(segmentWriter)) {
+                    return;
+                }
+            }
 
-                boolean enqueueBuffer = false;
-                try {
-                    int writeSize = segment.readSize;
-                    if (writeSize > 0 && !deleted.get()) {
-                        try {
-                            raf.write(segment.buffer, 0, writeSize);
-                            downloadSize.addAndGet(writeSize);
-                            // inform watcher to update progress
-                            semaphore.release();
-                            downloadBuffer.enqueueWriteSegment(segment);
-                            enqueueBuffer = true;
-                            long downloadedSize = downloadThreadInfo.getDownloadedSize();
-                            downloadThreadInfo.setDownloadedSize(downloadedSize + writeSize);
-                        } catch (IOException e) {
-                            try {
-                                stateLock.lock();
-                                if (state == RUNNING) {
-                                    reportError(DownloadError.ERROR_DOWNLOAD_FAIL);
-                                    if (BuildConfig.DEBUG) {
-                                        e.printStackTrace();
-                                    }
-                                    return;
-                                }
-                            } finally {
-                                stateLock.unlock();
-                            }
+            // stopped; write what readers have read so that their segments go back to pool
+            while (!deleted.get() && (segment = filledSegments.poll()) != null) {
+                batch.add(segment);
+                filledSegments.drainTo(batch, MAX_BATCH - 1);
+                if (!writeBatch(segmentWriter)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return false if failed to write
+         */
+        private boolean writeBatch(SegmentWriter segmentWriter) {
+            //-----------------------segments must return to buffer!--------------------------//
+            try {
+                if (deleted.get()) {
+                    return false;
+                }
+                if (!awaitAllocated()) {
+                    failed = true;
+                    return false;
+                }
+                segmentWriter.write(batch);
+                long writeSize = 0;
+                for (Segment s : batch) {
+                    if (s.readSize <= 0) {
+                        continue;
+                    }
+                    writeSize += s.readSize;
+                    // read by checkpoints and range stealing
+                    synchronized (rangeLock) {
+                        if (downloadThreadInfo == null || downloadThreadInfo.getTid() != s.tid) {
+                            downloadThreadInfo = downloadThreadInfos.get(s.tid);
+                        }
+                        downloadThreadInfo.setDownloadedSize(downloadThreadInfo.getDownloadedSize() + s.readSize);
+                        if (journal != null) {
+                            recordJournal(downloadThreadInfo);
                         }
-                    } else {
-                        break;
                     }
-                } finally {
-                    if (!enqueueBuffer) {
-                        downloadBuffer.enqueueWriteSegment(segment);
+                }
+                if (writeSize > 0) {
+                    downloadSize.addAndGet(writeSize);
+                    // inform watcher to update progress
+                    semaphore.release();
+                }
+                return true;
+            } catch (IOException e) {
+                failed = true;
+                if (stateMachine.get() == RUNNING) {
+                    reportError(DownloadError.ERROR_DOWNLOAD_FAIL);
+                    if (BuildConfig.DEBUG) {
+                        e.printStackTrace();
                     }
                 }
+                return false;
+            } finally {
+                for (Segment s : batch) {
+                    s.owner.enqueueWriteSegment(s);
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * @return false if tmp file cannot be allocated up to end of the batch
+         */
+        private boolean awaitAllocated() {
+            Preallocator preallocator = DownloadTask.this.preallocator;
+            if (preallocator == null) {
+                return true;
+            }
+            long end = 0;
+            for (Segment s : batch) {
+                if (s.readSize > 0) {
+                    end = Math.max(end, s.startPos + s.readSize);
+                }
+            }
+            try {
+                return preallocator.awaitReady(end);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Task won't resume with this writer; give segments which are not written back to pool.
+         */
+        void discard() {
+            discarded = true;
+            Segment segment;
+            while ((segment = filledSegments.poll()) != null) {
+                segment.owner.enqueueWriteSegment(segment);
+            }
+        }
+
+        /**
+         * exit when all readers are finished and all their segments are written
+         */
+        private boolean tryExit() {
+            if (leftActiveThreadCount.get() > 1 || !filledSegments.isEmpty()) {
+                return false;
+            }
+            synchronized (connectionLock) {
+                // readers only enqueue segments before they finish
+                if (leftActiveThreadCount.get() == 1 && filledSegments.isEmpty()
+                        && finished.compareAndSet(false, true)) {
+                    leftActiveThreadCount.decrementAndGet();
+                    return true;
+                }
+                return false;
             }
         }
     }
@@ -1240,16 +1582,21 @@ public class DownloadTask {
         private final int maxSkipTime = 3;
         private long lastDeltaSize;
         private long lastDeltaTime;
+        private long lastCheckpointSize;
+        private long lastReportedSize;
 
         @Override
         public void run() {
             lastTimeNano = System.nanoTime();
             lastBps = 0;
             lastDownloadSize = downloadSize.get();
+            lastCheckpointSize = lastDownloadSize;
+            lastReportedSize = lastDownloadSize;
             while (true) {
                 if (checkEnd()) {
                     return;
                 }
+                startDeferredRanges();
 
                 boolean acquire = false;
 
@@ -1266,13 +1613,34 @@ public class DownloadTask {
                 long current = downloadSize.get();
                 long downloaded = current - lastDownloadSize;
 
-                if (downloaded > 0 && !deleted.get()) {
+                ConcurrencyController concurrencyController = downloadManager.concurrencyController;
+                if (concurrencyController != null) {
+                    concurrencyController.onBytes(current - lastReportedSize);
+                    lastReportedSize = current;
+                }
+
+                ConnectionCountController connectionCountController = DownloadTask.this.connectionCountController;
+                if (connectionCountController != null && deferredRanges.isEmpty()
+                        && connectionCountController.onProgress(current, System.nanoTime())
+                        // pool is saturated; ask again in next window
+                        && DownloadExecutors.segment.acquire(1, false)) {
+                    boolean added = addConnection();
+                    if (!added) {
+                        DownloadExecutors.segment.release(1);
+                    }
+                    connectionCountController.onConnectionAdded(added);
+                }
+
+                // journal has recorded progress already
+                if (current > lastCheckpointSize && journal == null && !deleted.get()) {
                     downloadInfo.setDownloadedSize(current);
-                    PersistUtil.persistDownloadInfoQuietly(
-                            downloadManager.daoSession,
-                            downloadInfo,
-                            downloadThreadInfos
-                    );
+                    PersistUtil.Checkpoint checkpoint;
+                    synchronized (rangeLock) {
+                        checkpoint = new PersistUtil.Checkpoint(downloadInfo.getId(), current, downloadThreadInfos);
+                    }
+                    downloadManager.progressCheckpointer.update(downloadInfo.getId(), checkpoint,
+                            current - lastCheckpointSize);
+                    lastCheckpointSize = current;
                 }
 
                 if (interrupted) {
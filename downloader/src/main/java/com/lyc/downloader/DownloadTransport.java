@@ -0,0 +1,66 @@
+package com.lyc.downloader;
+
+import okio.BufferedSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sends the pivot request and range requests of {@link DownloadTask}s.
+ * Calls are executed synchronously on download threads and may be cancelled from any thread.
+ * The default one is backed by OkHttp and configured by {@link Configuration.Builder};
+ * set another one by {@link Configuration.Builder#setTransport(DownloadTransport)}.
+ * It is used in the download process, so it has to be set in every process the same way.
+ */
+public interface DownloadTransport {
+
+    /**
+     * @return false if url can't be requested by this transport, task fails with
+     * {@link DownloadError#ERROR_ILLEGAL_URL}
+     */
+    boolean isSupported(String url);
+
+    /**
+     * @param headers request headers, such as "Range" and "If-Range"
+     */
+    Call newCall(String url, Map<String, String> headers);
+
+    interface Call {
+        Response execute() throws IOException;
+
+        /**
+         * makes a blocking {@link #execute()} or reading of {@link Response#source()} fail with IOException
+         */
+        void cancel();
+    }
+
+    interface Response extends Closeable {
+        int code();
+
+        /**
+         * @return null if absent
+         */
+        String header(String name);
+
+        /**
+         * @return -1 if unknown
+         */
+        long contentLength();
+
+        /**
+         * @return full media type such as "text/html; charset=utf-8", null if unknown
+         */
+        String contentType();
+
+        /**
+         * @return url of the final request after redirects
+         */
+        String url();
+
+        /**
+         * @return null if response has no body
+         */
+        BufferedSource source();
+    }
+}
@@ -0,0 +1,112 @@
+package com.lyc.downloader;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reserves names of download files in memory, so tasks in the same directory never pick the same name
+ * while their tmp files are not created yet.
+ * Directories are striped over a few locks; only tasks in the same stripe wait for each other,
+ * and only while names are checked, never while files are allocated.
+ * <p>
+ * A name is taken if it's reserved, or the file or its tmp file exists.
+ * Release the name once the tmp file is created.
+ */
+class FileNameRegistry {
+    static final Pattern REDUPLICATED_FILENAME_PATTERN = Pattern.compile("^(.*)\\(([1-9][0-9]*)\\)$");
+    private static final int STRIPES = 16;
+
+    private final String tmpSuffix;
+    private final int maxLength;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param tmpSuffix suffix of tmp file of a download file
+     */
+    FileNameRegistry(String tmpSuffix) {
+        this.tmpSuffix = tmpSuffix;
+        // 127 bytes at most with tmp suffix
+        this.maxLength = 127 - tmpSuffix.length();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @param filename preferred name; "name(n).ext" is tried when it's taken
+     * @return reserved name; must be {@link #release(File, String) released}
+     */
+    String reserve(File parent, String filename) {
+        String dir = parent.getAbsolutePath();
+        Stripe stripe = stripes[stripe(dir)];
+        synchronized (stripe) {
+            Set<String> names = stripe.reserved.get(dir);
+            if (names == null) {
+                names = new HashSet<>();
+                stripe.reserved.put(dir, names);
+            }
+            if (isTaken(parent, filename, names)) {
+                int index = filename.lastIndexOf(".");
+                String name;
+                String extendName;
+                if (index != -1) {
+                    name = filename.substring(0, index);
+                    extendName = filename.substring(index);
+                } else {
+                    name = filename;
+                    extendName = "";
+                }
+
+                int cnt = 1;
+                Matcher matcher = REDUPLICATED_FILENAME_PATTERN.matcher(filename);
+                if (matcher.find() && matcher.groupCount() == 2) {
+                    name = matcher.group(1);
+                    cnt = Integer.parseInt(matcher.group(2));
+                }
+
+                StringBuilder sb = new StringBuilder();
+                do {
+                    sb.delete(0, sb.length());
+                    sb.append(name).append('(').append(cnt++).append(')').append(extendName);
+                    if (sb.length() > maxLength) {
+                        sb.delete(0, sb.length() - maxLength);
+                    }
+                    filename = sb.toString();
+                } while (isTaken(parent, filename, names));
+            }
+            names.add(filename);
+            return filename;
+        }
+    }
+
+    void release(File parent, String filename) {
+        String dir = parent.getAbsolutePath();
+        Stripe stripe = stripes[stripe(dir)];
+        synchronized (stripe) {
+            Set<String> names = stripe.reserved.get(dir);
+            if (names != null && names.remove(filename) && names.isEmpty()) {
+                stripe.reserved.remove(dir);
+            }
+        }
+    }
+
+    private boolean isTaken(File parent, String filename, Set<String> names) {
+        return names.contains(filename) || new File(parent, filename).exists()
+                || new File(parent, filename + tmpSuffix).exists();
+    }
+
+    private static int stripe(String dir) {
+        int h = dir.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static class Stripe {
+        // directory -> reserved names; guarded by the stripe
+        final Map<String, Set<String>> reserved = new HashMap<>();
+    }
+}
@@ -34,8 +34,24 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
     }
 
     @Override
-    public void submit(String url, String path, String filename, ISubmitCallback callback) {
-        downloadManager.submit(url, path, filename, callback);
+    public void submit(String url, String path, String filename, int connectionCount,
+                       long speedLimit, int weight, ISubmitCallback callback) {
+        downloadManager.submit(url, path, filename, connectionCount, speedLimit, weight, callback);
+    }
+
+    @Override
+    public void submitAll(List<SubmitRequest> requests, ISubmitAllCallback callback) {
+        downloadManager.submitAll(requests, callback);
+    }
+
+    @Override
+    public void setTaskSpeedLimit(long id, long speedLimit, int weight) {
+        downloadManager.setTaskSpeedLimit(id, speedLimit, weight);
+    }
+
+    @Override
+    public void setTaskPriority(long id, int priority, long deadline) {
+        downloadManager.setTaskPriority(id, priority, deadline);
     }
 
     @Override
@@ -58,6 +74,11 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
         return downloadManager.queryFinishedDownloadInfoList();
     }
 
+    @Override
+    public List<TaskSummary> queryTaskSummaries(int stateMask, long afterId, int limit, int fields) {
+        return downloadManager.queryTaskSummaries(stateMask, afterId, limit, fields);
+    }
+
     @Override
     public void startAll() {
         downloadManager.startAll();
@@ -137,4 +158,9 @@ public final class IDownloadService$StubImp extends IDownloadService.Stub {
     public void setSendMessageIntervalNanos(long time) {
         downloadManager.setSendMessageIntervalNanos(time);
     }
+
+    @Override
+    public float getSegmentPoolSaturation() {
+        return downloadManager.getSegmentPoolSaturation();
+    }
 }
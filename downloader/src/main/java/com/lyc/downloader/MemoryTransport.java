@@ -0,0 +1,177 @@
+package com.lyc.downloader;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link DownloadTransport} serving contents put in memory, for tests and benchmarks without network.
+ * Supports "Range: bytes=start-" and "Range: bytes=start-end"; responds 404 to unknown urls.
+ */
+public class MemoryTransport implements DownloadTransport {
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    // at most these bytes are buffered ahead of the caller, and served after the call is canceled
+    static final int READ_CHUNK = 1024;
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    public void put(String url, byte[] content) {
+        contents.put(url, content);
+    }
+
+    public void remove(String url) {
+        contents.remove(url);
+    }
+
+    @Override
+    public boolean isSupported(String url) {
+        return url != null;
+    }
+
+    @Override
+    public Call newCall(String url, Map<String, String> headers) {
+        return new MemoryCall(url, headers);
+    }
+
+    private class MemoryCall implements Call {
+        private final String url;
+        private final Map<String, String> headers;
+        private volatile boolean canceled;
+
+        MemoryCall(String url, Map<String, String> headers) {
+            this.url = url;
+            this.headers = headers;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            checkCanceled();
+            byte[] content = contents.get(url);
+            if (content == null) {
+                return new MemoryResponse(404, url, Collections.emptyMap(), null, 0, 0);
+            }
+            String range = headers.get("Range");
+            if (range == null) {
+                return new MemoryResponse(200, url, Collections.singletonMap("Accept-Ranges", "bytes"),
+                        content, 0, content.length);
+            }
+            long start;
+            long end;
+            try {
+                if (!range.startsWith("bytes=")) {
+                    throw new NumberFormatException(range);
+                }
+                int index = range.indexOf('-');
+                start = Long.parseLong(range.substring("bytes=".length(), index));
+                end = index == range.length() - 1 ? content.length - 1
+                        : Math.min(Long.parseLong(range.substring(index + 1)), content.length - 1);
+            } catch (RuntimeException e) {
+                return new MemoryResponse(400, url, Collections.emptyMap(), null, 0, 0);
+            }
+            if (start >= content.length || start > end) {
+                return new MemoryResponse(416, url,
+                        Collections.singletonMap("Content-Range", "bytes */" + content.length), null, 0, 0);
+            }
+            Map<String, String> responseHeaders = new HashMap<>();
+            responseHeaders.put("Accept-Ranges", "bytes");
+            responseHeaders.put("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            return new MemoryResponse(206, url, responseHeaders, content, (int) start, (int) (end - start + 1));
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+        }
+
+        private void checkCanceled() throws IOException {
+            if (canceled) {
+                throw new IOException("Canceled");
+            }
+        }
+
+        /**
+         * Every read from the source checks cancellation first; it's read in chunks of {@link #READ_CHUNK},
+         * so a caller reading at least that much at a time never gets bytes after the call is canceled.
+         */
+        private Source cancelable(Source source) {
+            return new ForwardingSource(source) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    checkCanceled();
+                    return super.read(sink, Math.min(byteCount, READ_CHUNK));
+                }
+            };
+        }
+
+        private class MemoryResponse implements Response {
+            private final int code;
+            private final String url;
+            private final Map<String, String> headers;
+            private final long contentLength;
+            private final BufferedSource source;
+
+            MemoryResponse(int code, String url, Map<String, String> headers, byte[] content, int offset, int length) {
+                this.code = code;
+                this.url = url;
+                this.headers = headers;
+                if (content == null) {
+                    contentLength = -1;
+                    source = null;
+                } else {
+                    contentLength = length;
+                    source = Okio.buffer(cancelable(Okio.source(new ByteArrayInputStream(content, offset, length))));
+                }
+            }
+
+            @Override
+            public int code() {
+                return code;
+            }
+
+            @Override
+            public String header(String name) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey().equalsIgnoreCase(name)) {
+                        return header.getValue();
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public String contentType() {
+                return source == null ? null : CONTENT_TYPE;
+            }
+
+            @Override
+            public String url() {
+                return url;
+            }
+
+            @Override
+            public BufferedSource source() {
+                return source;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        }
+    }
+}
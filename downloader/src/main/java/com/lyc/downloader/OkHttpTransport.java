@@ -0,0 +1,167 @@
+package com.lyc.downloader;
+
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okhttp3.logging.HttpLoggingInterceptor.Level;
+import okio.BufferedSource;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link DownloadTransport}.
+ * Calls are executed on download threads, so the dispatcher of the client is never used.
+ */
+class OkHttpTransport implements DownloadTransport {
+    private final OkHttpClient client;
+
+    OkHttpTransport(OkHttpClient client) {
+        this.client = client;
+    }
+
+    static OkHttpTransport create(Configuration configuration) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(configuration.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(configuration.readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(configuration.maxIdleConnections,
+                        configuration.keepAliveMillis, TimeUnit.MILLISECONDS));
+        if (configuration.socketReceiveBufferSize > 0) {
+            builder.socketFactory(new ReceiveBufferSocketFactory(configuration.socketReceiveBufferSize));
+        }
+        if (configuration.httpLogging) {
+            HttpLoggingInterceptor httpLoggingInterceptor = new HttpLoggingInterceptor();
+            httpLoggingInterceptor.setLevel(Level.HEADERS);
+            builder.addInterceptor(httpLoggingInterceptor);
+        }
+        return new OkHttpTransport(builder.build());
+    }
+
+    @Override
+    public boolean isSupported(String url) {
+        return url != null && HttpUrl.parse(url) != null;
+    }
+
+    @Override
+    public Call newCall(String url, Map<String, String> headers) {
+        Request.Builder builder = new Request.Builder().url(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        return new OkHttpCall(client.newCall(builder.build()));
+    }
+
+    private static class OkHttpCall implements Call {
+        private final okhttp3.Call call;
+
+        OkHttpCall(okhttp3.Call call) {
+            this.call = call;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            return new OkHttpResponse(call.execute());
+        }
+
+        @Override
+        public void cancel() {
+            call.cancel();
+        }
+    }
+
+    private static class OkHttpResponse implements Response {
+        private final okhttp3.Response response;
+        private final ResponseBody body;
+
+        OkHttpResponse(okhttp3.Response response) {
+            this.response = response;
+            this.body = response.body();
+        }
+
+        @Override
+        public int code() {
+            return response.code();
+        }
+
+        @Override
+        public String header(String name) {
+            return response.header(name);
+        }
+
+        @Override
+        public long contentLength() {
+            return body == null ? -1 : body.contentLength();
+        }
+
+        @Override
+        public String contentType() {
+            MediaType mediaType = body == null ? null : body.contentType();
+            return mediaType == null ? null : mediaType.toString();
+        }
+
+        @Override
+        public String url() {
+            return response.request().url().toString();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return body == null ? null : body.source();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+    }
+
+    /**
+     * sets SO_RCVBUF before connecting, so the tcp window is scaled for it
+     */
+    private static class ReceiveBufferSocketFactory extends SocketFactory {
+        private final SocketFactory delegate = SocketFactory.getDefault();
+        private final int receiveBufferSize;
+
+        ReceiveBufferSocketFactory(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return configure(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return configure(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return configure(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return configure(delegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket configure(Socket socket) throws IOException {
+            socket.setReceiveBufferSize(receiveBufferSize);
+            return socket;
+        }
+    }
+}
@@ -7,39 +7,46 @@ import com.lyc.downloader.db.DownloadInfoDao;
 import com.lyc.downloader.db.DownloadThreadInfo;
 import com.lyc.downloader.db.DownloadThreadInfoDao;
 import com.lyc.downloader.utils.Logger;
+import org.greenrobot.greendao.Property;
+import org.greenrobot.greendao.database.Database;
+import org.greenrobot.greendao.database.DatabaseStatement;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
 
 /**
  * Created by Liu Yuchuan on 2019/5/21.
  */
 class PersistUtil {
-
-    private static final Comparator<DownloadThreadInfo> THREAD_INFO_COMPARATOR = (o1, o2) -> {
-        if (o1 == null) {
-            return o2 == null ? 0 : -1;
-        }
-
-        if (o2 == null) {
-            return 1;
-        }
-
-        Long id1 = o1.getId();
-        Long id2 = o2.getId();
-        if (id1 == null) {
-            return id2 == null ? 0 : -1;
-        }
-
-        if (id2 == null) {
-            return 1;
-        }
-
-        return Long.compare(id1, id2);
-    };
+    private static final String THREAD_INFO_TABLE = "\"" + DownloadThreadInfoDao.TABLENAME + "\"";
+    private static final String INFO_TABLE = "\"" + DownloadInfoDao.TABLENAME + "\"";
+    private static final String UPDATE_DOWNLOADED_SIZE = "UPDATE " + INFO_TABLE
+            + " SET " + column(DownloadInfoDao.Properties.DownloadedSize) + "=?"
+            + " WHERE " + column(DownloadInfoDao.Properties.Id) + "=?";
+    private static final String UPDATE_RANGE = "UPDATE " + THREAD_INFO_TABLE
+            + " SET " + column(DownloadThreadInfoDao.Properties.StartPosition) + "=?, "
+            + column(DownloadThreadInfoDao.Properties.DownloadedSize) + "=?, "
+            + column(DownloadThreadInfoDao.Properties.TotalSize) + "=?"
+            + " WHERE " + column(DownloadThreadInfoDao.Properties.DownloadInfoId) + "=?"
+            + " AND " + column(DownloadThreadInfoDao.Properties.Tid) + "=?";
+    // ranges split since last persist; only for tasks which still exist
+    private static final String INSERT_RANGE = "INSERT INTO " + THREAD_INFO_TABLE + " ("
+            + column(DownloadThreadInfoDao.Properties.StartPosition) + ", "
+            + column(DownloadThreadInfoDao.Properties.DownloadedSize) + ", "
+            + column(DownloadThreadInfoDao.Properties.TotalSize) + ", "
+            + column(DownloadThreadInfoDao.Properties.DownloadInfoId) + ", "
+            + column(DownloadThreadInfoDao.Properties.Tid) + ") SELECT ?1, ?2, ?3, ?4, ?5"
+            + " WHERE EXISTS (SELECT 1 FROM " + INFO_TABLE
+            + " WHERE " + column(DownloadInfoDao.Properties.Id) + "=?4)"
+            + " AND NOT EXISTS (SELECT 1 FROM " + THREAD_INFO_TABLE
+            + " WHERE " + column(DownloadThreadInfoDao.Properties.DownloadInfoId) + "=?4"
+            + " AND " + column(DownloadThreadInfoDao.Properties.Tid) + "=?5)";
+
+    private static String column(Property property) {
+        return "\"" + property.columnName + "\"";
+    }
 
     static void persisDownloadThreadInfoQuietly(DaoSession daoSession, DownloadThreadInfo downloadThreadInfo) {
         DownloadThreadInfoDao downloadThreadInfoDao = daoSession.getDownloadThreadInfoDao();
@@ -76,19 +83,17 @@ class PersistUtil {
             if (downloadThreadInfos != null) {
                 downloadInfo.resetDownloadThreadInfos();
                 List<DownloadThreadInfo> oldDownloadThreadInfos = downloadInfo.getDownloadThreadInfos();
-                boolean needDelete = oldDownloadThreadInfos.size() != downloadThreadInfos.size();
-                if (!needDelete) {
-                    Collections.sort(oldDownloadThreadInfos, THREAD_INFO_COMPARATOR);
-
-                    for (int i = 0, s = oldDownloadThreadInfos.size(); i < s; i++) {
-                        if (!Objects.equals(downloadThreadInfos.get(i).getId(), oldDownloadThreadInfos.get(i).getId())) {
-                            needDelete = true;
-                            break;
-                        }
+                // ranges may be split while downloading,
+                // so only delete the rows which are not present any more
+                Set<Long> ids = new HashSet<>();
+                for (int i = 0, s = downloadThreadInfos.size(); i < s; i++) {
+                    Long id = downloadThreadInfos.valueAt(i).getId();
+                    if (id != null) {
+                        ids.add(id);
                     }
                 }
-                if (needDelete) {
-                    for (DownloadThreadInfo oldDownloadThreadInfo : oldDownloadThreadInfos) {
+                for (DownloadThreadInfo oldDownloadThreadInfo : oldDownloadThreadInfos) {
+                    if (!ids.contains(oldDownloadThreadInfo.getId())) {
                         downloadThreadInfoDao.delete(oldDownloadThreadInfo);
                     }
                 }
@@ -103,6 +108,48 @@ class PersistUtil {
 
     }
 
+    /**
+     * Progress of all tasks in one transaction. Checkpoints are plain values, so the rows are
+     * updated by statements instead of entities, which belong to tasks; ranges are matched by tid,
+     * and rows of deleted tasks are never written again.
+     */
+    static void persistCheckpoints(DaoSession daoSession, List<Checkpoint> checkpoints) {
+        Database db = daoSession.getDatabase();
+        DatabaseStatement updateDownloadedSize = db.compileStatement(UPDATE_DOWNLOADED_SIZE);
+        DatabaseStatement updateRange = db.compileStatement(UPDATE_RANGE);
+        DatabaseStatement insertRange = db.compileStatement(INSERT_RANGE);
+        try {
+            daoSession.runInTx(() -> {
+                for (Checkpoint checkpoint : checkpoints) {
+                    updateDownloadedSize.bindLong(1, checkpoint.downloadedSize);
+                    updateDownloadedSize.bindLong(2, checkpoint.downloadInfoId);
+                    updateDownloadedSize.execute();
+                    long[] ranges = checkpoint.ranges;
+                    for (int i = 0; i < ranges.length; i += Checkpoint.RANGE_FIELDS) {
+                        bindRange(updateRange, checkpoint.downloadInfoId, ranges, i);
+                        updateRange.execute();
+                        bindRange(insertRange, checkpoint.downloadInfoId, ranges, i);
+                        insertRange.execute();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Logger.e("PersistUtil", "cannot persist checkpoints", e);
+        } finally {
+            updateDownloadedSize.close();
+            updateRange.close();
+            insertRange.close();
+        }
+    }
+
+    private static void bindRange(DatabaseStatement statement, long downloadInfoId, long[] ranges, int offset) {
+        statement.bindLong(1, ranges[offset + 1]);
+        statement.bindLong(2, ranges[offset + 2]);
+        statement.bindLong(3, ranges[offset + 3]);
+        statement.bindLong(4, downloadInfoId);
+        statement.bindLong(5, ranges[offset]);
+    }
+
     static void deleteDownloadInfo(DaoSession daoSession, DownloadInfo downloadInfo) {
         if (downloadInfo == null || downloadInfo.getId() == null) {
             return;
@@ -141,5 +188,43 @@ class PersistUtil {
         if (file.exists() && !file.delete()) {
             Logger.e("PersistUtil", "cannot delete temp file " + file.getAbsolutePath());
         }
+        deleteJournal(file);
+    }
+
+    static void deleteJournal(File tmpFile) {
+        File journal = ProgressJournal.fileOf(tmpFile);
+        if (journal.exists() && !journal.delete()) {
+            Logger.e("PersistUtil", "cannot delete progress journal " + journal.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Progress of a task copied when it's taken, so a commit never reads entities the task is writing.
+     */
+    static class Checkpoint {
+        // tid, start position, downloaded size and total size of each range
+        static final int RANGE_FIELDS = 4;
+
+        final long downloadInfoId;
+        final long downloadedSize;
+        final long[] ranges;
+
+        /**
+         * @param downloadThreadInfos ranges of the task; caller holds the lock of them
+         */
+        Checkpoint(long downloadInfoId, long downloadedSize, SparseArray<DownloadThreadInfo> downloadThreadInfos) {
+            this.downloadInfoId = downloadInfoId;
+            this.downloadedSize = downloadedSize;
+            int size = downloadThreadInfos.size();
+            ranges = new long[size * RANGE_FIELDS];
+            for (int i = 0; i < size; i++) {
+                DownloadThreadInfo downloadThreadInfo = downloadThreadInfos.valueAt(i);
+                int offset = i * RANGE_FIELDS;
+                ranges[offset] = downloadThreadInfo.getTid();
+                ranges[offset + 1] = downloadThreadInfo.getStartPosition();
+                ranges[offset + 2] = downloadThreadInfo.getDownloadedSize();
+                ranges[offset + 3] = downloadThreadInfo.getTotalSize();
+            }
+        }
     }
 }
@@ -0,0 +1,69 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How often and how long readers and the writer of a task block on each other.
+ * Readers waiting for free segments means disk is the bottleneck;
+ * the writer waiting for filled segments means network is.
+ */
+class PipelineStats {
+    private final AtomicLong readerBlocks = new AtomicLong();
+    private final AtomicLong readerBlockedNanos = new AtomicLong();
+    private final AtomicLong writerBlocks = new AtomicLong();
+    private final AtomicLong writerBlockedNanos = new AtomicLong();
+    private final AtomicLong depthGrows = new AtomicLong();
+
+    void onReaderBlocked(long nanos) {
+        readerBlocks.incrementAndGet();
+        readerBlockedNanos.addAndGet(nanos);
+    }
+
+    void onWriterBlocked(long nanos) {
+        writerBlocks.incrementAndGet();
+        writerBlockedNanos.addAndGet(nanos);
+    }
+
+    void onDepthGrown() {
+        depthGrows.incrementAndGet();
+    }
+
+    void reset() {
+        readerBlocks.set(0);
+        readerBlockedNanos.set(0);
+        writerBlocks.set(0);
+        writerBlockedNanos.set(0);
+        depthGrows.set(0);
+    }
+
+    long getReaderBlocks() {
+        return readerBlocks.get();
+    }
+
+    long getReaderBlockedNanos() {
+        return readerBlockedNanos.get();
+    }
+
+    long getWriterBlocks() {
+        return writerBlocks.get();
+    }
+
+    long getWriterBlockedNanos() {
+        return writerBlockedNanos.get();
+    }
+
+    long getDepthGrows() {
+        return depthGrows.get();
+    }
+
+    @Override
+    public String toString() {
+        long readerMs = TimeUnit.NANOSECONDS.toMillis(readerBlockedNanos.get());
+        long writerMs = TimeUnit.NANOSECONDS.toMillis(writerBlockedNanos.get());
+        return "readers blocked " + readerBlocks.get() + " times (" + readerMs + "ms), " +
+                "writer blocked " + writerBlocks.get() + " times (" + writerMs + "ms), " +
+                "depth grown " + depthGrows.get() + " times; bottleneck: " +
+                (readerMs > writerMs ? "disk" : "network");
+    }
+}
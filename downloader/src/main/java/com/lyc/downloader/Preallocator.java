@@ -0,0 +1,116 @@
+package com.lyc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Grows a tmp file to its total size in the background, chunk by chunk, so the first byte
+ * doesn't wait for a multi-GB allocation. {@link RandomAccessFile#setLength(long)} is sparse on
+ * most file systems, but writes zeros on FAT; chunks keep it cancellable there.
+ * <p>
+ * File is only grown, and writers wait by {@link #awaitReady(long)} until their region is allocated,
+ * so a write is never truncated by a later setLength.
+ * <p>
+ * It runs in a pooled thread, so it's cancelled by a flag rather than an interrupt, checked between chunks.
+ * Once no chunk is being allocated, writers of a cancelled allocation grow the file by themselves.
+ */
+class Preallocator implements Runnable {
+    static final long DEFAULT_CHUNK_SIZE = 64 << 20;
+
+    interface Callback {
+        void onFailed(IOException e);
+    }
+
+    private final File file;
+    private final long totalSize;
+    private final long chunkSize;
+    private final Callback callback;
+    // guarded by this
+    private long readyLength;
+    private boolean done;
+    private boolean failed;
+    // a chunk is being allocated
+    private boolean growing;
+    private boolean cancelled;
+
+    Preallocator(File file, long totalSize, long chunkSize, Callback callback) {
+        this.file = file;
+        this.totalSize = totalSize;
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.callback = callback;
+    }
+
+    /**
+     * @return false if there is not enough space for the rest of the file
+     */
+    static boolean hasSpace(File file, long totalSize) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return true;
+        }
+        long need = totalSize - file.length();
+        return need <= 0 || parent.getUsableSpace() >= need;
+    }
+
+    @Override
+    public void run() {
+        IOException failure = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            ready(Math.min(length, totalSize));
+            while (length < totalSize && startGrowing()) {
+                length = Math.min(length + chunkSize, totalSize);
+                raf.setLength(length);
+                ready(length);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        boolean failed;
+        synchronized (this) {
+            done = true;
+            growing = false;
+            failed = this.failed = failure != null && !cancelled;
+            notifyAll();
+        }
+        if (failed) {
+            callback.onFailed(failure);
+        }
+    }
+
+    /**
+     * stop growing the file after the chunk being allocated
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * @return true if file is allocated up to end, or a cancelled allocation leaves the rest to writers;
+     * false if allocation failed
+     */
+    synchronized boolean awaitReady(long end) throws InterruptedException {
+        long target = Math.min(end, totalSize);
+        while (readyLength < target && !done && !(cancelled && !growing)) {
+            wait();
+        }
+        return readyLength >= target || !failed;
+    }
+
+    synchronized long getReadyLength() {
+        return readyLength;
+    }
+
+    private synchronized boolean startGrowing() {
+        growing = !cancelled;
+        return growing;
+    }
+
+    private synchronized void ready(long length) {
+        readyLength = length;
+        growing = false;
+        notifyAll();
+    }
+}
@@ -0,0 +1,209 @@
+package com.lyc.downloader;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind progress of all tasks.
+ * Tasks only hand in their latest checkpoint; a background thread merges them and
+ * commits them in one transaction when {@link #bytesThreshold} bytes are downloaded since last commit
+ * or {@link #intervalNanos} has passed, whichever comes first.
+ * <p>
+ * Tasks call {@link #remove(long)} before they persist their final state (pause, stop, finish, delete),
+ * which waits for the commit in flight, so an older checkpoint never lands after it.
+ * Deleted tasks call {@link #discard(long)} instead; their checkpoints are dropped for good,
+ * even if an update of the task races with the deletion.
+ */
+class ProgressCheckpointer<T> {
+    static final long DEFAULT_BYTES_THRESHOLD = 8 << 20;
+    static final long DEFAULT_INTERVAL_MS = 1000;
+
+    interface Committer<T> {
+        /**
+         * persist checkpoints of different tasks in one transaction
+         */
+        void commit(List<T> checkpoints);
+    }
+
+    private final Committer<T> committer;
+    private final long bytesThreshold;
+    private final long intervalNanos;
+    private final Lock lock = new ReentrantLock();
+    private final Condition thresholdReached = lock.newCondition();
+    // held while committing
+    private final Lock commitLock = new ReentrantLock();
+    // guarded by lock; latest checkpoint of each task
+    private final Map<Long, T> pending = new LinkedHashMap<>();
+    // guarded by lock; deleted tasks, whose ids are never reused
+    private final Set<Long> discarded = new HashSet<>();
+    private long pendingBytes;
+    private long commits;
+    private long checkpoints;
+
+    ProgressCheckpointer(Committer<T> committer) {
+        this(committer, DEFAULT_BYTES_THRESHOLD, DEFAULT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    ProgressCheckpointer(Committer<T> committer, long bytesThreshold, long interval, TimeUnit unit) {
+        this.committer = committer;
+        this.bytesThreshold = bytesThreshold;
+        this.intervalNanos = unit.toNanos(interval);
+        Thread thread = new Thread(this::loop, "YCDownloader-Checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param checkpoint replaces the pending checkpoint of the task
+     * @param bytes      bytes downloaded since last update of the task
+     */
+    void update(long id, T checkpoint, long bytes) {
+        try {
+            lock.lock();
+            if (discarded.contains(id)) {
+                return;
+            }
+            boolean first = pending.isEmpty();
+            pending.put(id, checkpoint);
+            checkpoints++;
+            pendingBytes += bytes;
+            // first one starts the interval
+            if (first || pendingBytes >= bytesThreshold) {
+                thresholdReached.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * drop pending checkpoint of the task and wait for the commit in flight
+     */
+    void remove(long id) {
+        try {
+            commitLock.lock();
+            try {
+                lock.lock();
+                pending.remove(id);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * drop checkpoints of a deleted task, pending or coming, and wait for the commit in flight
+     */
+    void discard(long id) {
+        try {
+            commitLock.lock();
+            try {
+                lock.lock();
+                discarded.add(id);
+                pending.remove(id);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * commit all pending checkpoints now
+     */
+    void flush() {
+        try {
+            commitLock.lock();
+            List<T> batch = drain();
+            if (!batch.isEmpty()) {
+                commit(batch);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    long getCommits() {
+        try {
+            lock.lock();
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCheckpoints() {
+        try {
+            lock.lock();
+            return checkpoints;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void loop() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                lock.lock();
+                long nanos = intervalNanos;
+                while (pending.isEmpty() || (pendingBytes < bytesThreshold && nanos > 0)) {
+                    if (pending.isEmpty()) {
+                        // nothing to wait for
+                        thresholdReached.await();
+                        nanos = intervalNanos;
+                    } else {
+                        nanos = thresholdReached.awaitNanos(nanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            flush();
+        }
+    }
+
+    private List<T> drain() {
+        try {
+            lock.lock();
+            List<T> batch = new ArrayList<>(pending.size());
+            for (Map.Entry<Long, T> entry : pending.entrySet()) {
+                if (!discarded.contains(entry.getKey())) {
+                    batch.add(entry.getValue());
+                }
+            }
+            pending.clear();
+            pendingBytes = 0;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commit(List<T> batch) {
+        try {
+            lock.lock();
+            commits++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.commit(batch);
+        } catch (RuntimeException e) {
+            // checkpoints are best effort; the next one carries newer progress anyway
+        }
+    }
+}
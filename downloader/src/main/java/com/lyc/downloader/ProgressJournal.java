@@ -0,0 +1,143 @@
+package com.lyc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of ranges of a task in a fixed layout memory mapped file next to the tmp file.
+ * Updates are plain stores to the mapped pages; they survive a crash of the process because
+ * the pages belong to the kernel, so progress can be checkpointed on every write without database.
+ * <p>
+ * Layout:
+ * <pre>
+ * header: magic(4) version(4) taskId(8) totalSize(8) reserved(8)
+ * slot:   tid(4) used(4) start(8) total(8) downloaded(8)
+ * </pre>
+ */
+class ProgressJournal {
+    static final String SUFFIX = ".journal";
+    static final int MAX_RANGES = 256;
+    private static final int MAGIC = 0x59434a4e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 32;
+    private static final int SIZE = HEADER_SIZE + SLOT_SIZE * MAX_RANGES;
+
+    private static final int TID = 0;
+    private static final int USED = 4;
+    private static final int START = 8;
+    private static final int TOTAL = 16;
+    private static final int DOWNLOADED = 24;
+
+    private final MappedByteBuffer buffer;
+    // tid -> slot; guarded by this
+    private final Map<Integer, Integer> slots = new HashMap<>();
+    private final boolean recovered;
+
+    private ProgressJournal(MappedByteBuffer buffer, long taskId, long totalSize) {
+        this.buffer = buffer;
+        recovered = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getLong(8) == taskId && buffer.getLong(16) == totalSize;
+        if (recovered) {
+            for (int i = 0; i < MAX_RANGES; i++) {
+                int offset = HEADER_SIZE + i * SLOT_SIZE;
+                if (buffer.getInt(offset + USED) != 0) {
+                    slots.put(buffer.getInt(offset + TID), i);
+                }
+            }
+        } else {
+            reset(taskId, totalSize);
+        }
+    }
+
+    static File fileOf(File tmpFile) {
+        return new File(tmpFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @param totalSize journal of another content is discarded
+     */
+    static ProgressJournal open(File file, long taskId, long totalSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != SIZE) {
+                raf.setLength(0);
+                raf.setLength(SIZE);
+            }
+            // mapping stays valid after channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            return new ProgressJournal(buffer, taskId, totalSize);
+        }
+    }
+
+    /**
+     * @return false if journal is started from scratch
+     */
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    synchronized List<Range> ranges() {
+        List<Range> ranges = new ArrayList<>(slots.size());
+        for (int slot : slots.values()) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            ranges.add(new Range(buffer.getInt(offset + TID), buffer.getLong(offset + START),
+                    buffer.getLong(offset + TOTAL), buffer.getLong(offset + DOWNLOADED)));
+        }
+        return ranges;
+    }
+
+    /**
+     * @return false if there's no slot left for a new range
+     */
+    synchronized boolean record(int tid, long start, long total, long downloaded) {
+        Integer slot = slots.get(tid);
+        if (slot == null) {
+            if (slots.size() == MAX_RANGES) {
+                return false;
+            }
+            slot = slots.size();
+            slots.put(tid, slot);
+        }
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+        buffer.putInt(offset + TID, tid);
+        buffer.putLong(offset + START, start);
+        buffer.putLong(offset + TOTAL, total);
+        buffer.putLong(offset + DOWNLOADED, downloaded);
+        // mark used last, so a slot is never seen half written
+        buffer.putInt(offset + USED, 1);
+        return true;
+    }
+
+    synchronized void reset(long taskId, long totalSize) {
+        buffer.putInt(0, 0);
+        slots.clear();
+        for (int i = 0; i < MAX_RANGES; i++) {
+            buffer.putInt(HEADER_SIZE + i * SLOT_SIZE + USED, 0);
+        }
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, taskId);
+        buffer.putLong(16, totalSize);
+        buffer.putInt(0, MAGIC);
+    }
+
+    static class Range {
+        final int tid;
+        final long start;
+        final long total;
+        final long downloaded;
+
+        Range(int tid, long start, long total, long downloaded) {
+            this.tid = tid;
+            this.start = start;
+            this.total = total;
+            this.downloaded = downloaded;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.lyc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Latest progress of tasks in a memory mapped file, written by the download process and
+ * read by any process of the app without IPC.
+ * Every slot is guarded by a sequence number (seqlock): the writer makes it odd while writing and even after,
+ * readers retry when the sequence is odd or changed during the read.
+ * Plain buffer accesses aren't ordered by the memory model, so the writer issues a full fence
+ * (a volatile store immediately followed by a volatile load) after making the sequence odd and
+ * before making it even; readers do the same after reading the sequence and before checking it again.
+ * Release / acquire alone wouldn't keep the data stores from moving above the odd sequence.
+ * <p>
+ * When the table is full, the slot of the least recently updated finished or paused task is given
+ * to the new one; readers find such a task missing and get it in other ways, like any task not in the table.
+ * <p>
+ * Layout:
+ * <pre>
+ * header: magic(4) slotCount(4) reserved(8)
+ * slot:   seq(8) id(8) total(8) cur(8) bps(8) state(4) reserved(20)
+ * </pre>
+ * A slot is a cache line, so updating one task doesn't invalidate the lines other tasks are read from.
+ */
+public class ProgressTable {
+    static final int DEFAULT_SLOT_COUNT = 256;
+    private static final int MAGIC = 0x59435054;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 64;
+    private static final int MAX_READ_RETRY = 64;
+
+    private static final int SEQ = 0;
+    private static final int ID = 8;
+    private static final int TOTAL = 16;
+    private static final int CUR = 24;
+    private static final int BPS = 32;
+    private static final int STATE = 40;
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    // id -> slot; only used by writer, guarded by this
+    private final Map<Long, Integer> slots = new HashMap<>();
+    // removed tasks, whose ids are never reused; late updates of them are dropped; guarded by this
+    private final Set<Long> removed = new HashSet<>();
+    // writer's clock of last update of each slot; guarded by this
+    private final long[] updateTimes;
+    private long clock;
+    // written and read by fullFence() only
+    private volatile int fence;
+
+    private ProgressTable(MappedByteBuffer buffer, int slotCount) {
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.updateTimes = new long[slotCount];
+    }
+
+    /**
+     * Create the table for writing; progress of a former download process is cleared.
+     * The file is cleared in place, so readers which mapped it before keep reading the new table.
+     */
+    static ProgressTable create(File file, int slotCount) throws IOException {
+        int size = HEADER_SIZE + SLOT_SIZE * slotCount;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            // mapping stays valid after channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            ProgressTable progressTable = new ProgressTable(buffer, slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                // a crashed writer may leave the sequence odd
+                int offset = offsetOf(i);
+                buffer.putLong(offset + SEQ, (buffer.getLong(offset + SEQ) + 1) & ~1L);
+                progressTable.write(i, 0, 0, 0, 0, 0);
+            }
+            buffer.putInt(4, slotCount);
+            buffer.putInt(0, MAGIC);
+            return progressTable;
+        }
+    }
+
+    /**
+     * Open the table for reading.
+     *
+     * @return null if the table is not created yet
+     */
+    static ProgressTable open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE) {
+                return null;
+            }
+            if (raf.readInt() != MAGIC) {
+                return null;
+            }
+            int slotCount = raf.readInt();
+            int size = HEADER_SIZE + SLOT_SIZE * slotCount;
+            if (slotCount <= 0 || raf.length() < size) {
+                return null;
+            }
+            return new ProgressTable(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size), slotCount);
+        }
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @param entry filled with progress of the task
+     * @return false if the task is not in the table
+     */
+    public boolean read(long id, Entry entry) {
+        for (int i = 0; i < slotCount; i++) {
+            if (buffer.getLong(offsetOf(i) + ID) == id && readSlot(i, entry) && entry.id == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read progress of all tasks in the table; null elements of entries are created.
+     *
+     * @return count of entries filled
+     */
+    public int readAll(Entry[] entries) {
+        int count = 0;
+        for (int i = 0; i < slotCount && count < entries.length; i++) {
+            if (buffer.getLong(offsetOf(i) + ID) == 0) {
+                continue;
+            }
+            Entry entry = entries[count];
+            if (entry == null) {
+                entry = entries[count] = new Entry();
+            }
+            if (readSlot(i, entry) && entry.id != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return false if the table is full; progress of the task should be sent in other ways
+     */
+    synchronized boolean update(long id, long total, long cur, double bps) {
+        if (removed.contains(id)) {
+            return true;
+        }
+        int slot = slotOf(id);
+        if (slot == -1) {
+            return false;
+        }
+        write(slot, id, total, cur, bps, buffer.getInt(offsetOf(slot) + STATE));
+        return true;
+    }
+
+    synchronized boolean updateState(long id, int state) {
+        if (removed.contains(id)) {
+            return true;
+        }
+        int slot = slotOf(id);
+        if (slot == -1) {
+            return false;
+        }
+        int offset = offsetOf(slot);
+        write(slot, id, buffer.getLong(offset + TOTAL), buffer.getLong(offset + CUR),
+                buffer.getDouble(offset + BPS), state);
+        return true;
+    }
+
+    synchronized void remove(long id) {
+        removed.add(id);
+        Integer slot = slots.remove(id);
+        if (slot != null) {
+            write(slot, 0, 0, 0, 0, 0);
+        }
+    }
+
+    private int slotOf(long id) {
+        Integer slot = slots.get(id);
+        if (slot != null) {
+            return slot;
+        }
+        int recycled = -1;
+        for (int i = 0; i < slotCount; i++) {
+            int offset = offsetOf(i);
+            if (buffer.getLong(offset + ID) == 0) {
+                slots.put(id, i);
+                return i;
+            }
+            int state = buffer.getInt(offset + STATE);
+            if ((state == DownloadTask.FINISH || state == DownloadTask.PAUSED)
+                    && (recycled == -1 || updateTimes[i] < updateTimes[recycled])) {
+                recycled = i;
+            }
+        }
+        if (recycled != -1) {
+            slots.remove(buffer.getLong(offsetOf(recycled) + ID));
+            slots.put(id, recycled);
+            // nothing of the former task is left for the new one
+            write(recycled, 0, 0, 0, 0, 0);
+        }
+        return recycled;
+    }
+
+    private void write(int slot, long id, long total, long cur, double bps, int state) {
+        updateTimes[slot] = ++clock;
+        int offset = offsetOf(slot);
+        long seq = buffer.getLong(offset + SEQ);
+        buffer.putLong(offset + SEQ, seq + 1);
+        fullFence();
+        buffer.putLong(offset + ID, id);
+        buffer.putLong(offset + TOTAL, total);
+        buffer.putLong(offset + CUR, cur);
+        buffer.putDouble(offset + BPS, bps);
+        buffer.putInt(offset + STATE, state);
+        fullFence();
+        buffer.putLong(offset + SEQ, seq + 2);
+    }
+
+    private boolean readSlot(int slot, Entry entry) {
+        int offset = offsetOf(slot);
+        for (int i = 0; i < MAX_READ_RETRY; i++) {
+            long seq = buffer.getLong(offset + SEQ);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            fullFence();
+            long id = buffer.getLong(offset + ID);
+            long total = buffer.getLong(offset + TOTAL);
+            long cur = buffer.getLong(offset + CUR);
+            double bps = buffer.getDouble(offset + BPS);
+            int state = buffer.getInt(offset + STATE);
+            fullFence();
+            if (buffer.getLong(offset + SEQ) == seq) {
+                entry.id = id;
+                entry.total = total;
+                entry.cur = cur;
+                entry.bps = bps;
+                entry.state = state;
+                entry.version = seq >>> 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int fullFence() {
+        fence = 0;
+        return fence;
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Progress of a task; reuse it across frames to read without allocation.
+     */
+    public static final class Entry {
+        private long id;
+        private long total;
+        private long cur;
+        private double bps;
+        private int state;
+        private long version;
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getCur() {
+            return cur;
+        }
+
+        public double getBps() {
+            return bps;
+        }
+
+        /**
+         * @see DownloadTask.DownloadState
+         */
+        public int getState() {
+            return state;
+        }
+
+        /**
+         * grows on every update of the task; nothing changed if it's the same as last read
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -1,17 +1,44 @@
 package com.lyc.downloader;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author liuyuchuan
  * @date 2019/4/7
  * @email kevinliu.sir@qq.com
  */
 class Segment {
+    // null if byteBuffer is direct
     final byte[] buffer;
+    // data read from network; written to file through FileChannel
+    final ByteBuffer byteBuffer;
+    // the buffer this segment returns to after written
+    DownloadBuffer owner;
+    // guarded by SegmentPool
+    boolean recycled;
     int readSize;
     long startPos;
     int tid;
 
     Segment(int bufferSize) {
-        this.buffer = new byte[bufferSize];
+        this(bufferSize, false);
+    }
+
+    /**
+     * @param direct direct buffer saves a copy when reading from socket and writing to file,
+     *               but it's expensive to allocate, so segments are pooled by {@link SegmentPool}
+     */
+    Segment(int bufferSize, boolean direct) {
+        if (direct) {
+            this.buffer = null;
+            this.byteBuffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            this.buffer = new byte[bufferSize];
+            this.byteBuffer = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    int capacity() {
+        return byteBuffer.capacity();
     }
 }
@@ -0,0 +1,211 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared pool which runs segment readers and writers of all tasks.
+ * <p>
+ * Readers and writers block on each other, so a job waiting in the queue could starve the one
+ * which is running. Threads are admitted by {@link #acquire(int, boolean)} first, and there are never
+ * more admitted jobs than {@link #getMaxThreads()}, so admitted jobs always get a thread; the queue only holds
+ * a job for the moment a finishing job has released its thread but not yet returned it to the pool.
+ * The writer and the first reader of a task are admitted together beyond the budget, up to max threads;
+ * a task which cannot get them waits in {@link #acquire(int, long, TimeUnit)} before any of its jobs is submitted.
+ * Other readers are only admitted while the thread budget is not used up.
+ */
+class SegmentExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger threadsInUse = new AtomicInteger();
+    // required acquisitions wait on it for threads to be released
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private volatile int threadBudget;
+    private volatile int maxThreads;
+
+    SegmentExecutor(int threadBudget, int maxThreads) {
+        this(threadBudget, maxThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "YCDownloader-Segment-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    SegmentExecutor(int threadBudget, int maxThreads, ThreadFactory threadFactory) {
+        this.threadBudget = Math.max(threadBudget, 2);
+        this.maxThreads = Math.max(maxThreads, 2);
+        executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void setThreadBudget(int threadBudget) {
+        this.threadBudget = Math.max(threadBudget, 2);
+    }
+
+    int getThreadBudget() {
+        return threadBudget;
+    }
+
+    /**
+     * Threads admitted are never more than it. Jobs admitted before it's lowered keep their threads;
+     * new ones wait until enough of them are finished.
+     */
+    void setMaxThreads(int maxThreads) {
+        maxThreads = Math.max(maxThreads, 2);
+        try {
+            lock.lock();
+            if (maxThreads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxThreads);
+                executor.setCorePoolSize(maxThreads);
+            } else {
+                executor.setCorePoolSize(maxThreads);
+                executor.setMaximumPoolSize(maxThreads);
+            }
+            this.maxThreads = maxThreads;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * reserve threads for jobs
+     *
+     * @param required true for the writer and the first reader of a task, which may go beyond the budget
+     *                 up to max threads
+     * @return true if admitted; caller must call {@link #release(int)} when jobs are finished
+     */
+    boolean acquire(int threads, boolean required) {
+        int limit = required ? maxThreads : Math.min(threadBudget, maxThreads);
+        int inUse;
+        do {
+            inUse = threadsInUse.get();
+            if (inUse + threads > limit) {
+                return false;
+            }
+        } while (!threadsInUse.compareAndSet(inUse, inUse + threads));
+        return true;
+    }
+
+    /**
+     * Reserve threads for the writer and the first reader of a task,
+     * waiting for jobs to finish while max threads are admitted.
+     *
+     * @return false if threads are not admitted in time; caller may check if it still needs them and try again
+     */
+    boolean acquire(int threads, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        try {
+            lock.lock();
+            while (!acquire(threads, true)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = released.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(int threads) {
+        threadsInUse.addAndGet(-threads);
+        try {
+            lock.lock();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param name     thread name while running job
+     * @param onFinish called exactly once, after job is run or when job is cancelled before running
+     */
+    Future<?> submit(Runnable job, String name, Runnable onFinish) {
+        SegmentJob segmentJob = new SegmentJob(job, name, onFinish);
+        executor.execute(segmentJob);
+        return segmentJob;
+    }
+
+    /**
+     * @return threads reserved / thread budget; more than 1 means writers and first readers of
+     * running tasks have exceeded the budget, which they may do up to max threads
+     */
+    float saturation() {
+        return threadsInUse.get() / (float) threadBudget;
+    }
+
+    int threadsInUse() {
+        return threadsInUse.get();
+    }
+
+    int poolSize() {
+        return executor.getPoolSize();
+    }
+
+    int largestPoolSize() {
+        return executor.getLargestPoolSize();
+    }
+
+    private static class SegmentJob extends FutureTask<Void> {
+        private final AtomicBoolean claimed;
+        private final Runnable onFinish;
+
+        SegmentJob(Runnable job, String name, Runnable onFinish) {
+            this(job, name, onFinish, new AtomicBoolean());
+        }
+
+        private SegmentJob(Runnable job, String name, Runnable onFinish, AtomicBoolean claimed) {
+            super(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    Thread thread = Thread.currentThread();
+                    String oldName = thread.getName();
+                    thread.setName(name);
+                    try {
+                        job.run();
+                    } finally {
+                        thread.setName(oldName);
+                        onFinish.run();
+                    }
+                    return null;
+                }
+            });
+            this.claimed = claimed;
+            this.onFinish = onFinish;
+        }
+
+        @Override
+        protected void done() {
+            // cancelled before running
+            if (claimed.compareAndSet(false, true)) {
+                onFinish.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.lyc.downloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process wide pool of {@link Segment}s shared by all tasks.
+ * Buffer sizes are powers of two between {@link #MIN_SEGMENT_SIZE} and {@link #MAX_SEGMENT_SIZE};
+ * bytes of all segments (leased and cached) never exceed the capacity.
+ * When the capacity is used up, a smaller segment is handed out if possible,
+ * otherwise caller blocks until a segment is recycled.
+ */
+class SegmentPool {
+    static final int MIN_SEGMENT_SIZE = 1 << 12;
+    static final int MAX_SEGMENT_SIZE = 1 << 16;
+    private static final int MIN_SHIFT = 12;
+    private static final int CLASS_COUNT = 16 - MIN_SHIFT + 1;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition recycled = lock.newCondition();
+    // by size class
+    private final List<Deque<Segment>> freeSegments = new ArrayList<>(CLASS_COUNT);
+    private final boolean direct;
+    private volatile long capacity;
+    // leased + cached
+    private long allocatedBytes;
+    private long cachedBytes;
+
+    SegmentPool(long capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param direct lease segments backed by direct buffers
+     */
+    SegmentPool(long capacity, boolean direct) {
+        this.direct = direct;
+        this.capacity = Math.max(capacity, MAX_SEGMENT_SIZE);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeSegments.add(new ArrayDeque<>());
+        }
+    }
+
+    void setCapacity(long capacity) {
+        try {
+            lock.lock();
+            this.capacity = Math.max(capacity, MAX_SEGMENT_SIZE);
+            evict(0);
+            recycled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param size    preferred buffer size; rounded up to a power of two
+     * @param owner   where the segment goes back after written
+     * @param timeout max time to wait when capacity is used up; <= 0 to wait forever
+     * @return null if timeout
+     */
+    Segment lease(int size, DownloadBuffer owner, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        try {
+            lock.lock();
+            for (; ; ) {
+                Segment segment = tryLease(sizeClass(size));
+                if (segment != null) {
+                    segment.owner = owner;
+                    segment.recycled = false;
+                    return segment;
+                }
+                if (timeout <= 0) {
+                    recycled.await();
+                } else {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = recycled.awaitNanos(nanos);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recycle(Segment segment) {
+        try {
+            lock.lock();
+            if (segment.recycled) {
+                throw new IllegalStateException("segment is recycled twice");
+            }
+            segment.recycled = true;
+            segment.owner = null;
+            segment.readSize = 0;
+            int sizeClass = sizeClass(segment.capacity());
+            if (allocatedBytes > capacity || segment.capacity() != sizeOf(sizeClass)) {
+                // capacity shrank, drop it
+                allocatedBytes -= segment.capacity();
+            } else {
+                freeSegments.get(sizeClass).push(segment);
+                cachedBytes += segment.capacity();
+            }
+            recycled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getAllocatedBytes() {
+        try {
+            lock.lock();
+            return allocatedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getLeasedBytes() {
+        try {
+            lock.lock();
+            return allocatedBytes - cachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // preferred size first, then shrink
+    private Segment tryLease(int sizeClass) {
+        for (int c = sizeClass; c >= 0; c--) {
+            Deque<Segment> free = freeSegments.get(c);
+            if (!free.isEmpty()) {
+                Segment segment = free.pop();
+                cachedBytes -= segment.capacity();
+                return segment;
+            }
+            int size = sizeOf(c);
+            if (allocatedBytes + size <= capacity || evict(size)) {
+                allocatedBytes += size;
+                return new Segment(size, direct);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * drop cached segments, larger ones first, until there is room for need bytes
+     */
+    private boolean evict(int need) {
+        if (allocatedBytes - cachedBytes + need > capacity) {
+            return false;
+        }
+        for (int c = CLASS_COUNT - 1; c >= 0 && allocatedBytes + need > capacity; c--) {
+            Deque<Segment> free = freeSegments.get(c);
+            while (!free.isEmpty() && allocatedBytes + need > capacity) {
+                int size = free.pop().capacity();
+                cachedBytes -= size;
+                allocatedBytes -= size;
+            }
+        }
+        return true;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SEGMENT_SIZE) {
+            return 0;
+        }
+        if (size >= MAX_SEGMENT_SIZE) {
+            return CLASS_COUNT - 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return 1 << (sizeClass + MIN_SHIFT);
+    }
+}
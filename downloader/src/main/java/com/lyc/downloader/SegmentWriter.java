@@ -0,0 +1,93 @@
+package com.lyc.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Write segments of all ranges of a task through one {@link FileChannel}.
+ * Segments which are adjacent in file are written by one gather write.
+ * Not thread safe; only used by the writer of a task.
+ */
+class SegmentWriter {
+    private static final Comparator<Segment> POSITION_COMPARATOR = (o1, o2) -> Long.compare(o1.startPos, o2.startPos);
+
+    private final FileChannel channel;
+    private final ByteBuffer[] gather;
+    private long writeCalls;
+    private long writtenBytes;
+
+    SegmentWriter(FileChannel channel, int maxGather) {
+        this.channel = channel;
+        this.gather = new ByteBuffer[Math.max(maxGather, 1)];
+    }
+
+    /**
+     * Segments with readSize <= 0 are skipped.
+     *
+     * @param segments will be sorted by position
+     */
+    void write(List<Segment> segments) throws IOException {
+        Collections.sort(segments, POSITION_COMPARATOR);
+        int i = 0, n = segments.size();
+        while (i < n) {
+            Segment first = segments.get(i);
+            if (first.readSize <= 0) {
+                i++;
+                continue;
+            }
+            long end = first.startPos;
+            int count = 0;
+            while (i < n && count < gather.length) {
+                Segment segment = segments.get(i);
+                if (segment.readSize > 0) {
+                    if (segment.startPos != end) {
+                        break;
+                    }
+                    ByteBuffer byteBuffer = segment.byteBuffer;
+                    byteBuffer.clear();
+                    byteBuffer.limit(segment.readSize);
+                    gather[count++] = byteBuffer;
+                    end += segment.readSize;
+                }
+                i++;
+            }
+            try {
+                writeFully(first.startPos, count, end - first.startPos);
+            } finally {
+                for (int j = 0; j < count; j++) {
+                    gather[j] = null;
+                }
+            }
+        }
+    }
+
+    private void writeFully(long position, int count, long length) throws IOException {
+        if (count == 1) {
+            ByteBuffer byteBuffer = gather[0];
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer, position + byteBuffer.position());
+                writeCalls++;
+            }
+        } else {
+            channel.position(position);
+            long left = length;
+            while (left > 0) {
+                left -= channel.write(gather, 0, count);
+                writeCalls++;
+            }
+        }
+        writtenBytes += length;
+    }
+
+    long getWriteCalls() {
+        return writeCalls;
+    }
+
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
@@ -0,0 +1,96 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs commands and events of tasks on a small pool of serial shards, chosen by task id.
+ * Everything about one task runs in order on one thread, like an actor's mailbox,
+ * while different tasks run in parallel; only global scheduling stays on {@link DownloadExecutors#message}.
+ * Threads of shards start when first used.
+ */
+class ShardedExecutor {
+    private final Shard[] shards;
+
+    ShardedExecutor(String name, int shardCount) {
+        shards = new Shard[Math.max(shardCount, 1)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(name + "-" + i);
+        }
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the serial executor of the key; commands are always queued, even from its own thread,
+     * so a command never runs inside another one of the shard
+     */
+    Executor shard(long key) {
+        // ids are sequential, spread them anyway in case they are not
+        long hash = key ^ (key >>> 32);
+        hash ^= hash >>> 16;
+        return shards[(int) ((hash & Long.MAX_VALUE) % shards.length)];
+    }
+
+    void execute(long key, Runnable command) {
+        shard(key).execute(command);
+    }
+
+    boolean isShardThread(long key) {
+        return ((Shard) shard(key)).isCurrentThread();
+    }
+
+    private static class Shard implements Executor, Runnable {
+        private final String name;
+        private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<>();
+        private volatile Thread thread;
+
+        Shard(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            commands.add(command);
+            if (thread == null) {
+                start();
+            }
+        }
+
+        private synchronized void start() {
+            if (thread == null) {
+                Thread thread = new Thread(this, name);
+                thread.setDaemon(true);
+                this.thread = thread;
+                thread.start();
+            }
+        }
+
+        boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable command;
+                try {
+                    command = commands.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    // one task must not stop others of the shard
+                    if (BuildConfig.DEBUG) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.lyc.downloader;
+
+public interface SubmitAllListener {
+    /**
+     * @param ids ids of tasks in the order of requests
+     */
+    void submitSuccess(long[] ids);
+
+    void submitFail(Exception e);
+}
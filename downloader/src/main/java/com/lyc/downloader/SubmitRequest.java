@@ -0,0 +1,133 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One task of {@link YCDownloader#submitAll(java.util.List, SubmitAllListener)};
+ * options not set are the same as {@link YCDownloader#submit(String, String, String, SubmitListener)}.
+ */
+public class SubmitRequest implements Parcelable {
+    public static final Creator<SubmitRequest> CREATOR = new Creator<SubmitRequest>() {
+        @Override
+        public SubmitRequest createFromParcel(Parcel in) {
+            return new SubmitRequest(in);
+        }
+
+        @Override
+        public SubmitRequest[] newArray(int size) {
+            return new SubmitRequest[size];
+        }
+    };
+
+    private final String url;
+    private final String path;
+    private final String filename;
+    private int connectionCount;
+    private long speedLimit;
+    private int weight = 1;
+    private int priority;
+    private long deadline;
+
+    /**
+     * @param url      download url; must started with http/https
+     * @param path     nonnull; parent directory of the file
+     * @param filename self-defined filename; if null, it will be parsed by url or a pivot request by downloadManager
+     */
+    public SubmitRequest(String url, String path, String filename) {
+        if (path == null) {
+            throw new NullPointerException("path cannot be null");
+        }
+        this.url = url;
+        this.path = path;
+        this.filename = filename;
+    }
+
+    protected SubmitRequest(Parcel in) {
+        url = in.readString();
+        path = in.readString();
+        filename = in.readString();
+        connectionCount = in.readInt();
+        speedLimit = in.readLong();
+        weight = in.readInt();
+        priority = in.readInt();
+        deadline = in.readLong();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @param connectionCount connections used by the task; 0 to let downloader decide it by throughput
+     */
+    public SubmitRequest setConnectionCount(int connectionCount) {
+        this.connectionCount = Math.max(connectionCount, 0);
+        return this;
+    }
+
+    public long getSpeedLimit() {
+        return speedLimit;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @param speedLimit bytes per second of the task; 0 for no limit of its own
+     * @param weight     share of bandwidth against other running tasks; at least 1
+     */
+    public SubmitRequest setSpeedLimit(long speedLimit, int weight) {
+        this.speedLimit = Math.max(speedLimit, 0);
+        this.weight = Math.max(weight, 1);
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param deadline ms since epoch; 0 for none
+     * @see YCDownloader#setTaskPriority(long, int, long)
+     */
+    public SubmitRequest setPriority(int priority, long deadline) {
+        this.priority = priority;
+        this.deadline = Math.max(deadline, 0);
+        return this;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(url);
+        dest.writeString(path);
+        dest.writeString(filename);
+        dest.writeInt(connectionCount);
+        dest.writeLong(speedLimit);
+        dest.writeInt(weight);
+        dest.writeInt(priority);
+        dest.writeLong(deadline);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
@@ -0,0 +1,139 @@
+package com.lyc.downloader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static com.lyc.downloader.Configuration.SCHEDULE_PRIORITY;
+import static com.lyc.downloader.Configuration.SCHEDULE_SRPT;
+
+/**
+ * Waiting tasks ordered by the schedule policy of {@link Configuration}.
+ * Offer, remove and poll are O(log n); offering a task which is queued updates its place
+ * but keeps its enqueue order, so changing the priority of a task doesn't send it to the back.
+ * Not thread safe; only accessed in message thread.
+ */
+class TaskScheduleQueue {
+    private final TreeSet<Entry> entries;
+    private final Map<Long, Entry> entryOfId = new HashMap<>();
+    private final long smallFileSize;
+    private long sequence;
+
+    TaskScheduleQueue(int policy, long smallFileSize) {
+        this.smallFileSize = smallFileSize;
+        entries = new TreeSet<>(comparator(policy));
+    }
+
+    private Comparator<Entry> comparator(int policy) {
+        boolean ordered = policy == SCHEDULE_PRIORITY || policy == SCHEDULE_SRPT;
+        boolean srpt = policy == SCHEDULE_SRPT;
+        return (o1, o2) -> {
+            if (ordered) {
+                if (o1.priority != o2.priority) {
+                    return Integer.compare(o2.priority, o1.priority);
+                }
+                // earliest deadline first; tasks without deadline go last
+                if (o1.deadline != o2.deadline) {
+                    return Long.compare(deadline(o1), deadline(o2));
+                }
+            }
+            if (srpt) {
+                boolean small1 = isSmall(o1);
+                boolean small2 = isSmall(o2);
+                if (small1 != small2) {
+                    return small1 ? -1 : 1;
+                }
+                // large or unknown files keep their order
+                if (small1 && o1.remainingBytes != o2.remainingBytes) {
+                    return Long.compare(o1.remainingBytes, o2.remainingBytes);
+                }
+            }
+            return Long.compare(o1.sequence, o2.sequence);
+        };
+    }
+
+    private static long deadline(Entry entry) {
+        return entry.deadline == 0 ? Long.MAX_VALUE : entry.deadline;
+    }
+
+    private boolean isSmall(Entry entry) {
+        return entry.remainingBytes >= 0 && entry.remainingBytes <= smallFileSize;
+    }
+
+    /**
+     * @param deadline       ms since epoch; 0 for none
+     * @param remainingBytes -1 if unknown
+     * @return false if the task is already queued, whose place is updated
+     */
+    boolean offer(long id, int priority, long deadline, long remainingBytes) {
+        Entry entry = entryOfId.get(id);
+        boolean added = entry == null;
+        if (added) {
+            entry = new Entry(id, sequence++);
+            entryOfId.put(id, entry);
+        } else {
+            entries.remove(entry);
+        }
+        entry.priority = priority;
+        entry.deadline = Math.max(deadline, 0);
+        entry.remainingBytes = remainingBytes;
+        entries.add(entry);
+        return added;
+    }
+
+    boolean contains(long id) {
+        return entryOfId.containsKey(id);
+    }
+
+    boolean remove(long id) {
+        Entry entry = entryOfId.remove(id);
+        return entry != null && entries.remove(entry);
+    }
+
+    /**
+     * @return id of the task to start next; -1 if empty
+     */
+    long poll() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return -1;
+        }
+        entryOfId.remove(entry.id);
+        return entry.id;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return ids of queued tasks in schedule order
+     */
+    List<Long> ids() {
+        List<Long> ids = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+
+    private static class Entry {
+        final long id;
+        final long sequence;
+        int priority;
+        long deadline;
+        long remainingBytes;
+
+        Entry(long id, long sequence) {
+            this.id = id;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.lyc.downloader;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.lyc.downloader.DownloadTask.CANCELED;
+import static com.lyc.downloader.DownloadTask.CONNECTING;
+import static com.lyc.downloader.DownloadTask.ERROR;
+import static com.lyc.downloader.DownloadTask.FATAL_ERROR;
+import static com.lyc.downloader.DownloadTask.FINISH;
+import static com.lyc.downloader.DownloadTask.PAUSED;
+import static com.lyc.downloader.DownloadTask.PENDING;
+import static com.lyc.downloader.DownloadTask.RUNNING;
+import static com.lyc.downloader.DownloadTask.STOPPING;
+import static com.lyc.downloader.DownloadTask.WAITING;
+
+/**
+ * Lifecycle of a {@link DownloadTask} as an explicit transition table over one atomic word.
+ * While {@link DownloadTask#STOPPING}, the word also holds the state the task settles in,
+ * so stopping with a target is a single compare-and-set.
+ * Callers run side effects (callbacks, persistence, interrupting io) after a transition succeeded,
+ * and only the thread which made the transition runs them; nothing waits for them.
+ * <p>
+ * Stoppers run on the shard of the task or in message thread, and the settled state is reported
+ * through message thread to the shard, so "stopping" is still sent before "paused".
+ * <pre>
+ * word: state(8) target(8)
+ * </pre>
+ */
+class TaskStateMachine {
+    private static final int STATE_COUNT = FATAL_ERROR + 1;
+    private static final int STATE_MASK = 0xff;
+    private static final int TARGET_SHIFT = 8;
+    private static final int TARGET_MASK = 0xff << TARGET_SHIFT;
+    // from -> states it may move to
+    private static final int[] TRANSITIONS = new int[STATE_COUNT];
+
+    static {
+        allow(PENDING, CONNECTING, PAUSED, WAITING, CANCELED);
+        allow(CONNECTING, RUNNING, STOPPING, ERROR, FATAL_ERROR);
+        allow(RUNNING, FINISH, STOPPING, ERROR, FATAL_ERROR);
+        // stopping again changes the target, e.g. cancel a task which is pausing
+        allow(STOPPING, PAUSED, WAITING, CANCELED, FINISH, STOPPING);
+        allow(PAUSED, PENDING, WAITING, CANCELED);
+        allow(WAITING, PENDING, PAUSED, CANCELED);
+        allow(ERROR, PENDING, WAITING, PAUSED, CANCELED);
+        allow(FATAL_ERROR, PENDING, WAITING, PAUSED, CANCELED);
+        // restart
+        allow(FINISH, PENDING, WAITING, CANCELED);
+    }
+
+    private final AtomicInteger word;
+
+    TaskStateMachine(@DownloadTask.DownloadState int initial) {
+        word = new AtomicInteger(initial);
+    }
+
+    private static void allow(int from, int... to) {
+        for (int state : to) {
+            TRANSITIONS[from] |= 1 << state;
+        }
+    }
+
+    /**
+     * @return bit set of states for the from argument of {@link #moveTo(int, int)} and {@link #stop(int, int)}
+     */
+    static int of(int... states) {
+        int set = 0;
+        for (int state : states) {
+            set |= 1 << state;
+        }
+        return set;
+    }
+
+    static boolean canMove(int from, int to) {
+        return from >= 0 && from < STATE_COUNT && (TRANSITIONS[from] & (1 << to)) != 0;
+    }
+
+    @DownloadTask.DownloadState
+    int get() {
+        return word.get() & STATE_MASK;
+    }
+
+    /**
+     * @return state to settle in; only meaningful while {@link DownloadTask#STOPPING}
+     */
+    int target() {
+        return (word.get() & TARGET_MASK) >>> TARGET_SHIFT;
+    }
+
+    boolean is(int states) {
+        return ((1 << get()) & states) != 0;
+    }
+
+    /**
+     * @param from bit set of states by {@link #of(int...)}
+     * @return the previous state if moved; -1 if current state is not in from or can't move to
+     */
+    int moveTo(int to, int from) {
+        for (; ; ) {
+            int current = word.get();
+            int state = current & STATE_MASK;
+            if (((1 << state) & from) == 0 || !canMove(state, to)) {
+                return -1;
+            }
+            if (word.compareAndSet(current, to)) {
+                return state;
+            }
+        }
+    }
+
+    boolean compareAndSet(int expect, int to) {
+        return moveTo(to, 1 << expect) != -1;
+    }
+
+    /**
+     * move to {@link DownloadTask#STOPPING} which settles in target by {@link #settle()}
+     *
+     * @return the previous state if moved; -1 otherwise
+     */
+    int stop(int target, int from) {
+        for (; ; ) {
+            int current = word.get();
+            int state = current & STATE_MASK;
+            if (((1 << state) & from) == 0 || !canMove(state, STOPPING) || !canMove(STOPPING, target)) {
+                return -1;
+            }
+            if (word.compareAndSet(current, STOPPING | (target << TARGET_SHIFT))) {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * @return the state settled in; -1 if not stopping
+     */
+    int settle() {
+        for (; ; ) {
+            int current = word.get();
+            if ((current & STATE_MASK) != STOPPING) {
+                return -1;
+            }
+            int target = current >>> TARGET_SHIFT;
+            if (word.compareAndSet(current, target)) {
+                return target;
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.lyc.downloader;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A task in a page of {@link YCDownloader#queryTaskSummaries(int, long, int, int)}.
+ * Unlike {@link com.lyc.downloader.db.DownloadInfo} it has no ranges, and strings are only filled if asked for,
+ * so that a page stays small over binder.
+ */
+public class TaskSummary implements Parcelable {
+    public static final int FIELD_URL = 1;
+    public static final int FIELD_PATH = 1 << 1;
+    public static final int FIELD_FILENAME = 1 << 2;
+    public static final int FIELD_ALL = FIELD_URL | FIELD_PATH | FIELD_FILENAME;
+    // all states for the state mask of a query
+    public static final int ALL_STATES = -1;
+    // most tasks of a page
+    public static final int MAX_PAGE_SIZE = 500;
+
+    public static final Creator<TaskSummary> CREATOR = new Creator<TaskSummary>() {
+        @Override
+        public TaskSummary createFromParcel(Parcel in) {
+            return new TaskSummary(in);
+        }
+
+        @Override
+        public TaskSummary[] newArray(int size) {
+            return new TaskSummary[size];
+        }
+    };
+
+    private final long id;
+    @DownloadTask.DownloadState
+    private final int state;
+    private final long downloadedSize;
+    private final long totalSize;
+    // ms; 0 if unknown
+    private final long createdTime;
+    private final long finishedTime;
+    private final String url;
+    private final String path;
+    private final String filename;
+
+    TaskSummary(long id, int state, long downloadedSize, long totalSize, long createdTime, long finishedTime,
+                String url, String path, String filename) {
+        this.id = id;
+        this.state = state;
+        this.downloadedSize = downloadedSize;
+        this.totalSize = totalSize;
+        this.createdTime = createdTime;
+        this.finishedTime = finishedTime;
+        this.url = url;
+        this.path = path;
+        this.filename = filename;
+    }
+
+    protected TaskSummary(Parcel in) {
+        id = in.readLong();
+        state = in.readInt();
+        downloadedSize = in.readLong();
+        totalSize = in.readLong();
+        createdTime = in.readLong();
+        finishedTime = in.readLong();
+        url = in.readString();
+        path = in.readString();
+        filename = in.readString();
+    }
+
+    /**
+     * @return state mask of a query which matches any of the states
+     */
+    public static int stateMask(@DownloadTask.DownloadState int... states) {
+        int mask = 0;
+        for (int state : states) {
+            mask |= 1 << state;
+        }
+        return mask;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @DownloadTask.DownloadState
+    public int getState() {
+        return state;
+    }
+
+    public long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getFinishedTime() {
+        return finishedTime;
+    }
+
+    /**
+     * @return null unless asked for by {@link #FIELD_URL}
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return null unless asked for by {@link #FIELD_PATH}
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return null unless asked for by {@link #FIELD_FILENAME}, or the filename is not decided yet
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(id);
+        dest.writeInt(state);
+        dest.writeLong(downloadedSize);
+        dest.writeLong(totalSize);
+        dest.writeLong(createdTime);
+        dest.writeLong(finishedTime);
+        dest.writeString(url);
+        dest.writeString(path);
+        dest.writeString(filename);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
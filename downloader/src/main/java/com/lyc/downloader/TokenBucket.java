@@ -0,0 +1,65 @@
+package com.lyc.downloader;
+
+/**
+ * Token bucket which lets callers go into debt: bytes are taken right away and
+ * caller waits until the debt is paid, so callers are served in order of reservation.
+ * Bucket starts empty; tokens saved while idle never exceed the burst.
+ */
+class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1e9;
+    // burst allowance in seconds of rate
+    private static final double BURST_SECONDS = 0.1;
+
+    // bytes per second; <= 0 for unlimited
+    private long rate;
+    private double burst;
+    private double tokens;
+    private long lastNanos;
+
+    TokenBucket(long rate, long nowNanos) {
+        lastNanos = nowNanos;
+        setRate(rate, nowNanos);
+    }
+
+    synchronized void setRate(long rate, long nowNanos) {
+        refill(nowNanos);
+        this.rate = rate;
+        burst = rate > 0 ? rate * BURST_SECONDS : 0;
+        if (tokens > burst) {
+            tokens = burst;
+        }
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * take bytes from bucket
+     *
+     * @return nanos caller should wait before going on
+     */
+    synchronized long reserve(long bytes, long nowNanos) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(nowNanos);
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastNanos;
+        lastNanos = nowNanos;
+        if (rate <= 0) {
+            tokens = 0;
+            return;
+        }
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * rate / NANOS_PER_SECOND);
+        }
+    }
+}
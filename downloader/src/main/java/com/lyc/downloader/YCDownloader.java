@@ -13,6 +13,7 @@ import androidx.core.content.ContextCompat;
 import com.lyc.downloader.db.DownloadInfo;
 import com.lyc.downloader.utils.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -266,7 +267,32 @@ public abstract class YCDownloader {
      * @param listener the listener inform caller the result of this commit.
      */
     public static void submit(String url, String path, String filename, SubmitListener listener) {
-        serviceManager.submit(url, path, filename, new ISubmitCallback.Stub() {
+        submit(url, path, filename, 0, listener);
+    }
+
+    /**
+     * submit a task which uses a fixed connection count
+     *
+     * @param connectionCount connections used by the task; 0 to let downloader decide it by throughput,
+     *                        which is what {@link #submit(String, String, String, SubmitListener)} does
+     * @see #submit(String, String, String, SubmitListener)
+     */
+    public static void submit(String url, String path, String filename, int connectionCount, SubmitListener listener) {
+        submit(url, path, filename, connectionCount, 0, 1, listener);
+    }
+
+    /**
+     * submit a task with its own speed limit and bandwidth share
+     *
+     * @param speedLimit bytes per second of the task; 0 for no limit of its own
+     * @param weight     share of bandwidth against other running tasks when global speed limit is set,
+     *                   e.g. 4 for a foreground file against 1 for background prefetches
+     * @see #submit(String, String, String, int, SubmitListener)
+     * @see #setSpeedLimit(long)
+     */
+    public static void submit(String url, String path, String filename, int connectionCount,
+                              long speedLimit, int weight, SubmitListener listener) {
+        serviceManager.submit(url, path, filename, connectionCount, speedLimit, weight, new ISubmitCallback.Stub() {
             @Override
             public void submitSuccess(DownloadInfo downloadInfo) {
                 DownloadExecutors.androidMain.execute(() -> listener.submitSuccess(downloadInfo));
@@ -279,6 +305,27 @@ public abstract class YCDownloader {
         });
     }
 
+    /**
+     * Submit many tasks at once, e.g. items of a playlist. They are sent in one IPC, inserted in one
+     * transaction and scheduled together, and the listener is called once with ids of all tasks.
+     * Keep a batch within a few thousands of tasks: requests go in one binder transaction, which is limited to 1MB.
+     *
+     * @param listener receives ids in the order of requests; if it fails, none of the tasks is submitted
+     */
+    public static void submitAll(List<SubmitRequest> requests, SubmitAllListener listener) {
+        serviceManager.submitAll(new ArrayList<>(requests), new ISubmitAllCallback.Stub() {
+            @Override
+            public void submitSuccess(long[] ids) {
+                DownloadExecutors.androidMain.execute(() -> listener.submitSuccess(ids));
+            }
+
+            @Override
+            public void submitFail(String reason) {
+                DownloadExecutors.androidMain.execute(() -> listener.submitFail(new Exception(reason)));
+            }
+        });
+    }
+
     /**
      * delete this download task from db
      * the download tmp file will be deleted anyway
@@ -320,6 +367,49 @@ public abstract class YCDownloader {
         return serviceManager.queryFinishedDownloadInfoList();
     }
 
+    /**
+     * Query tasks page by page, which keeps every IPC small however long the history is.
+     * Pass the id of the last task of a page as afterId for the next page, e.g.
+     * <pre>
+     * int finished = TaskSummary.stateMask(DownloadTask.FINISH);
+     * List&lt;TaskSummary&gt; page = queryTaskSummaries(finished, 0, 50, TaskSummary.FIELD_FILENAME);
+     * </pre>
+     *
+     * @see DownloadInfoProvider#queryTaskSummaries(int, long, int, int)
+     */
+    @WorkerThread
+    public static List<TaskSummary> queryTaskSummaries(int stateMask, long afterId, int limit, int fields) {
+        return serviceManager.queryTaskSummaries(stateMask, afterId, limit, fields);
+    }
+
+    /**
+     * @return threads used by segment readers and writers of all tasks / thread budget;
+     * close to or more than 1 means the pool is saturated and tasks won't add connections
+     * @see Configuration.Builder#setSegmentThreadBudget(int)
+     */
+    public static float getSegmentPoolSaturation() {
+        return serviceManager.getSegmentPoolSaturation();
+    }
+
+    /**
+     * change speed limit and bandwidth share of a task
+     *
+     * @see #submit(String, String, String, int, long, int, SubmitListener)
+     */
+    public static void setTaskSpeedLimit(long id, long speedLimit, int weight) {
+        serviceManager.setTaskSpeedLimit(id, speedLimit, weight);
+    }
+
+    /**
+     * change priority and deadline of a task, which decide when it starts if it's waiting
+     *
+     * @param deadline ms since epoch; 0 for none
+     * @see Configuration.Builder#setSchedulePolicy(int)
+     */
+    public static void setTaskPriority(long id, int priority, long deadline) {
+        serviceManager.setTaskPriority(id, priority, deadline);
+    }
+
     public static long getSpeedLimit() {
         return serviceManager.getSpeedLimit();
     }
@@ -374,7 +464,7 @@ public abstract class YCDownloader {
     /**
      * @param avoidFrameDrop if avoidFrameDrop {@link DownloadListener#onDownloadProgressUpdate(long, long, long, double)}
      *                       will be called with certain interval to avoid send to many message to
-     *                       main thread
+     *                       main thread; progress of all tasks is sent across process in one batch per interval
      */
     public static void setAvoidFrameDrop(boolean avoidFrameDrop) {
         serviceManager.setAvoidFrameDrop(avoidFrameDrop);
@@ -439,6 +529,16 @@ public abstract class YCDownloader {
         serviceManager.removeDownloadTasksChangeListener(downloadTasksChangeListener);
     }
 
+    /**
+     * Poll progress of tasks without IPC, for example at frame time.
+     *
+     * @return null if it's not enabled by {@link Configuration.Builder#setSharedProgressTable(boolean)}
+     * or download process has not started
+     */
+    public static ProgressTable getProgressTable() {
+        return serviceManager.getProgressTable();
+    }
+
     public static boolean isInServerProcess() {
         return serviceManager.inServerProcess;
     }
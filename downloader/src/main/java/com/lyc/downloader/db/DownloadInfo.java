@@ -7,6 +7,7 @@ import org.greenrobot.greendao.DaoException;
 import org.greenrobot.greendao.annotation.Entity;
 import org.greenrobot.greendao.annotation.Generated;
 import org.greenrobot.greendao.annotation.Id;
+import org.greenrobot.greendao.annotation.Keep;
 import org.greenrobot.greendao.annotation.NotNull;
 import org.greenrobot.greendao.annotation.Property;
 import org.greenrobot.greendao.annotation.ToMany;
@@ -19,7 +20,9 @@ import java.util.List;
  */
 @Entity(
         indexes = {
-                @org.greenrobot.greendao.annotation.Index(value = "url DESC")
+                @org.greenrobot.greendao.annotation.Index(value = "url DESC"),
+                // pages of tasks by state; entries of a state are ordered by id
+                @org.greenrobot.greendao.annotation.Index(value = "downloadItemState", name = "IDX_DOWNLOAD_INFO_STATE")
         }
 )
 public class DownloadInfo implements Parcelable {
@@ -63,6 +66,31 @@ public class DownloadInfo implements Parcelable {
     private List<DownloadThreadInfo> downloadThreadInfos;
     @Property(nameInDb = "error_msg")
     private Integer errorCode;
+    /**
+     * connections used by this task; 0 means decided by downloader according to throughput
+     */
+    @Property(nameInDb = "connection_count")
+    private int connectionCount;
+    /**
+     * bytes per second of this task; 0 means only limited by global speed limit
+     */
+    @Property(nameInDb = "speed_limit")
+    private long speedLimit;
+    /**
+     * share of bandwidth against other running tasks when global speed limit is set
+     */
+    @Property(nameInDb = "weight")
+    private int weight = 1;
+    /**
+     * waiting tasks with higher priority start first unless scheduled in enqueue order
+     */
+    @Property(nameInDb = "priority")
+    private int priority;
+    /**
+     * ms since epoch the task should finish by; 0 for none
+     */
+    @Property(nameInDb = "deadline")
+    private long deadline;
     /**
      * Used to resolve relations
      */
@@ -78,10 +106,12 @@ public class DownloadInfo implements Parcelable {
         readFromParcel(in);
     }
 
-    @Generated(hash = 459431950)
+    // all properties in schema order, as greenDAO generates it; kept since it's extended by hand
+    @Keep
     public DownloadInfo(Long id, @NotNull String url, @NotNull String path, String filename,
                         boolean resumable, int downloadItemState, long downloadedSize, long totalSize,
-                        String lastModified, Date createdTime, Date finishedTime, Integer errorCode) {
+                        String lastModified, Date createdTime, Date finishedTime, Integer errorCode,
+                        int connectionCount, long speedLimit, int weight, int priority, long deadline) {
         this.id = id;
         this.url = url;
         this.path = path;
@@ -94,6 +124,11 @@ public class DownloadInfo implements Parcelable {
         this.createdTime = createdTime;
         this.finishedTime = finishedTime;
         this.errorCode = errorCode;
+        this.connectionCount = connectionCount;
+        this.speedLimit = speedLimit;
+        this.weight = weight;
+        this.priority = priority;
+        this.deadline = deadline;
     }
 
     public Long getId() {
@@ -153,6 +188,11 @@ public class DownloadInfo implements Parcelable {
             dest.writeByte((byte) 1);
             dest.writeInt(errorCode);
         }
+        dest.writeInt(connectionCount);
+        dest.writeLong(speedLimit);
+        dest.writeInt(weight);
+        dest.writeInt(priority);
+        dest.writeLong(deadline);
     }
 
     @Override
@@ -299,6 +339,46 @@ public class DownloadInfo implements Parcelable {
         this.errorCode = errorCode;
     }
 
+    public int getConnectionCount() {
+        return this.connectionCount;
+    }
+
+    public void setConnectionCount(int connectionCount) {
+        this.connectionCount = connectionCount;
+    }
+
+    public long getSpeedLimit() {
+        return this.speedLimit;
+    }
+
+    public void setSpeedLimit(long speedLimit) {
+        this.speedLimit = speedLimit;
+    }
+
+    public int getWeight() {
+        return this.weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getPriority() {
+        return this.priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
     public void readFromParcel(Parcel in) {
         if (in.readByte() == 0) {
             id = null;
@@ -324,6 +404,11 @@ public class DownloadInfo implements Parcelable {
         } else {
             errorCode = in.readInt();
         }
+        connectionCount = in.readInt();
+        speedLimit = in.readLong();
+        weight = in.readInt();
+        priority = in.readInt();
+        deadline = in.readLong();
     }
 
     /** called by internal mechanisms, do not call yourself. */
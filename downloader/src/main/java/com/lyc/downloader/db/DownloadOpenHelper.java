@@ -0,0 +1,44 @@
+package com.lyc.downloader.db;
+
+import android.content.Context;
+import com.lyc.downloader.utils.Logger;
+import org.greenrobot.greendao.database.Database;
+
+/**
+ * Upgrade schema without dropping tasks of users.
+ * {@link DaoMaster.DevOpenHelper} drops all tables on upgrade which is only for development.
+ */
+public class DownloadOpenHelper extends DaoMaster.OpenHelper {
+    private static final String TAG = "DownloadOpenHelper";
+    // same as the name of the index in DownloadInfo
+    private static final String STATE_INDEX = "IDX_DOWNLOAD_INFO_STATE";
+
+    public DownloadOpenHelper(Context context, String name) {
+        super(context, name);
+    }
+
+    @Override
+    public void onUpgrade(Database db, int oldVersion, int newVersion) {
+        Logger.d(TAG, "Upgrading schema from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE \"" + DownloadInfoDao.TABLENAME + "\" ADD COLUMN \""
+                    + DownloadInfoDao.Properties.ConnectionCount.columnName + "\" INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE \"" + DownloadInfoDao.TABLENAME + "\" ADD COLUMN \""
+                    + DownloadInfoDao.Properties.SpeedLimit.columnName + "\" INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE \"" + DownloadInfoDao.TABLENAME + "\" ADD COLUMN \""
+                    + DownloadInfoDao.Properties.Weight.columnName + "\" INTEGER NOT NULL DEFAULT 1");
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE \"" + DownloadInfoDao.TABLENAME + "\" ADD COLUMN \""
+                    + DownloadInfoDao.Properties.Priority.columnName + "\" INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE \"" + DownloadInfoDao.TABLENAME + "\" ADD COLUMN \""
+                    + DownloadInfoDao.Properties.Deadline.columnName + "\" INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 5) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + STATE_INDEX + " ON \"" + DownloadInfoDao.TABLENAME + "\" (\""
+                    + DownloadInfoDao.Properties.DownloadItemState.columnName + "\" ASC)");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestBandwidthLimiter {
+    private static final int RATE = 2 << 20;
+    private static final int CHUNK = 16 << 10;
+
+    @Test
+    public void aggregateWithinFivePercent() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(RATE);
+        BandwidthLimiter.Throttle a = limiter.newThrottle();
+        BandwidthLimiter.Throttle b = limiter.newThrottle();
+        AtomicLong aBytes = new AtomicLong();
+        AtomicLong bBytes = new AtomicLong();
+        final int seconds = 2;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        // 3 connections against 1; tasks still share equally
+        for (int i = 0; i < 3; i++) {
+            threads.add(reader(limiter, a, aBytes, deadline));
+        }
+        threads.add(reader(limiter, b, bBytes, deadline));
+        join(threads);
+
+        // bytes allowed by the global rate in the whole run
+        long expectedBytes = (long) RATE * seconds;
+        long total = aBytes.get() + bBytes.get();
+        Assert.assertEquals(expectedBytes, total, expectedBytes * 0.05);
+        Assert.assertEquals("a = " + aBytes.get() + ", b = " + bBytes.get(), aBytes.get(), bBytes.get(), total * 0.1);
+    }
+
+    @Test
+    public void redistributeUnusedShare() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(RATE);
+        BandwidthLimiter.Throttle a = limiter.newThrottle();
+        BandwidthLimiter.Throttle b = limiter.newThrottle();
+        // b is capped below its share; a takes the rest
+        b.setLimit(RATE / 4);
+        AtomicLong aBytes = new AtomicLong();
+        AtomicLong bBytes = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        join(reader(limiter, a, aBytes, deadline), reader(limiter, b, bBytes, deadline));
+        Assert.assertEquals(RATE / 4, bBytes.get(), RATE * 0.05);
+        Assert.assertEquals(RATE * 3 / 4, aBytes.get(), RATE * 0.05);
+
+        // b is idle; a takes everything after b drops out
+        Thread.sleep(600);
+        aBytes.set(0);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        join(reader(limiter, a, aBytes, deadline));
+        // plus burst of 100ms saved while idle
+        Assert.assertEquals(RATE * 1.1, aBytes.get(), RATE * 0.05);
+        Assert.assertEquals(RATE, a.getRate());
+    }
+
+    @Test
+    public void shareByWeight() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(RATE);
+        BandwidthLimiter.Throttle foreground = limiter.newThrottle();
+        BandwidthLimiter.Throttle background = limiter.newThrottle();
+        foreground.setWeight(4);
+        AtomicLong foregroundBytes = new AtomicLong();
+        AtomicLong backgroundBytes = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        join(reader(limiter, foreground, foregroundBytes, deadline),
+                reader(limiter, background, backgroundBytes, deadline));
+        Assert.assertEquals(RATE * 4 / 5, foregroundBytes.get(), RATE * 0.05);
+        Assert.assertEquals(RATE / 5, backgroundBytes.get(), RATE * 0.05);
+    }
+
+    @Test
+    public void unlimited() {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+        BandwidthLimiter.Throttle throttle = limiter.newThrottle();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(limiter.acquire(throttle, CHUNK));
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    private static Thread reader(BandwidthLimiter limiter, BandwidthLimiter.Throttle throttle,
+                                 AtomicLong bytes, long deadline) {
+        Thread thread = new Thread(() -> {
+            while (System.nanoTime() < deadline) {
+                limiter.acquire(throttle, CHUNK);
+                if (System.nanoTime() <= deadline) {
+                    bytes.addAndGet(CHUNK);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void join(Thread... threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConcurrencyController {
+    private static final long WINDOW = ConcurrencyController.WINDOW_NANOS;
+    private static final long MB = 1 << 20;
+
+    /**
+     * each task gets 1MB/s from its server; the link takes 12MB/s
+     */
+    @Test
+    public void growOnFatPipe() {
+        ConcurrencyController controller = new ConcurrencyController(4, 1, 32);
+        int[] limits = run(controller, MB, 12 * MB, 200);
+        int max = 0;
+        double sum = 0;
+        for (int i = 100; i < limits.length; i++) {
+            max = Math.max(max, limits[i]);
+            sum += limits[i];
+        }
+        double mean = sum / (limits.length - 100);
+        // 12 tasks fill the link, one more is the probe
+        Assert.assertTrue("max limit = " + max, max <= 13);
+        Assert.assertTrue("mean limit = " + mean, mean > 8);
+    }
+
+    /**
+     * the link is saturated by 2 tasks already; extra tasks only split bandwidth
+     */
+    @Test
+    public void shrinkWhenSaturated() {
+        ConcurrencyController controller = new ConcurrencyController(8, 1, 32);
+        int[] limits = run(controller, 2 * MB, 4 * MB, 200);
+        double sum = 0;
+        for (int i = 100; i < limits.length; i++) {
+            sum += limits[i];
+        }
+        double mean = sum / (limits.length - 100);
+        Assert.assertTrue("mean limit = " + mean, mean < 3);
+    }
+
+    @Test
+    public void bounds() {
+        ConcurrencyController controller = new ConcurrencyController(8, 2, 5);
+        Assert.assertEquals(5, controller.getLimit());
+        for (int limit : run(controller, MB, 1, 100)) {
+            Assert.assertTrue(limit >= 2 && limit <= 5);
+        }
+        controller.setLimit(0);
+        Assert.assertEquals(2, controller.getLimit());
+        for (int limit : run(controller, MB, 100 * MB, 100)) {
+            Assert.assertTrue(limit >= 2 && limit <= 5);
+        }
+        Assert.assertEquals(5, controller.getLimit());
+    }
+
+    @Test
+    public void holdWithoutWaitingTasks() {
+        ConcurrencyController controller = new ConcurrencyController(4, 1, 32);
+        long now = 0;
+        controller.onWindow(now, false);
+        for (int i = 0; i < 20; i++) {
+            now += WINDOW;
+            controller.onBytes(4 * MB);
+            Assert.assertFalse(controller.onWindow(now, false));
+        }
+        Assert.assertEquals(4, controller.getLimit());
+    }
+
+    /**
+     * @return limit after each window
+     */
+    private static int[] run(ConcurrencyController controller, long taskBytesPerSecond, long linkBytesPerSecond,
+                             int windows) {
+        int[] limits = new int[windows];
+        long now = 0;
+        controller.onWindow(now, true);
+        for (int i = 0; i < windows; i++) {
+            now += WINDOW;
+            long bps = Math.min(controller.getLimit() * taskBytesPerSecond, linkBytesPerSecond);
+            controller.onBytes(bps * (WINDOW / 1_000_000_000L));
+            controller.onWindow(now, true);
+            limits[i] = controller.getLimit();
+        }
+        return limits;
+    }
+}
@@ -0,0 +1,55 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConnectionCountController {
+    private static final long WINDOW = ConnectionCountController.WINDOW_NANOS;
+
+    @Test
+    public void addWhileThroughputGrows() {
+        ConnectionCountController controller = new ConnectionCountController(2, 8);
+        long now = 0, size = 0;
+        Assert.assertFalse(controller.onProgress(size, now));
+        // 1MB/s per connection, server scales linearly
+        int added = 0;
+        for (int i = 0; i < 40; i++) {
+            now += WINDOW;
+            size += controller.getCount() * 2L * (1 << 20);
+            if (controller.onProgress(size, now)) {
+                controller.onConnectionAdded(true);
+                added++;
+            }
+        }
+        Assert.assertEquals(6, added);
+        Assert.assertEquals(8, controller.getCount());
+        Assert.assertTrue(controller.isFrozen());
+    }
+
+    @Test
+    public void stopWhenThroughputFlat() {
+        ConnectionCountController controller = new ConnectionCountController(2, 8);
+        long now = 0, size = 0;
+        controller.onProgress(size, now);
+        for (int i = 0; i < 40; i++) {
+            now += WINDOW;
+            // bandwidth is the bottleneck
+            size += 4L * (1 << 20);
+            if (controller.onProgress(size, now)) {
+                controller.onConnectionAdded(true);
+            }
+        }
+        Assert.assertEquals(3, controller.getCount());
+        Assert.assertTrue(controller.isFrozen());
+    }
+
+    @Test
+    public void stopWhenCannotSplit() {
+        ConnectionCountController controller = new ConnectionCountController(1, 8);
+        controller.onProgress(0, 0);
+        Assert.assertTrue(controller.onProgress(1 << 20, WINDOW));
+        controller.onConnectionAdded(false);
+        Assert.assertFalse(controller.onProgress(4 << 20, 2 * WINDOW));
+        Assert.assertEquals(1, controller.getCount());
+    }
+}
@@ -0,0 +1,63 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class TestDownloadBuffer {
+    private static final int K = 1 << 10;
+
+    @Test
+    public void growWhenWriterFallsBehind() throws InterruptedException {
+        BlockingQueue<Segment> filled = new LinkedBlockingQueue<>();
+        PipelineStats stats = new PipelineStats();
+        DownloadBuffer buffer = new DownloadBuffer(8 * K, filled, new SegmentPool(1 << 20), 2, 4, stats);
+        buffer.open();
+        for (int i = 0; i < 4; i++) {
+            Segment segment = buffer.availableWriteSegment(1);
+            Assert.assertNotNull(segment);
+            buffer.enqueueReadSegment(segment);
+        }
+        Assert.assertEquals(4, buffer.getDepth());
+        Assert.assertEquals(2, stats.getDepthGrows());
+        Assert.assertEquals(0, stats.getReaderBlocks());
+
+        // max depth reached; blocks until writer returns a segment
+        Assert.assertNull(buffer.availableWriteSegment(1));
+        Assert.assertEquals(1, stats.getReaderBlocks());
+        Assert.assertTrue(stats.getReaderBlockedNanos() > 0);
+
+        Segment written = filled.poll();
+        buffer.enqueueWriteSegment(written);
+        Assert.assertSame(written, buffer.availableWriteSegment(1));
+        Assert.assertEquals(1, stats.getReaderBlocks());
+
+        buffer.close();
+        Assert.assertEquals(2, buffer.getDepth());
+    }
+
+    @Test
+    public void fixedDepth() throws InterruptedException {
+        BlockingQueue<Segment> filled = new LinkedBlockingQueue<>();
+        PipelineStats stats = new PipelineStats();
+        SegmentPool pool = new SegmentPool(1 << 20);
+        DownloadBuffer buffer = new DownloadBuffer(8 * K, filled, pool, 3, 3, stats);
+        buffer.open();
+        for (int i = 0; i < 3; i++) {
+            buffer.enqueueReadSegment(buffer.availableWriteSegment(1));
+        }
+        Assert.assertNull(buffer.availableWriteSegment(1));
+        Assert.assertEquals(3, buffer.getDepth());
+        Assert.assertEquals(0, stats.getDepthGrows());
+
+        // segments go back to pool when written after reader is finished
+        buffer.close();
+        Segment segment;
+        while ((segment = filled.poll()) != null) {
+            buffer.enqueueWriteSegment(segment);
+        }
+        Assert.assertEquals(0, pool.getLeasedBytes());
+    }
+}
@@ -0,0 +1,95 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class TestFileNameRegistry {
+    private static final String SUFFIX = ".ycd";
+
+    @Test
+    public void skipTakenNames() throws IOException {
+        File dir = tempDir();
+        try {
+            FileNameRegistry registry = new FileNameRegistry(SUFFIX);
+            Assert.assertEquals("a.txt", registry.reserve(dir, "a.txt"));
+            // reserved in memory
+            Assert.assertEquals("a(1).txt", registry.reserve(dir, "a.txt"));
+            // tmp file exists
+            Assert.assertTrue(new File(dir, "a(2).txt" + SUFFIX).createNewFile());
+            // downloaded file exists
+            Assert.assertTrue(new File(dir, "a(3).txt").createNewFile());
+            Assert.assertEquals("a(4).txt", registry.reserve(dir, "a.txt"));
+            // counting goes on from a reduplicated name
+            Assert.assertTrue(new File(dir, "b(3)").createNewFile());
+            Assert.assertEquals("b(4)", registry.reserve(dir, "b(3)"));
+
+            registry.release(dir, "a(1).txt");
+            Assert.assertEquals("a(1).txt", registry.reserve(dir, "a.txt"));
+            // other directories are not affected
+            File other = tempDir();
+            try {
+                Assert.assertEquals("a.txt", registry.reserve(other, "a.txt"));
+            } finally {
+                delete(other);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void concurrentReserve() throws InterruptedException {
+        File dir = tempDir();
+        try {
+            FileNameRegistry registry = new FileNameRegistry(SUFFIX);
+            Set<String> names = Collections.synchronizedSet(new HashSet<>());
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(50);
+            for (int i = 0; i < 50; i++) {
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        String name = registry.reserve(dir, "file.bin");
+                        // tmp file holds the name after release
+                        Assert.assertTrue(new File(dir, name + SUFFIX).createNewFile());
+                        registry.release(dir, name);
+                        names.add(name);
+                    } catch (Exception e) {
+                        // counted as missing name
+                    }
+                    done.countDown();
+                }).start();
+            }
+            start.countDown();
+            done.await();
+            Assert.assertEquals(50, names.size());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static File tempDir() {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "registry" + System.nanoTime());
+        Assert.assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+}
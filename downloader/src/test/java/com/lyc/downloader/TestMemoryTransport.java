@@ -0,0 +1,90 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+public class TestMemoryTransport {
+    private static final String URL = "memory://file.bin";
+
+    private final byte[] content = new byte[10_000];
+    private final MemoryTransport transport = new MemoryTransport();
+
+    public TestMemoryTransport() {
+        new Random(1).nextBytes(content);
+        transport.put(URL, content);
+    }
+
+    @Test
+    public void whole() throws IOException {
+        try (DownloadTransport.Response response = execute(Collections.emptyMap())) {
+            Assert.assertEquals(200, response.code());
+            Assert.assertEquals(content.length, response.contentLength());
+            Assert.assertEquals("bytes", response.header("accept-ranges"));
+            Assert.assertArrayEquals(content, response.source().readByteArray());
+        }
+    }
+
+    @Test
+    public void range() throws IOException {
+        try (DownloadTransport.Response response = execute(Collections.singletonMap("Range", "bytes=100-199"))) {
+            Assert.assertEquals(206, response.code());
+            Assert.assertEquals(100, response.contentLength());
+            Assert.assertEquals("bytes 100-199/10000", response.header("Content-Range"));
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.source().readByteArray());
+        }
+        try (DownloadTransport.Response response = execute(Collections.singletonMap("Range", "bytes=9000-"))) {
+            Assert.assertEquals(206, response.code());
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 9000, 10_000), response.source().readByteArray());
+        }
+        try (DownloadTransport.Response response = execute(Collections.singletonMap("Range", "bytes=9000-20000"))) {
+            Assert.assertEquals(1000, response.contentLength());
+        }
+        try (DownloadTransport.Response response = execute(Collections.singletonMap("Range", "bytes=10000-"))) {
+            Assert.assertEquals(416, response.code());
+            Assert.assertNull(response.source());
+        }
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        DownloadTransport.Call call = transport.newCall("memory://none", Collections.emptyMap());
+        try (DownloadTransport.Response response = call.execute()) {
+            Assert.assertEquals(404, response.code());
+            Assert.assertNull(response.source());
+        }
+    }
+
+    @Test
+    public void cancel() throws IOException {
+        DownloadTransport.Call call = transport.newCall(URL, Collections.emptyMap());
+        try (DownloadTransport.Response response = call.execute()) {
+            byte[] buffer = new byte[MemoryTransport.READ_CHUNK];
+            Assert.assertEquals(10, response.source().read(buffer, 0, 10));
+            call.cancel();
+            // what's left of the chunk is buffered already
+            Assert.assertEquals(MemoryTransport.READ_CHUNK - 10, response.source().read(buffer));
+            try {
+                response.source().read(buffer);
+                Assert.fail("read after cancel");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            call.execute();
+            Assert.fail("execute after cancel");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private DownloadTransport.Response execute(Map<String, String> headers) throws IOException {
+        return transport.newCall(URL, headers).execute();
+    }
+}
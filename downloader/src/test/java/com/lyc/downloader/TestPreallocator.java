@@ -0,0 +1,135 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestPreallocator {
+
+    @Test
+    public void growInChunks() throws IOException, InterruptedException {
+        File file = File.createTempFile("prealloc", ".ycd");
+        try {
+            AtomicReference<IOException> failure = new AtomicReference<>();
+            Preallocator preallocator = new Preallocator(file, 10 << 20, 1 << 20, failure::set);
+            Thread thread = new Thread(preallocator);
+            thread.start();
+            Assert.assertTrue(preallocator.awaitReady(3 << 20));
+            Assert.assertTrue(preallocator.getReadyLength() >= 3 << 20);
+            // asking past the end only waits for total size
+            Assert.assertTrue(preallocator.awaitReady(Long.MAX_VALUE));
+            thread.join();
+            Assert.assertEquals(10 << 20, file.length());
+            Assert.assertNull(failure.get());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void cancelWakesWriters() throws IOException, InterruptedException {
+        File file = File.createTempFile("prealloc", ".ycd");
+        try {
+            // never started: nothing is allocated
+            Preallocator preallocator = new Preallocator(file, 10 << 20, 1 << 20, e -> {
+            });
+            AtomicBoolean ready = new AtomicBoolean(true);
+            CountDownLatch returned = new CountDownLatch(1);
+            new Thread(() -> {
+                try {
+                    ready.set(preallocator.awaitReady(1 << 20));
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                returned.countDown();
+            }).start();
+            Assert.assertFalse(returned.await(50, TimeUnit.MILLISECONDS));
+            preallocator.cancel();
+            Assert.assertTrue(returned.await(5, TimeUnit.SECONDS));
+            // nothing is being allocated; writers grow the file by themselves
+            Assert.assertTrue(ready.get());
+
+            // cancelled before running: file is not grown
+            preallocator.run();
+            Assert.assertEquals(0, file.length());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * runs in a pooled thread, which must not be left interrupted for the next job
+     */
+    @Test
+    public void cancelWithoutInterrupt() throws IOException, InterruptedException {
+        File file = File.createTempFile("prealloc", ".ycd");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            Preallocator preallocator = new Preallocator(file, 1L << 40, 1 << 20, e -> {
+            });
+            executor.execute(() -> {
+                started.countDown();
+                preallocator.run();
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(preallocator.awaitReady(1 << 20));
+            preallocator.cancel();
+            Assert.assertTrue(preallocator.awaitReady(1L << 40));
+            AtomicBoolean interrupted = new AtomicBoolean(true);
+            CountDownLatch nextJob = new CountDownLatch(1);
+            executor.execute(() -> {
+                interrupted.set(Thread.currentThread().isInterrupted());
+                nextJob.countDown();
+            });
+            Assert.assertTrue(nextJob.await(5, TimeUnit.SECONDS));
+            Assert.assertFalse(interrupted.get());
+            Assert.assertTrue(file.length() < 1L << 40);
+        } finally {
+            executor.shutdownNow();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void neverShrink() throws IOException, InterruptedException {
+        File file = File.createTempFile("prealloc", ".ycd");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(4 << 20);
+            }
+            Preallocator preallocator = new Preallocator(file, 2 << 20, 1 << 20, e -> {
+            });
+            preallocator.run();
+            Assert.assertTrue(preallocator.awaitReady(2 << 20));
+            Assert.assertEquals(4 << 20, file.length());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void spaceCheck() throws IOException {
+        File file = File.createTempFile("prealloc", ".ycd");
+        try {
+            Assert.assertTrue(Preallocator.hasSpace(file, 1));
+            Assert.assertFalse(Preallocator.hasSpace(file, Long.MAX_VALUE));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
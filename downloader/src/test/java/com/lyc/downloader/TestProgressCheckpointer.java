@@ -0,0 +1,108 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestProgressCheckpointer {
+
+    @Test
+    public void mergeAndCommitOnBytes() throws InterruptedException {
+        List<List<String>> commits = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch committed = new CountDownLatch(1);
+        ProgressCheckpointer<String> checkpointer = new ProgressCheckpointer<>(checkpoints -> {
+            commits.add(checkpoints);
+            committed.countDown();
+        }, 100, 1, TimeUnit.HOURS);
+        // 40 ticks of 2 tasks; only latest checkpoint of each task is committed
+        for (int i = 0; i < 20; i++) {
+            checkpointer.update(1, "a" + i, 2);
+            checkpointer.update(2, "b" + i, 2);
+        }
+        Assert.assertFalse(committed.await(100, TimeUnit.MILLISECONDS));
+        checkpointer.update(2, "b20", 20);
+        Assert.assertTrue(committed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, commits.size());
+        Assert.assertEquals(2, commits.get(0).size());
+        Assert.assertTrue(commits.get(0).contains("a19"));
+        Assert.assertTrue(commits.get(0).contains("b20"));
+        Assert.assertEquals(41, checkpointer.getCheckpoints());
+    }
+
+    @Test
+    public void commitOnInterval() throws InterruptedException {
+        CountDownLatch committed = new CountDownLatch(1);
+        long start = System.nanoTime();
+        ProgressCheckpointer<String> checkpointer = new ProgressCheckpointer<>(
+                checkpoints -> committed.countDown(), Long.MAX_VALUE, 200, TimeUnit.MILLISECONDS);
+        checkpointer.update(1, "a", 1);
+        Assert.assertTrue(committed.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(1, checkpointer.getCommits());
+    }
+
+    @Test
+    public void removeWaitsForCommitInFlight() throws InterruptedException {
+        CountDownLatch committing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        ProgressCheckpointer<String> checkpointer = new ProgressCheckpointer<>(checkpoints -> {
+            committing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            committed.addAll(checkpoints);
+        }, 1, 1, TimeUnit.HOURS);
+        checkpointer.update(1, "old", 1);
+        Assert.assertTrue(committing.await(5, TimeUnit.SECONDS));
+        // task stops while its checkpoint is being committed
+        CountDownLatch removed = new CountDownLatch(1);
+        new Thread(() -> {
+            checkpointer.remove(1);
+            removed.countDown();
+        }).start();
+        Assert.assertFalse(removed.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(removed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("old"), committed);
+    }
+
+    @Test
+    public void flushAll() {
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        ProgressCheckpointer<String> checkpointer = new ProgressCheckpointer<>(committed::addAll,
+                Long.MAX_VALUE, 1, TimeUnit.HOURS);
+        checkpointer.update(1, "a", 1);
+        checkpointer.update(2, "b", 1);
+        checkpointer.remove(2);
+        checkpointer.flush();
+        Assert.assertEquals(Collections.singletonList("a"), committed);
+    }
+
+    @Test
+    public void discardDropsLateCheckpoints() {
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        ProgressCheckpointer<String> checkpointer = new ProgressCheckpointer<>(committed::addAll,
+                Long.MAX_VALUE, 1, TimeUnit.HOURS);
+        checkpointer.update(1, "a", 1);
+        checkpointer.update(2, "b", 1);
+        checkpointer.discard(2);
+        // watcher of the deleted task hands in one more
+        checkpointer.update(2, "late", 1);
+        checkpointer.flush();
+        Assert.assertEquals(Collections.singletonList("a"), committed);
+        // paused tasks still checkpoint after resuming
+        checkpointer.remove(1);
+        checkpointer.update(1, "resumed", 1);
+        checkpointer.flush();
+        Assert.assertEquals(Arrays.asList("a", "resumed"), committed);
+    }
+}
@@ -0,0 +1,86 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestProgressJournal {
+
+    @Test
+    public void recoverAfterReopen() throws IOException {
+        File file = File.createTempFile("progress", ProgressJournal.SUFFIX);
+        try {
+            ProgressJournal journal = ProgressJournal.open(file, 7, 1000);
+            Assert.assertFalse(journal.isRecovered());
+            Assert.assertTrue(journal.record(0, 0, 500, 100));
+            Assert.assertTrue(journal.record(1, 500, 500, 0));
+            // range 1 is split
+            Assert.assertTrue(journal.record(2, 750, 250, 0));
+            Assert.assertTrue(journal.record(1, 500, 250, 10));
+            Assert.assertTrue(journal.record(0, 0, 500, 200));
+
+            // process dies; nothing is flushed explicitly
+            ProgressJournal recovered = ProgressJournal.open(file, 7, 1000);
+            Assert.assertTrue(recovered.isRecovered());
+            Map<Integer, ProgressJournal.Range> ranges = byTid(recovered.ranges());
+            Assert.assertEquals(3, ranges.size());
+            Assert.assertEquals(200, ranges.get(0).downloaded);
+            Assert.assertEquals(250, ranges.get(1).total);
+            Assert.assertEquals(10, ranges.get(1).downloaded);
+            Assert.assertEquals(750, ranges.get(2).start);
+            Assert.assertEquals(250, ranges.get(2).total);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void discardJournalOfOtherContent() throws IOException {
+        File file = File.createTempFile("progress", ProgressJournal.SUFFIX);
+        try {
+            ProgressJournal journal = ProgressJournal.open(file, 7, 1000);
+            journal.record(0, 0, 1000, 100);
+            ProgressJournal other = ProgressJournal.open(file, 7, 2000);
+            Assert.assertFalse(other.isRecovered());
+            Assert.assertTrue(other.ranges().isEmpty());
+
+            other.record(0, 0, 2000, 1);
+            other.reset(7, 2000);
+            Assert.assertTrue(ProgressJournal.open(file, 7, 2000).ranges().isEmpty());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void tooManyRanges() throws IOException {
+        File file = File.createTempFile("progress", ProgressJournal.SUFFIX);
+        try {
+            ProgressJournal journal = ProgressJournal.open(file, 1, 1 << 20);
+            for (int i = 0; i < ProgressJournal.MAX_RANGES; i++) {
+                Assert.assertTrue(journal.record(i, i, 1, 0));
+            }
+            Assert.assertFalse(journal.record(ProgressJournal.MAX_RANGES, 0, 1, 0));
+            // existing ranges can still be updated
+            Assert.assertTrue(journal.record(0, 0, 1, 1));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static Map<Integer, ProgressJournal.Range> byTid(List<ProgressJournal.Range> ranges) {
+        Map<Integer, ProgressJournal.Range> map = new HashMap<>();
+        for (ProgressJournal.Range range : ranges) {
+            map.put(range.tid, range);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,157 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestProgressTable {
+
+    @Test
+    public void updateAndRead() throws IOException {
+        File file = File.createTempFile("progress", ".table");
+        try {
+            Assert.assertNull(ProgressTable.open(file));
+            ProgressTable writer = ProgressTable.create(file, 4);
+            ProgressTable reader = ProgressTable.open(file);
+            Assert.assertNotNull(reader);
+            Assert.assertEquals(4, reader.getSlotCount());
+
+            ProgressTable.Entry entry = new ProgressTable.Entry();
+            Assert.assertFalse(reader.read(1, entry));
+            Assert.assertTrue(writer.updateState(1, DownloadTask.RUNNING));
+            Assert.assertTrue(writer.update(1, 100, 10, 5.5));
+            Assert.assertTrue(reader.read(1, entry));
+            Assert.assertEquals(1, entry.getId());
+            Assert.assertEquals(100, entry.getTotal());
+            Assert.assertEquals(10, entry.getCur());
+            Assert.assertEquals(5.5, entry.getBps(), 0);
+            Assert.assertEquals(DownloadTask.RUNNING, entry.getState());
+            long version = entry.getVersion();
+
+            Assert.assertTrue(writer.updateState(1, DownloadTask.PAUSED));
+            Assert.assertTrue(reader.read(1, entry));
+            Assert.assertEquals(DownloadTask.PAUSED, entry.getState());
+            Assert.assertEquals(10, entry.getCur());
+            Assert.assertTrue(entry.getVersion() > version);
+            // slots of paused tasks may be recycled when the table is full
+            Assert.assertTrue(writer.updateState(1, DownloadTask.RUNNING));
+
+            for (long id = 2; id <= 4; id++) {
+                Assert.assertTrue(writer.update(id, 1, 1, 1));
+            }
+            // full
+            Assert.assertFalse(writer.update(5, 1, 1, 1));
+            ProgressTable.Entry[] entries = new ProgressTable.Entry[8];
+            Assert.assertEquals(4, reader.readAll(entries));
+
+            writer.remove(1);
+            Assert.assertFalse(reader.read(1, entry));
+            Assert.assertEquals(3, reader.readAll(entries));
+            Assert.assertTrue(writer.update(5, 1, 1, 1));
+
+            // a new download process clears the table in place
+            ProgressTable.create(file, 4);
+            Assert.assertEquals(0, reader.readAll(entries));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void recycleSettledSlots() throws IOException {
+        File file = File.createTempFile("progress", ".table");
+        try {
+            ProgressTable writer = ProgressTable.create(file, 3);
+            ProgressTable reader = ProgressTable.open(file);
+            Assert.assertNotNull(reader);
+            ProgressTable.Entry entry = new ProgressTable.Entry();
+            Assert.assertTrue(writer.updateState(1, DownloadTask.FINISH));
+            Assert.assertTrue(writer.updateState(2, DownloadTask.PAUSED));
+            Assert.assertTrue(writer.updateState(3, DownloadTask.RUNNING));
+            Assert.assertTrue(writer.updateState(1, DownloadTask.FINISH));
+
+            // task 2 is settled and least recently updated
+            Assert.assertTrue(writer.update(4, 100, 1, 1));
+            Assert.assertFalse(reader.read(2, entry));
+            Assert.assertTrue(reader.read(1, entry));
+            Assert.assertTrue(reader.read(4, entry));
+            Assert.assertTrue(writer.update(5, 100, 1, 1));
+            Assert.assertFalse(reader.read(1, entry));
+            // only running tasks left
+            Assert.assertFalse(writer.update(6, 100, 1, 1));
+            Assert.assertTrue(reader.read(3, entry));
+
+            // resumed task takes a slot again
+            Assert.assertTrue(writer.updateState(4, DownloadTask.PAUSED));
+            Assert.assertTrue(writer.updateState(2, DownloadTask.RUNNING));
+            Assert.assertTrue(reader.read(2, entry));
+            Assert.assertFalse(reader.read(4, entry));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void ignoreRemovedTasks() throws IOException {
+        File file = File.createTempFile("progress", ".table");
+        try {
+            ProgressTable writer = ProgressTable.create(file, 2);
+            ProgressTable reader = ProgressTable.open(file);
+            Assert.assertNotNull(reader);
+            Assert.assertTrue(writer.update(1, 100, 1, 1));
+            writer.remove(1);
+            // progress and state sent before the task was deleted
+            Assert.assertTrue(writer.update(1, 100, 2, 1));
+            Assert.assertTrue(writer.updateState(1, DownloadTask.PAUSED));
+            ProgressTable.Entry[] entries = new ProgressTable.Entry[2];
+            Assert.assertEquals(0, reader.readAll(entries));
+            Assert.assertTrue(writer.update(2, 100, 1, 1));
+            Assert.assertTrue(writer.update(3, 100, 1, 1));
+            Assert.assertEquals(2, reader.readAll(entries));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * readers never see a half written slot
+     */
+    @Test
+    public void consistentRead() throws Exception {
+        File file = File.createTempFile("progress", ".table");
+        try {
+            ProgressTable writer = ProgressTable.create(file, 4);
+            ProgressTable reader = ProgressTable.open(file);
+            Assert.assertNotNull(reader);
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread writeThread = new Thread(() -> {
+                for (long cur = 0; !stop.get(); cur++) {
+                    writer.update(1, cur * 2, cur, cur * 3);
+                }
+            });
+            writeThread.start();
+            ProgressTable.Entry entry = new ProgressTable.Entry();
+            int reads = 0;
+            long deadline = System.nanoTime() + 500_000_000L;
+            while (System.nanoTime() < deadline) {
+                if (reader.read(1, entry)) {
+                    Assert.assertEquals(entry.getCur() * 2, entry.getTotal());
+                    Assert.assertEquals(entry.getCur() * 3, entry.getBps(), 0);
+                    reads++;
+                }
+            }
+            stop.set(true);
+            writeThread.join();
+            Assert.assertTrue(reads > 0);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSegmentExecutor {
+    private static final int BUDGET = 4;
+    private static final int MAX_THREADS = 6;
+
+    /**
+     * Jobs beyond max threads wait in the queue instead of creating more threads.
+     * Admission of {@link DownloadTask} is tested on the real task in SegmentAdmissionTest.
+     */
+    @Test
+    public void jobsBeyondMaxThreadsAreQueued() throws InterruptedException {
+        AtomicInteger createdThreads = new AtomicInteger();
+        SegmentExecutor executor = new SegmentExecutor(BUDGET, MAX_THREADS, r -> {
+            createdThreads.incrementAndGet();
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        int jobCount = MAX_THREADS * 3;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch full = new CountDownLatch(MAX_THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(jobCount);
+        for (int i = 0; i < jobCount; i++) {
+            executor.submit(() -> {
+                int count = running.incrementAndGet();
+                maxRunning.accumulateAndGet(count, Math::max);
+                full.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    // cancelled
+                } finally {
+                    running.decrementAndGet();
+                }
+            }, "job", finished::countDown);
+        }
+        Assert.assertTrue(full.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(MAX_THREADS, executor.poolSize());
+        go.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(MAX_THREADS, maxRunning.get());
+        Assert.assertEquals(MAX_THREADS, createdThreads.get());
+        Assert.assertEquals(MAX_THREADS, executor.largestPoolSize());
+    }
+
+    @Test
+    public void requiredThreadsWaitForMaxThreads() throws InterruptedException {
+        SegmentExecutor executor = new SegmentExecutor(BUDGET, MAX_THREADS);
+        Assert.assertTrue(executor.acquire(2, false));
+        Assert.assertTrue(executor.acquire(2, false));
+        Assert.assertFalse(executor.acquire(1, false));
+        Assert.assertTrue(executor.acquire(2, true));
+        Assert.assertFalse(executor.acquire(1, true));
+        Assert.assertFalse(executor.acquire(2, 10, TimeUnit.MILLISECONDS));
+
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                if (executor.acquire(2, 5, TimeUnit.SECONDS)) {
+                    admitted.countDown();
+                }
+            } catch (InterruptedException e) {
+                // failed
+            }
+        });
+        waiter.start();
+        Assert.assertFalse(admitted.await(50, TimeUnit.MILLISECONDS));
+        executor.release(2);
+        Assert.assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(MAX_THREADS, executor.threadsInUse());
+
+        // raising the limit admits waiting tasks at once
+        executor.setMaxThreads(MAX_THREADS + 2);
+        Assert.assertTrue(executor.acquire(2, 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(MAX_THREADS + 2, executor.getMaxThreads());
+    }
+
+    @Test
+    public void onFinishCalledOnceWhenCancelled() throws InterruptedException {
+        SegmentExecutor executor = new SegmentExecutor(BUDGET, MAX_THREADS);
+        AtomicInteger finished = new AtomicInteger();
+        CountDownLatch blocked = new CountDownLatch(1);
+        Future<?> future = executor.submit(() -> {
+            blocked.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                // cancelled
+            }
+        }, "blocking", finished::incrementAndGet);
+        Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        future.cancel(true);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (finished.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        Assert.assertEquals(1, finished.get());
+    }
+
+    @Test
+    public void budgetLimitsExtraConnections() {
+        SegmentExecutor executor = new SegmentExecutor(BUDGET, MAX_THREADS);
+        Assert.assertTrue(executor.acquire(2, false));
+        Assert.assertTrue(executor.acquire(1, false));
+        Assert.assertFalse(executor.acquire(2, false));
+        Assert.assertTrue(executor.acquire(1, false));
+        Assert.assertFalse(executor.acquire(1, false));
+        Assert.assertTrue(executor.acquire(2, true));
+        Assert.assertEquals(1.5f, executor.saturation(), 1e-6);
+        executor.release(2);
+        executor.release(1);
+        executor.release(1);
+        executor.release(2);
+        Assert.assertEquals(0, executor.threadsInUse());
+    }
+}
@@ -0,0 +1,91 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestSegmentPool {
+    private static final int K = 1 << 10;
+
+    @Test
+    public void reuseAndCap() throws InterruptedException {
+        SegmentPool pool = new SegmentPool(256 * K);
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Segment segment = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(segment);
+            Assert.assertEquals(64 * K, segment.buffer.length);
+            segments.add(segment);
+        }
+        Assert.assertEquals(256 * K, pool.getAllocatedBytes());
+        // full: nothing smaller left either
+        Assert.assertNull(pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS));
+
+        Segment recycled = segments.remove(0);
+        pool.recycle(recycled);
+        Assert.assertEquals(192 * K, pool.getLeasedBytes());
+        Segment again = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+        Assert.assertSame(recycled, again);
+        Assert.assertEquals(256 * K, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void shrinkWhenFull() throws InterruptedException {
+        SegmentPool pool = new SegmentPool(96 * K);
+        Segment large = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(64 * K, large.buffer.length);
+        Segment smaller = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(smaller);
+        Assert.assertEquals(32 * K, smaller.buffer.length);
+        Assert.assertTrue(pool.getAllocatedBytes() <= pool.getCapacity());
+        // rounded up to a power of two
+        pool.recycle(smaller);
+        Segment odd = pool.lease(20000, null, 1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(32 * K, odd.buffer.length);
+    }
+
+    @Test
+    public void evictCachedOfOtherSize() throws InterruptedException {
+        SegmentPool pool = new SegmentPool(64 * K);
+        Segment small = pool.lease(4 * K, null, 1, TimeUnit.MILLISECONDS);
+        pool.recycle(small);
+        Segment large = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(large);
+        Assert.assertEquals(64 * K, large.buffer.length);
+        Assert.assertEquals(64 * K, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void blockUntilRecycled() throws InterruptedException {
+        SegmentPool pool = new SegmentPool(64 * K);
+        Segment segment = pool.lease(64 * K, null, 1, TimeUnit.MILLISECONDS);
+        AtomicReference<Segment> leased = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                leased.set(pool.lease(64 * K, null, 5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            latch.countDown();
+        });
+        t.start();
+        Assert.assertFalse(latch.await(50, TimeUnit.MILLISECONDS));
+        pool.recycle(segment);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertSame(segment, leased.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recycleTwice() throws InterruptedException {
+        SegmentPool pool = new SegmentPool(64 * K);
+        Segment segment = pool.lease(4 * K, null, 1, TimeUnit.MILLISECONDS);
+        pool.recycle(segment);
+        pool.recycle(segment);
+    }
+}
@@ -0,0 +1,96 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestSegmentWriter {
+    private static final int SEGMENT_SIZE = 8 << 10;
+    private static final int BATCH = 16;
+
+    @Test
+    public void writeAndCoalesce() throws IOException {
+        File file = File.createTempFile("segment", ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            SegmentWriter writer = new SegmentWriter(raf.getChannel(), BATCH);
+            List<Segment> batch = new ArrayList<>();
+            // out of order and with an end marker
+            batch.add(segment(200, 100, (byte) 3));
+            batch.add(segment(0, 100, (byte) 1));
+            batch.add(segment(100, 100, (byte) 2));
+            Segment end = segment(300, 0, (byte) 0);
+            end.readSize = -1;
+            batch.add(end);
+            batch.add(segment(1000, 24, (byte) 4));
+            writer.write(batch);
+
+            Assert.assertEquals(2, writer.getWriteCalls());
+            Assert.assertEquals(324, writer.getWrittenBytes());
+            Assert.assertEquals(1024, raf.length());
+            byte[] content = new byte[1024];
+            raf.seek(0);
+            raf.readFully(content);
+            for (int i = 0; i < 300; i++) {
+                Assert.assertEquals(i / 100 + 1, content[i]);
+            }
+            for (int i = 300; i < 1000; i++) {
+                Assert.assertEquals(0, content[i]);
+            }
+            for (int i = 1000; i < 1024; i++) {
+                Assert.assertEquals(4, content[i]);
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Direct segments are written from their byte buffers; interleaved ranges and cpu are in SegmentWriterBenchmark.
+     */
+    @Test
+    public void directSegments() throws IOException {
+        File file = File.createTempFile("direct", ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            SegmentWriter writer = new SegmentWriter(raf.getChannel(), BATCH);
+            List<Segment> batch = new ArrayList<>();
+            for (int i = BATCH - 1; i >= 0; i--) {
+                Segment segment = new Segment(SEGMENT_SIZE, true);
+                for (int j = 0; j < SEGMENT_SIZE; j++) {
+                    segment.byteBuffer.put((byte) i);
+                }
+                segment.startPos = (long) i * SEGMENT_SIZE;
+                segment.readSize = SEGMENT_SIZE;
+                batch.add(segment);
+            }
+            writer.write(batch);
+
+            Assert.assertEquals(1, writer.getWriteCalls());
+            Assert.assertEquals(BATCH * SEGMENT_SIZE, raf.length());
+            byte[] content = new byte[BATCH * SEGMENT_SIZE];
+            raf.seek(0);
+            raf.readFully(content);
+            for (int i = 0; i < content.length; i++) {
+                Assert.assertEquals(i / SEGMENT_SIZE, content[i]);
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static Segment segment(long startPos, int size, byte value) {
+        Segment segment = new Segment(Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            segment.buffer[i] = value;
+        }
+        segment.startPos = startPos;
+        segment.readSize = size;
+        return segment;
+    }
+}
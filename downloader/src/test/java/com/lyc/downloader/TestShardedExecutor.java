@@ -0,0 +1,112 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestShardedExecutor {
+
+    @Test
+    public void orderOfTask() throws InterruptedException {
+        final int taskCount = 64;
+        final int commandCount = 1000;
+        ShardedExecutor executor = new ShardedExecutor("test-order", 4);
+        int[] lastCommand = new int[taskCount];
+        AtomicBoolean outOfOrder = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(taskCount * commandCount);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < taskCount; t++) {
+            final int id = t;
+            lastCommand[id] = -1;
+            producers.add(new Thread(() -> {
+                for (int c = 0; c < commandCount; c++) {
+                    final int command = c;
+                    executor.execute(id, () -> {
+                        // only the shard of the task touches its slot
+                        if (lastCommand[id] != command - 1) {
+                            outOfOrder.set(true);
+                        }
+                        lastCommand[id] = command;
+                        done.countDown();
+                    });
+                }
+            }));
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(outOfOrder.get());
+    }
+
+    @Test
+    public void queuedFromOwnThread() throws InterruptedException {
+        ShardedExecutor executor = new ShardedExecutor("test-queued", 2);
+        Assert.assertFalse(executor.isShardThread(1));
+        List<String> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            Assert.assertTrue(executor.isShardThread(1));
+            executor.execute(1, () -> {
+                order.add("nested");
+                done.countDown();
+            });
+            order.add("outer");
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("outer", "nested"), order);
+    }
+
+    @Test
+    public void spread() {
+        ShardedExecutor executor = new ShardedExecutor("test-spread", 4);
+        int[] counts = new int[executor.getShardCount()];
+        List<Object> shards = new ArrayList<>();
+        for (long id = 1; id <= 4000; id++) {
+            Object shard = executor.shard(id);
+            int index = shards.indexOf(shard);
+            if (index == -1) {
+                index = shards.size();
+                shards.add(shard);
+            }
+            counts[index]++;
+        }
+        for (int count : counts) {
+            Assert.assertTrue(count > 500);
+        }
+    }
+
+    /**
+     * One command on each shard; they only pass the barrier if all shards run at the same time.
+     */
+    @Test
+    public void shardsRunInParallel() throws InterruptedException {
+        ShardedExecutor executor = new ShardedExecutor("test-parallel", 4);
+        int shardCount = executor.getShardCount();
+        CyclicBarrier barrier = new CyclicBarrier(shardCount);
+        CountDownLatch passed = new CountDownLatch(shardCount);
+        List<Object> shards = new ArrayList<>();
+        for (long id = 1; shards.size() < shardCount; id++) {
+            if (shards.contains(executor.shard(id))) {
+                continue;
+            }
+            shards.add(executor.shard(id));
+            executor.execute(id, () -> {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    passed.countDown();
+                } catch (Exception e) {
+                    // the barrier is broken, passed stays above zero
+                }
+            });
+        }
+        Assert.assertTrue(passed.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,149 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static com.lyc.downloader.Configuration.SCHEDULE_FIFO;
+import static com.lyc.downloader.Configuration.SCHEDULE_PRIORITY;
+import static com.lyc.downloader.Configuration.SCHEDULE_SRPT;
+
+public class TestTaskScheduleQueue {
+    private static final long MB = 1 << 20;
+
+    @Test
+    public void fifo() {
+        TaskScheduleQueue queue = new TaskScheduleQueue(SCHEDULE_FIFO, 16 * MB);
+        Assert.assertEquals(-1, queue.poll());
+        Assert.assertTrue(queue.offer(3, 5, 0, MB));
+        Assert.assertTrue(queue.offer(1, 0, 0, -1));
+        Assert.assertTrue(queue.offer(2, 9, 100, 1));
+        Assert.assertFalse(queue.offer(3, 0, 0, MB));
+        Assert.assertEquals(Arrays.asList(3L, 1L, 2L), queue.ids());
+        Assert.assertTrue(queue.remove(1));
+        Assert.assertFalse(queue.remove(1));
+        Assert.assertFalse(queue.contains(1));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(3, queue.poll());
+        Assert.assertEquals(2, queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void priorityAndDeadline() {
+        TaskScheduleQueue queue = new TaskScheduleQueue(SCHEDULE_PRIORITY, 16 * MB);
+        queue.offer(1, 0, 0, MB);
+        queue.offer(2, 0, 2000, MB);
+        queue.offer(3, 1, 0, MB);
+        queue.offer(4, 0, 1000, MB);
+        queue.offer(5, 0, 0, MB);
+        Assert.assertEquals(Arrays.asList(3L, 4L, 2L, 1L, 5L), queue.ids());
+        // a changed priority keeps the place among tasks of the same priority
+        queue.offer(3, 0, 0, MB);
+        Assert.assertEquals(Arrays.asList(4L, 2L, 1L, 3L, 5L), queue.ids());
+        queue.offer(5, 2, 0, MB);
+        Assert.assertEquals(5, queue.poll());
+    }
+
+    @Test
+    public void shortestRemainingFirst() {
+        TaskScheduleQueue queue = new TaskScheduleQueue(SCHEDULE_SRPT, 16 * MB);
+        queue.offer(1, 0, 0, 100 * MB);
+        queue.offer(2, 0, 0, 8 * MB);
+        queue.offer(3, 0, 0, -1);
+        queue.offer(4, 0, 0, MB);
+        queue.offer(5, 0, 0, 50 * MB);
+        queue.offer(6, 1, 0, 500 * MB);
+        // large and unknown files keep their order after small ones
+        Assert.assertEquals(Arrays.asList(6L, 4L, 2L, 1L, 3L, 5L), queue.ids());
+    }
+
+    /**
+     * 10k tasks with heavy tailed sizes are queued at once and run on a few slots of the same speed;
+     * compares mean and p95 completion time of the policies.
+     */
+    @Test
+    public void simulation() {
+        final int taskCount = 10_000;
+        final int slots = 4;
+        final double bytesPerSecond = 2 * MB;
+        Random random = new Random(42);
+        long[] sizes = new long[taskCount];
+        int[] priorities = new int[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            // most files are small, a few are huge
+            sizes[i] = (long) (256 * 1024 / Math.pow(1 - random.nextDouble(), 1 / 1.2));
+            sizes[i] = Math.min(sizes[i], 4096 * MB);
+            priorities[i] = random.nextInt(10) == 0 ? 1 : 0;
+        }
+
+        double[] fifo = simulate(SCHEDULE_FIFO, sizes, priorities, slots, bytesPerSecond);
+        double[] priority = simulate(SCHEDULE_PRIORITY, sizes, priorities, slots, bytesPerSecond);
+        double[] srpt = simulate(SCHEDULE_SRPT, sizes, priorities, slots, bytesPerSecond);
+        // mean / p95 / mean of priority tasks (s)
+        String times = String.format("fifo %.0f / %.0f / %.0f, priority %.0f / %.0f / %.0f, srpt %.0f / %.0f / %.0f",
+                fifo[0], fifo[1], fifo[2], priority[0], priority[1], priority[2], srpt[0], srpt[1], srpt[2]);
+        Assert.assertTrue(times, srpt[0] < fifo[0] * 0.6);
+        Assert.assertTrue(times, srpt[1] < fifo[1]);
+        Assert.assertTrue(times, priority[2] < fifo[2] / 2);
+        Assert.assertTrue(times, srpt[2] < fifo[2] / 2);
+    }
+
+    /**
+     * @return mean, p95 and mean of tasks with priority of completion time in seconds
+     */
+    private static double[] simulate(int policy, long[] sizes, int[] priorities, int slots, double bytesPerSecond) {
+        TaskScheduleQueue queue = new TaskScheduleQueue(policy, 16 * MB);
+        for (int i = 0; i < sizes.length; i++) {
+            queue.offer(i, priorities[i], 0, sizes[i]);
+        }
+        PriorityQueue<Double> freeAt = new PriorityQueue<>();
+        for (int i = 0; i < slots; i++) {
+            freeAt.add(0.0);
+        }
+        double[] completions = new double[sizes.length];
+        double sum = 0;
+        double prioritySum = 0;
+        int priorityCount = 0;
+        int count = 0;
+        while (!queue.isEmpty()) {
+            int id = (int) queue.poll();
+            double finish = freeAt.poll() + sizes[id] / bytesPerSecond;
+            freeAt.add(finish);
+            completions[count++] = finish;
+            sum += finish;
+            if (priorities[id] > 0) {
+                prioritySum += finish;
+                priorityCount++;
+            }
+        }
+        Arrays.sort(completions);
+        return new double[]{sum / count, completions[(int) (count * 0.95)], prioritySum / priorityCount};
+    }
+
+    /**
+     * Re-offered tasks move in place instead of being queued twice; timing is in TaskScheduleQueueBenchmark.
+     */
+    @Test
+    public void updatesKeepOneEntryPerTask() {
+        final int size = 10_000;
+        TaskScheduleQueue queue = new TaskScheduleQueue(SCHEDULE_SRPT, 16 * MB);
+        Random random = new Random(7);
+        for (int i = 0; i < size; i++) {
+            Assert.assertTrue(queue.offer(i, random.nextInt(3), random.nextInt(2) * random.nextInt(100_000),
+                    random.nextInt(64) * MB));
+        }
+        for (int i = 0; i < size; i++) {
+            long id = queue.poll();
+            Assert.assertTrue(queue.offer(id, random.nextInt(3), 0, random.nextInt(64) * MB));
+            // every task is queued again, so this only updates a place
+            Assert.assertFalse(queue.offer(random.nextInt(size), random.nextInt(3), 0, random.nextInt(64) * MB));
+        }
+        Assert.assertEquals(size, queue.size());
+        Assert.assertEquals(size, new HashSet<>(queue.ids()).size());
+    }
+}
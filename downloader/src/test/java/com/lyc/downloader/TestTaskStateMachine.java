@@ -0,0 +1,92 @@
+package com.lyc.downloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.lyc.downloader.DownloadTask.CANCELED;
+import static com.lyc.downloader.DownloadTask.CONNECTING;
+import static com.lyc.downloader.DownloadTask.FATAL_ERROR;
+import static com.lyc.downloader.DownloadTask.FINISH;
+import static com.lyc.downloader.DownloadTask.PAUSED;
+import static com.lyc.downloader.DownloadTask.PENDING;
+import static com.lyc.downloader.DownloadTask.RUNNING;
+import static com.lyc.downloader.DownloadTask.STOPPING;
+import static com.lyc.downloader.DownloadTask.WAITING;
+
+public class TestTaskStateMachine {
+    private static final int ACTIVE = TaskStateMachine.of(CONNECTING, RUNNING);
+
+    @Test
+    public void transitions() {
+        TaskStateMachine machine = new TaskStateMachine(PAUSED);
+        Assert.assertFalse(machine.compareAndSet(PAUSED, RUNNING));
+        Assert.assertTrue(machine.compareAndSet(PAUSED, PENDING));
+        Assert.assertFalse(machine.compareAndSet(PAUSED, PENDING));
+        Assert.assertTrue(machine.compareAndSet(PENDING, CONNECTING));
+        Assert.assertTrue(machine.compareAndSet(CONNECTING, RUNNING));
+        Assert.assertEquals(-1, machine.settle());
+
+        Assert.assertEquals(RUNNING, machine.stop(PAUSED, ACTIVE));
+        Assert.assertEquals(STOPPING, machine.get());
+        Assert.assertEquals(PAUSED, machine.target());
+        // cancel a task which is pausing
+        Assert.assertEquals(STOPPING, machine.stop(CANCELED, ACTIVE | TaskStateMachine.of(STOPPING)));
+        Assert.assertEquals(CANCELED, machine.target());
+        Assert.assertEquals(CANCELED, machine.settle());
+        Assert.assertEquals(CANCELED, machine.get());
+
+        // canceled is terminal
+        for (int state = PENDING; state <= FATAL_ERROR; state++) {
+            Assert.assertFalse(TaskStateMachine.canMove(CANCELED, state));
+        }
+        Assert.assertEquals(-1, machine.stop(PAUSED, -1));
+
+        machine = new TaskStateMachine(FINISH);
+        Assert.assertEquals(-1, machine.moveTo(PAUSED, -1));
+        Assert.assertEquals(FINISH, machine.moveTo(WAITING, -1));
+        Assert.assertEquals(-1, machine.stop(RUNNING, -1));
+    }
+
+    /**
+     * The run settles without waiting for a slow stopper (interrupting io, persisting state),
+     * and "stopping" is still reported before the state the task settles in:
+     * the stopper runs in message thread, the settled state goes through message thread to the shard.
+     */
+    @Test
+    public void settleWithoutWaitingStoppers() throws InterruptedException {
+        TaskStateMachine machine = new TaskStateMachine(RUNNING);
+        ShardedExecutor message = new ShardedExecutor("message", 1);
+        ShardedExecutor shard = new ShardedExecutor("task", 1);
+        List<String> reported = new ArrayList<>();
+        CountDownLatch stopped = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        message.execute(0, () -> {
+            Assert.assertEquals(RUNNING, machine.stop(PAUSED, ACTIVE));
+            stopped.countDown();
+            sleep(100);
+            shard.execute(0, () -> reported.add("stopping"));
+        });
+        stopped.await();
+        Assert.assertEquals(PAUSED, machine.settle());
+        message.execute(0, () -> shard.execute(0, () -> {
+            reported.add("paused");
+            done.countDown();
+        }));
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("stopping", "paused"), reported);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // do nothing
+        }
+    }
+}